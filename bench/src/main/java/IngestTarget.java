@@ -0,0 +1,17 @@
+import bearmaps.bench.IngestBenchmark;
+
+/**
+ * The work measured by IngestBenchmark.
+ */
+public class IngestTarget implements IngestBenchmark.Target {
+    @Override
+    public GraphDB graphDB() {
+        return new GraphDB("berkeley.osm");
+    }
+
+    @Override
+    public SearchIndex searchIndex() {
+        BenchInputs.initializeServer();
+        return new SearchIndex(MapServer.getSnapshot().getGraph().getLocations());
+    }
+}
@@ -0,0 +1,220 @@
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays map sessions against a server at a fixed open-loop arrival rate and reports
+ * throughput and latency percentiles per endpoint.
+ * <p>
+ * Arrivals are scheduled in advance (Poisson by default) and never wait for earlier
+ * responses. Each request's latency is measured from its scheduled start. A request that
+ * waits for a free client thread behind a slow response is charged for that wait. This
+ * corrects coordinated omission: a stall shows up in the percentiles as it would for real
+ * users, instead of silently lowering the offered load. The service time, measured from
+ * when the request was actually sent, is reported alongside.
+ * </p>
+ * Settings (system properties):
+ * <ul>
+ * <li>load.url: server to load, default http://localhost:4567.</li>
+ * <li>load.startServer: start MapServer in this JVM first, default true.</li>
+ * <li>load.source: "testparams" to synthesize sessions from bench.testData, or the path of
+ * an access log to replay.</li>
+ * <li>load.rate: arrivals per second, default 50.</li>
+ * <li>load.poisson: exponential inter-arrival times instead of a fixed interval, default
+ * true.</li>
+ * <li>load.concurrency: client threads, the most requests outstanding at once, default
+ * 64.</li>
+ * <li>load.warmup and load.duration: seconds, default 10 and 60. Warm-up requests are
+ * sent but not recorded.</li>
+ * </ul>
+ */
+public class LoadGenerator {
+    private static final long MAX_LATENCY_NANOS = TimeUnit.MINUTES.toNanos(5);
+
+    /**
+     * Latency, service time and failures of one endpoint.
+     */
+    private static class EndpointStats {
+        private final Histogram latency = new ConcurrentHistogram(MAX_LATENCY_NANOS, 3);
+        private final Histogram service = new ConcurrentHistogram(MAX_LATENCY_NANOS, 3);
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+    }
+
+    private final String baseUrl;
+    private final Map<String, EndpointStats> stats =
+            new ConcurrentHashMap<String, EndpointStats>();
+
+    public LoadGenerator(String baseUrl) {
+        this.baseUrl = baseUrl;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String url = System.getProperty("load.url", "http://localhost:4567");
+        if (Boolean.parseBoolean(System.getProperty("load.startServer", "true"))) {
+            MapServer.main(new String[0]);
+        }
+        String source = System.getProperty("load.source", "testparams");
+        List<String> paths = source.equals("testparams")
+                ? LoadSessions.fromTestParams(BenchInputs.cases())
+                : LoadSessions.fromAccessLog(source);
+        if (paths.isEmpty()) {
+            throw new IllegalStateException("No requests to replay from " + source);
+        }
+        LoadGenerator load = new LoadGenerator(url);
+        load.awaitServer(TimeUnit.MINUTES.toNanos(2));
+        double rate = Double.parseDouble(System.getProperty("load.rate", "50"));
+        boolean poisson = Boolean.parseBoolean(System.getProperty("load.poisson", "true"));
+        int concurrency = Integer.getInteger("load.concurrency", 64);
+        long warmup = TimeUnit.SECONDS.toNanos(Long.getLong("load.warmup", 10));
+        long duration = TimeUnit.SECONDS.toNanos(Long.getLong("load.duration", 60));
+        System.out.printf("Replaying %d requests from %s at %.1f/s, %d client threads%n",
+                paths.size(), source, rate, concurrency);
+        load.run(paths, rate, poisson, concurrency, warmup, duration);
+        load.report(System.out, duration);
+        System.exit(0);
+    }
+
+    /**
+     * Wait until the server answers, for servers still loading their map data.
+     */
+    private void awaitServer(long timeoutNanos) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        while (System.nanoTime() < deadline) {
+            try {
+                if (send("/metrics") == HttpURLConnection.HTTP_OK) {
+                    return;
+                }
+            } catch (IOException e) {
+                /* Not up yet. */
+            }
+            Thread.sleep(250);
+        }
+        throw new IllegalStateException("Server at " + baseUrl + " did not come up");
+    }
+
+    /**
+     * Issue requests at the given rate for warm-up plus duration, cycling through the paths.
+     */
+    public void run(List<String> paths, double rate, boolean poisson, int concurrency,
+                    long warmupNanos, long durationNanos) throws InterruptedException {
+        ExecutorService clients = Executors.newFixedThreadPool(concurrency);
+        Random random = new Random(42);
+        double interval = 1e9 / rate;
+        long start = System.nanoTime();
+        long recordFrom = start + warmupNanos;
+        long end = recordFrom + durationNanos;
+        double next = start;
+        for (int i = 0; next < end; i++) {
+            final long intended = (long) next;
+            final String path = paths.get(i % paths.size());
+            long wait = intended - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            final boolean record = intended >= recordFrom;
+            clients.execute(() -> issue(path, intended, record));
+            next += poisson ? -Math.log(1 - random.nextDouble()) * interval : interval;
+        }
+        clients.shutdown();
+        clients.awaitTermination(5, TimeUnit.MINUTES);
+    }
+
+    private void issue(String path, long intended, boolean record) {
+        long sent = System.nanoTime();
+        int status;
+        try {
+            status = send(path);
+        } catch (IOException e) {
+            status = -1;
+        }
+        long done = System.nanoTime();
+        if (!record) {
+            return;
+        }
+        EndpointStats s = statsFor(path);
+        s.latency.recordValue(Math.min(done - intended, MAX_LATENCY_NANOS));
+        s.service.recordValue(Math.min(done - sent, MAX_LATENCY_NANOS));
+        if (status == 503) {
+            s.rejected.increment();
+        } else if (status != HttpURLConnection.HTTP_OK) {
+            s.errors.increment();
+        }
+    }
+
+    private EndpointStats statsFor(String path) {
+        int q = path.indexOf('?');
+        String endpoint = q < 0 ? path : path.substring(0, q);
+        EndpointStats s = stats.get(endpoint);
+        if (s == null) {
+            stats.putIfAbsent(endpoint, new EndpointStats());
+            s = stats.get(endpoint);
+        }
+        return s;
+    }
+
+    /**
+     * GET a path and read the whole response.
+     *
+     * @return The HTTP status.
+     */
+    private int send(String path) throws IOException {
+        HttpURLConnection c = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+        c.setConnectTimeout(10000);
+        c.setReadTimeout(60000);
+        int status = c.getResponseCode();
+        InputStream in = status < 400 ? c.getInputStream() : c.getErrorStream();
+        if (in != null) {
+            byte[] buf = new byte[16384];
+            while (in.read(buf) >= 0) {
+                continue;
+            }
+            in.close();
+        }
+        return status;
+    }
+
+    /**
+     * Print one line per endpoint: completed requests, throughput, latency percentiles from
+     * the scheduled start, the same for service time, and failures.
+     */
+    public void report(PrintStream out, long durationNanos) {
+        double seconds = durationNanos / 1e9;
+        out.printf("%-14s %8s %8s %9s %9s %9s %9s | %9s %9s %9s | %6s %6s%n", "endpoint",
+                "count", "req/s", "p50 ms", "p99 ms", "p999 ms", "max ms", "svc p50",
+                "svc p99", "svc p999", "503", "errors");
+        Histogram all = new Histogram(MAX_LATENCY_NANOS, 3);
+        for (Map.Entry<String, EndpointStats> e : new TreeMap<String, EndpointStats>(stats)
+                .entrySet()) {
+            EndpointStats s = e.getValue();
+            all.add(s.latency);
+            out.printf("%-14s %8d %8.1f %9.2f %9.2f %9.2f %9.2f | %9.2f %9.2f %9.2f | %6d %6d%n",
+                    e.getKey(), s.latency.getTotalCount(),
+                    s.latency.getTotalCount() / seconds, ms(s.latency, 50), ms(s.latency, 99),
+                    ms(s.latency, 99.9), s.latency.getMaxValue() / 1e6, ms(s.service, 50),
+                    ms(s.service, 99), ms(s.service, 99.9), s.rejected.sum(), s.errors.sum());
+        }
+        out.printf("%-14s %8d %8.1f %9.2f %9.2f %9.2f %9.2f%n", "all", all.getTotalCount(),
+                all.getTotalCount() / seconds, ms(all, 50), ms(all, 99), ms(all, 99.9),
+                all.getMaxValue() / 1e6);
+    }
+
+    private static double ms(Histogram h, double percentile) {
+        return h.getValueAtPercentile(percentile) / 1e6;
+    }
+}
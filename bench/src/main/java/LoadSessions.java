@@ -0,0 +1,84 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Request sequences for the load generator, as paths with query strings. Either synthesized
+ * from the recorded TestParams cases, one browsing session per case, or read back from the
+ * server's access log (bearmaps.accessLog).
+ */
+public class LoadSessions {
+    /**
+     * One session per recorded case: look at the recorded view, pan right and down, zoom in
+     * and back out, type the recorded prefix one keystroke at a time, run the full search,
+     * click the recorded route, look at it, and clear it.
+     */
+    public static List<String> fromTestParams(List<TestParams> cases) {
+        ArrayList<String> paths = new ArrayList<String>();
+        for (TestParams p : cases) {
+            Map<String, Double> view = p.raster_params;
+            double ullon = view.get("ullon");
+            double ullat = view.get("ullat");
+            double lrlon = view.get("lrlon");
+            double lrlat = view.get("lrlat");
+            double w = view.get("w");
+            double h = view.get("h");
+            double dx = (lrlon - ullon) / 4;
+            double dy = (ullat - lrlat) / 4;
+            paths.add(raster(ullon, ullat, lrlon, lrlat, w, h));
+            paths.add(raster(ullon + dx, ullat, lrlon + dx, lrlat, w, h));
+            paths.add(raster(ullon + dx, ullat - dy, lrlon + dx, lrlat - dy, w, h));
+            paths.add(raster(ullon + 2 * dx, ullat - 2 * dy, lrlon, lrlat, w, h));
+            paths.add(raster(ullon, ullat, lrlon, lrlat, w, h));
+            String prefix = p.prefix_search_param;
+            for (int k = 1; k <= prefix.length(); k++) {
+                paths.add("/search?term=" + encode(prefix.substring(0, k)));
+            }
+            paths.add("/search?full=true&term=" + encode(p.actual_search_param));
+            Map<String, Double> route = p.route_params;
+            paths.add("/route?start_lat=" + route.get("start_lat") + "&start_lon="
+                    + route.get("start_lon") + "&end_lat=" + route.get("end_lat")
+                    + "&end_lon=" + route.get("end_lon"));
+            paths.add(raster(ullon, ullat, lrlon, lrlat, w, h));
+            paths.add("/clear_route");
+        }
+        return paths;
+    }
+
+    private static String raster(double ullon, double ullat, double lrlon, double lrlat,
+                                 double w, double h) {
+        return "/raster?ullon=" + ullon + "&ullat=" + ullat + "&lrlon=" + lrlon + "&lrlat="
+                + lrlat + "&w=" + (int) w + "&h=" + (int) h;
+    }
+
+    private static String encode(String s) {
+        try {
+            return URLEncoder.encode(s, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The GET requests of an access log, in the order they were served.
+     */
+    public static List<String> fromAccessLog(String path) throws IOException {
+        ArrayList<String> paths = new ArrayList<String>();
+        try (BufferedReader in = new BufferedReader(new FileReader(path))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length >= 3 && fields[1].equals("GET")
+                        && !fields[2].startsWith("/reload")) {
+                    paths.add(fields[2]);
+                }
+            }
+        }
+        return paths;
+    }
+}
@@ -0,0 +1,49 @@
+import bearmaps.bench.LocalityBenchmark;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The work measured by LocalityBenchmark.
+ */
+public class LocalityTarget implements LocalityBenchmark.Target {
+    private boolean hilbert;
+    private GraphDB graph;
+    private ContractedGraph contracted;
+    private Map<String, Double> params;
+    private GraphNode start;
+    private GraphNode target;
+    private GraphNode[] mapOrder;
+    private Locations mapCoordinates;
+
+    @Override
+    public void setUp(boolean hilbert, double quantile) {
+        BenchInputs.initializeServer();
+        this.hilbert = hilbert;
+        graph = MapServer.getSnapshot().getGraph();
+        contracted = new ContractedGraph(graph.getNodes(), hilbert);
+        params = BenchInputs.atQuantile(quantile, BenchInputs.ROUTE_COST).route_params;
+        start = graph.closest(params.get("start_lon"), params.get("start_lat"));
+        target = graph.closest(params.get("end_lon"), params.get("end_lat"));
+        mapOrder = graph.getNodes().values().toArray(new GraphNode[0]);
+        mapCoordinates = new Locations();
+        for (GraphNode node : mapOrder) {
+            mapCoordinates.add(node.getID(), node.getLon(), node.getLat(), null);
+        }
+        mapCoordinates.trim();
+    }
+
+    @Override
+    public List<Long> route() {
+        return contracted.route(start, target);
+    }
+
+    @Override
+    public GraphNode closest() {
+        if (hilbert) {
+            return graph.closest(params.get("start_lon"), params.get("start_lat"));
+        }
+        return GraphDB.closest(mapOrder, mapCoordinates, params.get("start_lon"),
+                params.get("start_lat"));
+    }
+}
@@ -0,0 +1,57 @@
+import bearmaps.bench.MatchBenchmark;
+
+import java.util.Random;
+import java.util.function.Consumer;
+
+/**
+ * The work measured by MatchBenchmark.
+ */
+public class MatchTarget implements MatchBenchmark.Target {
+    private static final int POINTS = MatchBenchmark.POINTS;
+
+    private GraphDB graph;
+    private final double[] lons = new double[POINTS];
+    private final double[] lats = new double[POINTS];
+
+    @Override
+    public void setUp(double noiseMeters) {
+        BenchInputs.initializeServer();
+        graph = MapServer.getSnapshot().getGraph();
+        Random random = new Random(47);
+        double noise = noiseMeters / MapMatcher.METERS_PER_DEGREE;
+        int n = 0;
+        while (n < POINTS) {
+            TestParams params = BenchInputs.cases().get(random.nextInt(BenchInputs.cases()
+                    .size()));
+            GraphNode start = graph.closest(params.route_params.get("start_lon"),
+                    params.route_params.get("start_lat"));
+            GraphNode target = graph.closest(params.route_params.get("end_lon"),
+                    params.route_params.get("end_lat"));
+            for (long id : MapServer.search(graph, start, target)) {
+                if (n == POINTS) {
+                    break;
+                }
+                GraphNode node = graph.getNodes().get(id);
+                lons[n] = node.getLon() + random.nextGaussian() * noise;
+                lats[n] = node.getLat() + random.nextGaussian() * noise;
+                n++;
+            }
+        }
+    }
+
+    @Override
+    public void match(Consumer<Object> out) {
+        MapMatcher matcher = new MapMatcher(graph);
+        for (int i = 0; i < POINTS; i++) {
+            matcher.add(lons[i], lats[i], out::accept);
+        }
+        matcher.finish(out::accept);
+    }
+
+    @Override
+    public void closest(Consumer<Object> out) {
+        for (int i = 0; i < POINTS; i++) {
+            out.accept(graph.closest(lons[i], lats[i]));
+        }
+    }
+}
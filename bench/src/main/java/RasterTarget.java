@@ -0,0 +1,41 @@
+import bearmaps.bench.RasterBenchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The work measured by RasterBenchmark.
+ */
+public class RasterTarget implements RasterBenchmark.Target {
+    private Map<String, Double> params;
+    private int depth;
+
+    @Override
+    public void setUp(double quantile, boolean withRoute) {
+        BenchInputs.initializeServer();
+        TestParams p = BenchInputs.atQuantile(quantile, BenchInputs.RASTER_COST);
+        params = p.raster_params;
+        depth = MapServer.getReqDepth(params);
+        MapServer.clearRoute();
+        if (withRoute) {
+            MapServer.findAndSetRoute(p.route_params);
+        }
+    }
+
+    @Override
+    public byte[] getMapRaster() {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        MapServer.getMapRaster(params, os);
+        return os.toByteArray();
+    }
+
+    @Override
+    public List<?> collect() {
+        ArrayList<Node> collection = new ArrayList<Node>();
+        MapServer.collect(MapServer.getSnapshot().getQuadTree().getNode(), params, depth,
+                collection);
+        return collection;
+    }
+}
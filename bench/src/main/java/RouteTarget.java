@@ -0,0 +1,38 @@
+import bearmaps.bench.RouteBenchmark;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The work measured by RouteBenchmark.
+ */
+public class RouteTarget implements RouteBenchmark.Target {
+    private GraphDB graph;
+    private Map<String, Double> params;
+    private GraphNode start;
+    private GraphNode target;
+
+    @Override
+    public void setUp(double quantile) {
+        BenchInputs.initializeServer();
+        graph = MapServer.getSnapshot().getGraph();
+        params = BenchInputs.atQuantile(quantile, BenchInputs.ROUTE_COST).route_params;
+        start = graph.closest(params.get("start_lon"), params.get("start_lat"));
+        target = graph.closest(params.get("end_lon"), params.get("end_lat"));
+    }
+
+    @Override
+    public List<Long> search() {
+        return MapServer.search(graph, start, target);
+    }
+
+    @Override
+    public GraphNode findClosest() {
+        return graph.closest(params.get("start_lon"), params.get("start_lat"));
+    }
+
+    @Override
+    public List<Long> findAndSetRoute() {
+        return MapServer.findAndSetRoute(params);
+    }
+}
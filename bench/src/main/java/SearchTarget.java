@@ -0,0 +1,72 @@
+import bearmaps.bench.SearchBenchmark;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The work measured by SearchBenchmark.
+ */
+public class SearchTarget implements SearchBenchmark.Target {
+    private SearchIndex index;
+    private String prefix;
+    private String name;
+    private String misspelled;
+    private Map<String, Double> viewport;
+
+    @Override
+    public void setUp(double quantile) {
+        BenchInputs.initializeServer();
+        index = MapServer.getSnapshot().getSearchIndex();
+        TestParams p = BenchInputs.atQuantile(quantile, BenchInputs.SEARCH_COST);
+        prefix = p.prefix_search_param;
+        name = p.actual_search_param;
+        /* Swap two letters in the middle, a typical typo. */
+        char[] c = name.toCharArray();
+        if (c.length > 3) {
+            char t = c[c.length / 2];
+            c[c.length / 2] = c[c.length / 2 + 1];
+            c[c.length / 2 + 1] = t;
+        }
+        misspelled = new String(c);
+        viewport = p.raster_params;
+    }
+
+    @Override
+    public List<String> autocomplete() {
+        return MapServer.autocomplete(prefix);
+    }
+
+    @Override
+    public List<String> prefixAll() {
+        return MapServer.getLocationsByPrefix(prefix);
+    }
+
+    @Override
+    public List<Map<String, Object>> getLocations() {
+        return MapServer.getLocations(name);
+    }
+
+    @Override
+    public String getLocationsJson() {
+        NameIndex names = index.getNameIndex();
+        return names.toJson(names.lookup(name));
+    }
+
+    @Override
+    public int[] fuzzy() {
+        return index.getFuzzyIndex().search(misspelled);
+    }
+
+    @Override
+    public int[] nearest() {
+        double lon = (viewport.get("ullon") + viewport.get("lrlon")) / 2;
+        double lat = (viewport.get("ullat") + viewport.get("lrlat")) / 2;
+        return index.nearest(name, lon, lat, SearchIndex.NEARBY_LIMIT);
+    }
+
+    @Override
+    public int[] pois() {
+        return index.within(viewport.get("ullon"), viewport.get("ullat"),
+                viewport.get("lrlon"), viewport.get("lrlat"), SearchIndex.POI_LIMIT);
+    }
+}
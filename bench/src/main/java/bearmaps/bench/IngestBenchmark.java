@@ -0,0 +1,52 @@
+package bearmaps.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading the map data: parsing berkeley.osm into a GraphDB, and building the search
+ * indices over its locations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IngestBenchmark {
+    /**
+     * Implemented by IngestTarget.
+     */
+    public interface Target {
+        Object graphDB();
+
+        Object searchIndex();
+    }
+
+    private Target target;
+
+    @Setup
+    public void setUp() {
+        target = Targets.load("IngestTarget", Target.class);
+    }
+
+    @Benchmark
+    public Object graphDB() {
+        return target.graphDB();
+    }
+
+    @Benchmark
+    public Object searchIndex() {
+        return target.searchIndex();
+    }
+}
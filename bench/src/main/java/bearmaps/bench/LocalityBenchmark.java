@@ -0,0 +1,70 @@
+package bearmaps.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The same long routes and endpoint snapping with the graph laid out in Hilbert order, as
+ * served, and in the order of the node map, which follows OSM ids and so is effectively random
+ * on the map. Snapping scans the same flat coordinate arrays in either layout, so only the
+ * order differs. Run with <code>-prof perfnorm</code> on Linux to see cache misses per operation
+ * (L1-dcache-load-misses, LLC-load-misses) next to the times.
+ * <p>
+ * Setup builds a second ContractedGraph over the served graph's nodes, which takes over the
+ * nodes' junction numbering; nothing else may route on the served graph in the same fork.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LocalityBenchmark {
+    /**
+     * Implemented by LocalityTarget.
+     */
+    public interface Target {
+        void setUp(boolean hilbert, double quantile);
+
+        List<Long> route();
+
+        Object closest();
+    }
+
+    @Param({"hilbert", "osm"})
+    public String layout;
+
+    @Param({"0.9", "1.0"})
+    public double quantile;
+
+    private Target target;
+
+    @Setup
+    public void setUp() {
+        target = Targets.load("LocalityTarget", Target.class);
+        target.setUp(layout.equals("hilbert"), quantile);
+    }
+
+    @Benchmark
+    public List<Long> route() {
+        return target.route();
+    }
+
+    @Benchmark
+    public Object closest() {
+        return target.closest();
+    }
+}
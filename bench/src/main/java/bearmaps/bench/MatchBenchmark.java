@@ -0,0 +1,73 @@
+package bearmaps.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Map matching throughput in points per second, for a trace made of the nodes along the
+ * recorded routes with Gaussian noise added, next to snapping each point to its closest node.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MatchBenchmark {
+    /** Points in the trace; every invocation matches all of them. */
+    public static final int POINTS = 2000;
+
+    /**
+     * Implemented by MatchTarget.
+     */
+    public interface Target {
+        void setUp(double noiseMeters);
+
+        /**
+         * Match the whole trace, handing every match to out.
+         */
+        void match(Consumer<Object> out);
+
+        /**
+         * Snap every point of the trace, handing every node to out.
+         */
+        void closest(Consumer<Object> out);
+    }
+
+    @Param({"5", "15"})
+    public double noiseMeters;
+
+    private Target target;
+
+    @Setup
+    public void setUp() {
+        target = Targets.load("MatchTarget", Target.class);
+        target.setUp(noiseMeters);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(POINTS)
+    public void match(Blackhole bh) {
+        target.match(bh::consume);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(POINTS)
+    public void closest(Blackhole bh) {
+        target.closest(bh::consume);
+    }
+}
@@ -0,0 +1,63 @@
+package bearmaps.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Raster composition for recorded viewports, from shallow and small to deep and large.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RasterBenchmark {
+    /**
+     * Implemented by RasterTarget.
+     */
+    public interface Target {
+        void setUp(double quantile, boolean withRoute);
+
+        byte[] getMapRaster();
+
+        List<?> collect();
+    }
+
+    @Param({"0.1", "0.5", "0.9"})
+    public double quantile;
+
+    /** Whether the recorded route is drawn over the raster. */
+    @Param({"false", "true"})
+    public boolean withRoute;
+
+    private Target target;
+
+    @Setup
+    public void setUp() {
+        target = Targets.load("RasterTarget", Target.class);
+        target.setUp(quantile, withRoute);
+    }
+
+    @Benchmark
+    public byte[] getMapRaster() {
+        return target.getMapRaster();
+    }
+
+    @Benchmark
+    public List<?> collect() {
+        return target.collect();
+    }
+}
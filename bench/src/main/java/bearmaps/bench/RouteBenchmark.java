@@ -0,0 +1,67 @@
+package bearmaps.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Routing for recorded queries: snapping the endpoints, and the search itself for short,
+ * medium and long routes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RouteBenchmark {
+    /**
+     * Implemented by RouteTarget.
+     */
+    public interface Target {
+        void setUp(double quantile);
+
+        List<Long> search();
+
+        Object findClosest();
+
+        List<Long> findAndSetRoute();
+    }
+
+    @Param({"0.1", "0.5", "0.9"})
+    public double quantile;
+
+    private Target target;
+
+    @Setup
+    public void setUp() {
+        target = Targets.load("RouteTarget", Target.class);
+        target.setUp(quantile);
+    }
+
+    @Benchmark
+    public List<Long> search() {
+        return target.search();
+    }
+
+    @Benchmark
+    public Object findClosest() {
+        return target.findClosest();
+    }
+
+    @Benchmark
+    public List<Long> findAndSetRoute() {
+        return target.findAndSetRoute();
+    }
+}
@@ -0,0 +1,96 @@
+package bearmaps.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The search endpoints for recorded terms: autocomplete, exact, fuzzy and viewport-ranked
+ * lookups, and the places in a recorded viewport.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchBenchmark {
+    /**
+     * Implemented by SearchTarget.
+     */
+    public interface Target {
+        void setUp(double quantile);
+
+        List<String> autocomplete();
+
+        List<String> prefixAll();
+
+        List<Map<String, Object>> getLocations();
+
+        String getLocationsJson();
+
+        int[] fuzzy();
+
+        int[] nearest();
+
+        int[] pois();
+    }
+
+    @Param({"0.1", "0.5", "0.9"})
+    public double quantile;
+
+    private Target target;
+
+    @Setup
+    public void setUp() {
+        target = Targets.load("SearchTarget", Target.class);
+        target.setUp(quantile);
+    }
+
+    @Benchmark
+    public List<String> autocomplete() {
+        return target.autocomplete();
+    }
+
+    @Benchmark
+    public List<String> prefixAll() {
+        return target.prefixAll();
+    }
+
+    @Benchmark
+    public List<Map<String, Object>> getLocations() {
+        return target.getLocations();
+    }
+
+    @Benchmark
+    public String getLocationsJson() {
+        return target.getLocationsJson();
+    }
+
+    @Benchmark
+    public int[] fuzzy() {
+        return target.fuzzy();
+    }
+
+    @Benchmark
+    public int[] nearest() {
+        return target.nearest();
+    }
+
+    @Benchmark
+    public int[] pois() {
+        return target.pois();
+    }
+}
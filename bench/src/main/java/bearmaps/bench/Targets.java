@@ -0,0 +1,21 @@
+package bearmaps.bench;
+
+/**
+ * JMH only generates benchmarks for classes in a named package, and a named package cannot
+ * import the server's classes, which are in the default package. So each benchmark here
+ * drives the server through a Target interface of its own, implemented by a class of the
+ * same name with Target in place of Benchmark, in the default package. The implementation is
+ * looked up by name once per trial; the calls made while measuring are plain interface calls.
+ */
+final class Targets {
+    private Targets() {
+    }
+
+    static <T> T load(String name, Class<T> type) {
+        try {
+            return type.cast(Class.forName(name).getDeclaredConstructor().newInstance());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not load benchmark target " + name, e);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A deadline and a cancel flag for one request's work. Long loops call check() every so many
+ * iterations; it costs a volatile read, a clock read and whatever the abandoned test costs,
+ * so it is cheap enough to call every few hundred steps.
+ * <p>
+ * Work is stopped once its deadline passes, once cancel() is called, for example because the
+ * same client sent a newer request, or once the abandoned test says so, for example because
+ * the client disconnected.
+ * </p>
+ */
+public class Cancellation {
+    /**
+     * Never stops.
+     */
+    public static final Cancellation NONE = new Cancellation(Long.MAX_VALUE, () -> false);
+
+    /**
+     * Why work was stopped.
+     */
+    public enum Reason {
+        CANCELLED, TIMED_OUT
+    }
+
+    /**
+     * Thrown by check() out of work that should stop.
+     */
+    public static class Cancelled extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private final Reason reason;
+
+        public Cancelled(Reason reason) {
+            super(reason == Reason.TIMED_OUT ? "deadline passed" : "cancelled");
+            this.reason = reason;
+        }
+
+        public Reason getReason() {
+            return reason;
+        }
+    }
+
+    private final long deadline;
+    private final BooleanSupplier abandoned;
+    private volatile boolean cancelled;
+
+    /**
+     * @param timeoutMillis How long from now the work may run.
+     * @param abandoned     Whether the work is no longer wanted; called from check().
+     */
+    public Cancellation(long timeoutMillis, BooleanSupplier abandoned) {
+        this.deadline = timeoutMillis == Long.MAX_VALUE ? Long.MAX_VALUE
+                : System.nanoTime() + timeoutMillis * 1000000;
+        this.abandoned = abandoned;
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * @return Why the work should stop, or null if it should go on.
+     */
+    public Reason reason() {
+        if (cancelled || abandoned.getAsBoolean()) {
+            return Reason.CANCELLED;
+        }
+        if (deadline != Long.MAX_VALUE && System.nanoTime() - deadline > 0) {
+            return Reason.TIMED_OUT;
+        }
+        return null;
+    }
+
+    /**
+     * @throws Cancelled If the work should stop.
+     */
+    public void check() {
+        Reason reason = reason();
+        if (reason != null) {
+            throw new Cancelled(reason);
+        }
+    }
+
+    /**
+     * @return Milliseconds left until the deadline, or Long.MAX_VALUE if there is none.
+     */
+    public long remainingMillis() {
+        if (deadline == Long.MAX_VALUE) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, (deadline - System.nanoTime()) / 1000000);
+    }
+
+    /**
+     * The cancellation of work done once on behalf of several callers. It stops the work only
+     * when no caller wants it any more: every caller has left or been stopped itself. It times
+     * out if all the callers that were stopped timed out.
+     */
+    public static class Shared extends Cancellation {
+        private final Set<Cancellation> callers =
+                Collections.newSetFromMap(new IdentityHashMap<Cancellation, Boolean>());
+
+        public Shared() {
+            super(Long.MAX_VALUE, () -> false);
+        }
+
+        public synchronized void join(Cancellation caller) {
+            callers.add(caller);
+        }
+
+        public synchronized void leave(Cancellation caller) {
+            callers.remove(caller);
+        }
+
+        @Override
+        public synchronized Reason reason() {
+            if (super.reason() != null || callers.isEmpty()) {
+                return Reason.CANCELLED;
+            }
+            Reason result = Reason.TIMED_OUT;
+            for (Cancellation caller : callers) {
+                Reason reason = caller.reason();
+                if (reason == null) {
+                    return null;
+                }
+                if (reason == Reason.CANCELLED) {
+                    result = reason;
+                }
+            }
+            return result;
+        }
+    }
+}
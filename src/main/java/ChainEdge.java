@@ -0,0 +1,55 @@
+/**
+ * A maximal chain of degree-2 road nodes collapsed into one weighted edge between two junctions
+ * of the ContractedGraph. The full geometry is kept so a route can be expanded back into the
+ * original OSM node ids.
+ */
+public class ChainEdge {
+    private final int from;
+    private final int to;
+    private final long[] path;
+    private final double[] offsets;
+
+    /**
+     * @param from    Junction index of <code>path[0]</code>.
+     * @param to      Junction index of the last node of <code>path</code>.
+     * @param path    Node ids from one junction to the other, both included.
+     * @param offsets Cumulative distance from <code>path[0]</code> to each node of the path.
+     */
+    public ChainEdge(int from, int to, long[] path, double[] offsets) {
+        this.from = from;
+        this.to = to;
+        this.path = path;
+        this.offsets = offsets;
+    }
+
+    public int getFrom() {
+        return from;
+    }
+
+    public int getTo() {
+        return to;
+    }
+
+    /**
+     * @return The junction at the opposite end of the chain from <code>junction</code>.
+     */
+    public int other(int junction) {
+        return junction == from ? to : from;
+    }
+
+    public double getWeight() {
+        return offsets[offsets.length - 1];
+    }
+
+    public int length() {
+        return path.length;
+    }
+
+    public long getID(int position) {
+        return path[position];
+    }
+
+    public double getOffset(int position) {
+        return offsets[position];
+    }
+}
@@ -21,6 +21,13 @@ public class Connection {
         return db;
     }
 
+    /**
+     * Recompute the length of this connection after one of its endpoints moved.
+     */
+    public void updateDB() {
+        this.db = getDist(n1.getLon(), n1.getLat(), n2.getLon(), n2.getLat());
+    }
+
     public double getDist(double lon1, double lat1, double lon2, double lat2) {
         return Math.sqrt(Math.pow(lon2 - lon1, 2) + Math.pow(lat2 - lat1, 2));
     }
@@ -0,0 +1,872 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The road graph with every maximal chain of degree-2 nodes collapsed into a single ChainEdge.
+ * Junctions are the nodes whose number of distinct neighbors is not two; routing only pushes
+ * and pops junctions, and the chains are expanded back into OSM node ids afterwards.
+ * <p>
+ * Start and target nodes may lie in the middle of a chain. The start then seeds both ends of
+ * its chain, and the target is treated as a virtual junction reachable from both ends of its
+ * chain.
+ * </p>
+ * <p>
+ * Junctions are numbered along a Hilbert curve of their coordinates, and their coordinates
+ * are kept in arrays in that order, so the search state of junctions near each other on the
+ * map is near each other in memory too.
+ * </p>
+ * <p>
+ * After the road graph is edited in place, repair() rebuilds only the chains around the edited
+ * nodes. Junction indices of nodes that stop being junctions are retired, not reused, and new
+ * junctions are numbered after all others until the graph is loaded again.
+ * </p>
+ */
+public class ContractedGraph {
+    private static final int START = -1;
+    private static final int NO_TARGET = -2;
+    /** Searches look at their Cancellation once every this many settled junctions. */
+    public static final int CHECK_EVERY =
+            Math.max(1, Integer.getInteger("bearmaps.route.checkEvery", 256));
+    /**
+     * Defaults for alternatives(): how many routes to return, how much longer than the
+     * shortest route an alternative may be, what fraction of the shortest route's length it
+     * may share with any route already chosen, and how long, as a fraction of the shortest
+     * route, the stretch around its via node must be along which it is itself a shortest path.
+     */
+    public static final int ALTERNATIVES_K = Integer.getInteger("bearmaps.alternatives.k", 3);
+    public static final double ALTERNATIVES_STRETCH =
+            Double.parseDouble(System.getProperty("bearmaps.alternatives.stretch", "1.25"));
+    public static final double ALTERNATIVES_SHARING =
+            Double.parseDouble(System.getProperty("bearmaps.alternatives.sharing", "0.8"));
+    public static final double ALTERNATIVES_LOCAL_OPTIMALITY =
+            Double.parseDouble(System.getProperty("bearmaps.alternatives.localOptimality",
+                    "0.2"));
+
+    private final HashMap<Long, GraphNode> nodes;
+    private GraphNode[] junctions = new GraphNode[16];
+    private List<ChainEdge>[] adjacency = newAdjacency(16);
+    private double[] junctionLon = new double[16];
+    private double[] junctionLat = new double[16];
+    private int junctionCount;
+    private int liveJunctions;
+    private int edgeCount;
+
+    private final ThreadLocal<SearchState> searchState = new ThreadLocal<SearchState>() {
+        @Override
+        protected SearchState initialValue() {
+            return new SearchState();
+        }
+    };
+    private final ThreadLocal<SearchState> backwardState = new ThreadLocal<SearchState>() {
+        @Override
+        protected SearchState initialValue() {
+            return new SearchState();
+        }
+    };
+
+    public ContractedGraph(HashMap<Long, GraphNode> nodes) {
+        this(nodes, true);
+    }
+
+    /**
+     * @param hilbertOrder Whether to number junctions along a Hilbert curve, or in the order
+     *                     of the node map. Only benchmarks turn it off.
+     */
+    public ContractedGraph(HashMap<Long, GraphNode> nodes, boolean hilbertOrder) {
+        this.nodes = nodes;
+        ArrayList<GraphNode> found = new ArrayList<GraphNode>();
+        for (GraphNode node : nodes.values()) {
+            node.setJunction(-1);
+            node.setChain(null, 0);
+            if (distinctNeighbors(node).size() != 2) {
+                found.add(node);
+            }
+        }
+        if (hilbertOrder) {
+            double[] lons = new double[found.size()];
+            double[] lats = new double[found.size()];
+            for (int i = 0; i < lons.length; i++) {
+                lons[i] = found.get(i).getLon();
+                lats[i] = found.get(i).getLat();
+            }
+            for (int i : Hilbert.order(lons, lats, lons.length)) {
+                addJunction(found.get(i));
+            }
+        } else {
+            for (GraphNode node : found) {
+                addJunction(node);
+            }
+        }
+        for (int j = 0; j < junctionCount; j++) {
+            contractFrom(junctions[j]);
+        }
+        /* Whatever is left are pure cycles of degree-2 nodes; cut each one at an arbitrary node. */
+        for (GraphNode node : nodes.values()) {
+            if (node.getJunction() < 0 && node.getChain() == null) {
+                addJunction(node);
+                contractFrom(node);
+            }
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static List<ChainEdge>[] newAdjacency(int size) {
+        return (List<ChainEdge>[]) new List[size];
+    }
+
+    private void addJunction(GraphNode node) {
+        if (junctionCount == junctions.length) {
+            junctions = Arrays.copyOf(junctions, junctionCount * 2);
+            adjacency = Arrays.copyOf(adjacency, junctionCount * 2);
+            junctionLon = Arrays.copyOf(junctionLon, junctionCount * 2);
+            junctionLat = Arrays.copyOf(junctionLat, junctionCount * 2);
+        }
+        node.setJunction(junctionCount);
+        junctions[junctionCount] = node;
+        junctionLon[junctionCount] = node.getLon();
+        junctionLat[junctionCount] = node.getLat();
+        adjacency[junctionCount] = new ArrayList<ChainEdge>(4);
+        junctionCount++;
+        liveJunctions++;
+    }
+
+    private void removeJunction(GraphNode node) {
+        junctions[node.getJunction()] = null;
+        adjacency[node.getJunction()] = new ArrayList<ChainEdge>(0);
+        node.setJunction(-1);
+        liveJunctions--;
+    }
+
+    /**
+     * @return Whether the two junctions are already joined by an edge without shape points.
+     */
+    private boolean hasDirectEdge(GraphNode junction, GraphNode other) {
+        for (ChainEdge e : adjacency[junction.getJunction()]) {
+            if (e.length() == 2 && e.other(junction.getJunction()) == other.getJunction()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The neighbors of a node, without duplicates and without the node itself.
+     */
+    private static List<GraphNode> distinctNeighbors(GraphNode node) {
+        ArrayList<GraphNode> result = new ArrayList<GraphNode>(4);
+        for (Connection cxn : node.getConnectionSet()) {
+            GraphNode neighbor = cxn.getN2();
+            if (neighbor != node && !result.contains(neighbor)) {
+                result.add(neighbor);
+            }
+        }
+        return result;
+    }
+
+    private static double stepWeight(GraphNode from, GraphNode to) {
+        double weight = Double.POSITIVE_INFINITY;
+        for (Connection cxn : from.getConnectionSet()) {
+            if (cxn.getN2() == to) {
+                weight = Math.min(weight, cxn.getDB());
+            }
+        }
+        return weight;
+    }
+
+    /**
+     * Walk every chain leaving the junction that has not been contracted yet.
+     */
+    private void contractFrom(GraphNode junction) {
+        for (GraphNode first : distinctNeighbors(junction)) {
+            if (first.getJunction() >= 0 && hasDirectEdge(junction, first)) {
+                continue;
+            }
+            if (first.getJunction() < 0 && first.getChain() != null) {
+                continue;
+            }
+            ArrayList<GraphNode> walk = new ArrayList<GraphNode>();
+            walk.add(junction);
+            GraphNode prev = junction;
+            GraphNode curr = first;
+            while (curr.getJunction() < 0) {
+                walk.add(curr);
+                List<GraphNode> next = distinctNeighbors(curr);
+                GraphNode following = next.get(0) == prev ? next.get(1) : next.get(0);
+                prev = curr;
+                curr = following;
+            }
+            walk.add(curr);
+            addEdge(walk);
+        }
+    }
+
+    private void addEdge(List<GraphNode> walk) {
+        long[] path = new long[walk.size()];
+        double[] offsets = new double[walk.size()];
+        for (int i = 0; i < walk.size(); i++) {
+            path[i] = walk.get(i).getID();
+            if (i > 0) {
+                offsets[i] = offsets[i - 1] + stepWeight(walk.get(i - 1), walk.get(i));
+            }
+        }
+        int from = walk.get(0).getJunction();
+        int to = walk.get(walk.size() - 1).getJunction();
+        ChainEdge edge = new ChainEdge(from, to, path, offsets);
+        for (int i = 1; i < walk.size() - 1; i++) {
+            walk.get(i).setChain(edge, i);
+        }
+        adjacency[from].add(edge);
+        if (to != from) {
+            adjacency[to].add(edge);
+        }
+        edgeCount++;
+    }
+
+    /**
+     * Rebuild the chains around nodes whose connections were added, removed or moved. Every
+     * node whose connection set changed must be passed in, including nodes that were removed
+     * from the graph.
+     */
+    public void repair(Collection<GraphNode> touched) {
+        HashSet<ChainEdge> stale = new HashSet<ChainEdge>();
+        for (GraphNode x : touched) {
+            if (x.getJunction() >= 0) {
+                stale.addAll(adjacency[x.getJunction()]);
+            } else if (x.getChain() != null) {
+                stale.add(x.getChain());
+            }
+        }
+        ArrayList<GraphNode> seeds = new ArrayList<GraphNode>();
+        ArrayList<GraphNode> loose = new ArrayList<GraphNode>();
+        for (ChainEdge e : stale) {
+            adjacency[e.getFrom()].remove(e);
+            adjacency[e.getTo()].remove(e);
+            edgeCount--;
+            seeds.add(junctions[e.getFrom()]);
+            seeds.add(junctions[e.getTo()]);
+            for (int i = 1; i < e.length() - 1; i++) {
+                GraphNode n = nodes.get(e.getID(i));
+                if (n != null && n.getChain() == e) {
+                    n.setChain(null, 0);
+                    loose.add(n);
+                }
+            }
+        }
+        for (GraphNode x : touched) {
+            boolean present = nodes.get(x.getID()) == x;
+            boolean junction = present && distinctNeighbors(x).size() != 2;
+            x.setChain(null, 0);
+            if (x.getJunction() >= 0 && !junction) {
+                removeJunction(x);
+            } else if (junction && x.getJunction() < 0) {
+                addJunction(x);
+            }
+            if (junction) {
+                junctionLon[x.getJunction()] = x.getLon();
+                junctionLat[x.getJunction()] = x.getLat();
+                seeds.add(x);
+            } else if (present) {
+                loose.add(x);
+            }
+        }
+        for (GraphNode seed : seeds) {
+            if (seed != null && seed.getJunction() >= 0) {
+                contractFrom(seed);
+            }
+        }
+        for (GraphNode n : loose) {
+            if (n.getJunction() < 0 && n.getChain() == null && nodes.get(n.getID()) == n) {
+                addJunction(n);
+                contractFrom(n);
+            }
+        }
+    }
+
+    /**
+     * @return The number of junction slots, including retired ones.
+     */
+    public int getJunctionCount() {
+        return junctionCount;
+    }
+
+    public int getLiveJunctionCount() {
+        return liveJunctions;
+    }
+
+    public int getEdgeCount() {
+        return edgeCount;
+    }
+
+    /**
+     * @return Junctions settled by the calling thread's most recent route().
+     */
+    public int getLastSettledCount() {
+        return searchState.get().settledCount;
+    }
+
+    /**
+     * @return Junctions settled by both searches of the calling thread's most recent
+     * alternatives().
+     */
+    public int getLastAlternativesSettledCount() {
+        return searchState.get().settledCount + backwardState.get().settledCount;
+    }
+
+    /**
+     * @return Heap insertions made by the calling thread's most recent route().
+     */
+    public int getLastPushCount() {
+        return searchState.get().pushCount;
+    }
+
+    /**
+     * A* search from s to t over the junctions, using the euclidean distance to t as heuristic.
+     *
+     * @return The ids of the nodes on the shortest route from s to t, both included, or an empty
+     * list if t cannot be reached from s.
+     */
+    public LinkedList<Long> route(GraphNode s, GraphNode t) {
+        return route(s, t, Cancellation.NONE);
+    }
+
+    /**
+     * route(s, t) that gives up once <code>cancel</code> says so.
+     *
+     * @throws Cancellation.Cancelled If the search was stopped before it reached t.
+     */
+    public LinkedList<Long> route(GraphNode s, GraphNode t, Cancellation cancel) {
+        SearchState st = searchState.get();
+        st.reset(junctionCount + 1);
+        final int target = t.getJunction() >= 0 ? t.getJunction() : junctionCount;
+        ChainEdge targetEdge = t.getChain();
+        int targetPos = t.getChainPosition();
+
+        if (s.getJunction() >= 0) {
+            st.offer(s.getJunction(), 0, START, null, true, heuristic(s.getJunction(), t));
+        } else {
+            ChainEdge e = s.getChain();
+            int p = s.getChainPosition();
+            st.offer(e.getFrom(), e.getOffset(p), START, e, false, heuristic(e.getFrom(), t));
+            st.offer(e.getTo(), e.getWeight() - e.getOffset(p), START, e, true,
+                    heuristic(e.getTo(), t));
+            if (e == targetEdge) {
+                st.offer(target, Math.abs(e.getOffset(targetPos) - e.getOffset(p)), START, e,
+                        targetPos > p, 0);
+            }
+        }
+
+        while (!st.isEmpty()) {
+            int u = st.poll();
+            if (u < 0) {
+                continue;
+            }
+            if ((st.settledCount - 1) % CHECK_EVERY == 0) {
+                cancel.check();
+            }
+            if (u == target) {
+                return expand(st, target, target, s, t);
+            }
+            double du = st.dist[u];
+            for (ChainEdge e : adjacency[u]) {
+                int v = e.other(u);
+                if (v != u && !st.isSettled(v)) {
+                    st.offer(v, du + e.getWeight(), u, e, e.getFrom() == u, heuristic(v, t));
+                }
+            }
+            if (targetEdge != null) {
+                if (targetEdge.getFrom() == u) {
+                    st.offer(target, du + targetEdge.getOffset(targetPos), u, targetEdge, true, 0);
+                }
+                if (targetEdge.getTo() == u) {
+                    st.offer(target, du + targetEdge.getWeight() - targetEdge.getOffset(targetPos),
+                            u, targetEdge, false, 0);
+                }
+            }
+        }
+        return new LinkedList<Long>();
+    }
+
+    /**
+     * Up to k routes from s to t: the shortest one first, then alternatives found with the
+     * via-node plateau method. One Dijkstra search grows a tree from s and another from t, both
+     * out to stretch times the shortest distance. Where the two trees run along the same
+     * chain edges they form a plateau, and the route through any node of a plateau is a
+     * shortest path along the whole plateau. Candidates are taken with the longest plateaus
+     * relative to their extra length first, and kept if the plateau is long enough and the
+     * route shares little enough with the routes already kept. A via node whose route is the
+     * shortest one is never a candidate.
+     *
+     * @param k               Maximum number of routes, the shortest included.
+     * @param stretch         Longest allowed route, as a multiple of the shortest.
+     * @param sharing         Most length an alternative may share with each route already
+     *                        kept, as a fraction of the shortest route. Shared length is
+     *                        counted along whole routes, the partial chains at s and t included.
+     * @param localOptimality Shortest allowed plateau, as a fraction of the shortest route.
+     * @return The routes as node ids from s to t, shortest first; empty if t cannot be reached.
+     */
+    public List<Alternative> alternatives(GraphNode s, GraphNode t, int k, double stretch,
+                                          double sharing, double localOptimality) {
+        return alternatives(s, t, k, stretch, sharing, localOptimality, Cancellation.NONE);
+    }
+
+    /**
+     * alternatives() that gives up once <code>cancel</code> says so.
+     *
+     * @throws Cancellation.Cancelled If either search was stopped.
+     */
+    public List<Alternative> alternatives(GraphNode s, GraphNode t, int k, double stretch,
+                                          double sharing, double localOptimality,
+                                          Cancellation cancel) {
+        ArrayList<Alternative> result = new ArrayList<Alternative>();
+        SearchState fwd = searchState.get();
+        SearchState bwd = backwardState.get();
+        fwd.reset(junctionCount + 1);
+        bwd.reset(junctionCount + 1);
+        int target = t.getJunction() >= 0 ? t.getJunction() : junctionCount;
+        seed(fwd, s, t, target);
+        grow(fwd, t, target, Double.POSITIVE_INFINITY, stretch, cancel);
+        if (!fwd.isSettled(target) || k <= 0) {
+            return result;
+        }
+        double shortest = fwd.dist[target];
+        result.add(new Alternative(expand(fwd, target, target, s, t), shortest));
+        ArrayList<HashMap<ChainEdge, double[]>> kept =
+                new ArrayList<HashMap<ChainEdge, double[]>>();
+        kept.add(cover(fwd, target, s, t, new HashMap<ChainEdge, double[]>()));
+        HashSet<Integer> onShortest = new HashSet<Integer>();
+        for (int x = fwd.prevJunction[target]; x != START; x = fwd.prevJunction[x]) {
+            onShortest.add(x);
+        }
+        if (k == 1) {
+            return result;
+        }
+        seed(bwd, t, null, NO_TARGET);
+        grow(bwd, null, NO_TARGET, shortest * stretch, stretch, cancel);
+
+        /* Every plateau is entered from its end nearest s; collect those entry nodes. */
+        ArrayList<Integer> vias = new ArrayList<Integer>();
+        ArrayList<Double> scores = new ArrayList<Double>();
+        for (int v = 0; v < junctionCount; v++) {
+            if (!inBoth(fwd, bwd, v) || fwd.dist[v] + bwd.dist[v] > shortest * stretch) {
+                continue;
+            }
+            /* Both trees run along the shortest route through v: its route is that one. */
+            if (onShortest.contains(v) && fwd.dist[v] + bwd.dist[v] <= shortest * (1 + 1e-9)) {
+                continue;
+            }
+            int p = fwd.prevJunction[v];
+            if (p != START && inBoth(fwd, bwd, p) && onPlateau(fwd, bwd, p, v)) {
+                continue;
+            }
+            int end = v;
+            int q = bwd.prevJunction[end];
+            while (q != START && inBoth(fwd, bwd, q) && onPlateau(fwd, bwd, end, q)) {
+                end = q;
+                q = bwd.prevJunction[end];
+            }
+            double plateau = fwd.dist[end] - fwd.dist[v];
+            if (plateau >= localOptimality * shortest) {
+                vias.add(v);
+                scores.add(fwd.dist[v] + bwd.dist[v] - plateau);
+            }
+        }
+        Integer[] order = new Integer[vias.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(scores.get(a), scores.get(b)));
+
+        for (int i = 0; i < order.length && result.size() < k; i++) {
+            int v = vias.get(order[i]);
+            HashMap<ChainEdge, double[]> edges = cover(bwd, v, t, t, cover(fwd, v, s, t,
+                    new HashMap<ChainEdge, double[]>()));
+            boolean distinct = isSimple(fwd, bwd, v);
+            for (int j = 0; j < kept.size() && distinct; j++) {
+                distinct = shared(edges, kept.get(j)) <= sharing * shortest;
+            }
+            if (distinct) {
+                LinkedList<Long> path = expand(fwd, v, NO_TARGET, s, t);
+                List<Long> back = expand(bwd, v, NO_TARGET, t, s);
+                for (int j = back.size() - 2; j >= 0; j--) {
+                    path.add(back.get(j));
+                }
+                result.add(new Alternative(path, fwd.dist[v] + bwd.dist[v]));
+                kept.add(edges);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Road distances from s to several targets at once, by one Dijkstra search that stops at
+     * <code>bound</code>. Targets in the middle of a chain are reached from either end of it.
+     *
+     * @return For each target, its distance from s, or infinity if it is farther than bound.
+     */
+    public double[] distances(GraphNode s, GraphNode[] targets, double bound) {
+        double[] result = new double[targets.length];
+        Arrays.fill(result, Double.POSITIVE_INFINITY);
+        if (s.getJunction() < 0 && s.getChain() == null) {
+            return result;
+        }
+        SearchState st = searchState.get();
+        st.reset(junctionCount + 1);
+        seed(st, s, null, NO_TARGET);
+        grow(st, null, NO_TARGET, bound, 1, Cancellation.NONE);
+        for (int i = 0; i < targets.length; i++) {
+            GraphNode t = targets[i];
+            double d = Double.POSITIVE_INFINITY;
+            if (t.getJunction() >= 0) {
+                d = settledDistance(st, t.getJunction());
+            } else if (t.getChain() != null) {
+                ChainEdge e = t.getChain();
+                double offset = e.getOffset(t.getChainPosition());
+                d = Math.min(settledDistance(st, e.getFrom()) + offset,
+                        settledDistance(st, e.getTo()) + e.getWeight() - offset);
+                if (s.getChain() == e) {
+                    d = Math.min(d, Math.abs(offset - e.getOffset(s.getChainPosition())));
+                }
+            }
+            if (d <= bound) {
+                result[i] = d;
+            }
+        }
+        return result;
+    }
+
+    private static double settledDistance(SearchState st, int junction) {
+        return st.isSettled(junction) ? st.dist[junction] : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * @return Whether the route through v visits no junction twice.
+     */
+    private static boolean isSimple(SearchState fwd, SearchState bwd, int v) {
+        HashSet<Integer> visited = new HashSet<Integer>();
+        for (int x = fwd.prevJunction[v]; x != START; x = fwd.prevJunction[x]) {
+            visited.add(x);
+        }
+        for (int x = bwd.prevJunction[v]; x != START; x = bwd.prevJunction[x]) {
+            if (visited.contains(x)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean inBoth(SearchState fwd, SearchState bwd, int v) {
+        return fwd.isSettled(v) && bwd.isSettled(v);
+    }
+
+    /**
+     * @return Whether u to v is an edge of the tree from s that the tree from t runs along
+     * in the other direction.
+     */
+    private static boolean onPlateau(SearchState fwd, SearchState bwd, int u, int v) {
+        return fwd.prevJunction[v] == u && bwd.prevJunction[u] == v
+                && fwd.prevEdge[v] == bwd.prevEdge[u];
+    }
+
+    /**
+     * Add to <code>into</code> the stretch of each chain edge that the tree path from x back
+     * to the root covers, as offsets along the edge. The partial edges at either end, where
+     * the root or the target lies inside a chain, count only as far as the route runs along
+     * them; an edge the route runs along twice gets two stretches.
+     *
+     * @param root The node the search started from.
+     * @param t    The target of the search, if x is the virtual junction standing for it.
+     */
+    private HashMap<ChainEdge, double[]> cover(SearchState st, int x, GraphNode root,
+                                               GraphNode t, HashMap<ChainEdge, double[]> into) {
+        while (st.prevEdge[x] != null) {
+            ChainEdge e = st.prevEdge[x];
+            int p = st.prevJunction[x];
+            boolean forward = st.prevForward[x];
+            double end = x >= junctionCount ? e.getOffset(t.getChainPosition())
+                    : forward ? e.getWeight() : 0;
+            double begin = p == START ? e.getOffset(root.getChainPosition())
+                    : forward ? 0 : e.getWeight();
+            double[] spans = into.get(e);
+            int n = spans == null ? 0 : spans.length;
+            spans = spans == null ? new double[2] : Arrays.copyOf(spans, n + 2);
+            spans[n] = Math.min(begin, end);
+            spans[n + 1] = Math.max(begin, end);
+            into.put(e, spans);
+            if (p == START) {
+                break;
+            }
+            x = p;
+        }
+        return into;
+    }
+
+    /**
+     * @return The length along which two routes, given as by cover(), run on the same road.
+     */
+    private static double shared(HashMap<ChainEdge, double[]> a, HashMap<ChainEdge, double[]> b) {
+        double total = 0;
+        for (Map.Entry<ChainEdge, double[]> entry : a.entrySet()) {
+            double[] other = b.get(entry.getKey());
+            if (other == null) {
+                continue;
+            }
+            double[] spans = entry.getValue();
+            for (int i = 0; i < spans.length; i += 2) {
+                for (int j = 0; j < other.length; j += 2) {
+                    total += Math.max(0, Math.min(spans[i + 1], other[j + 1])
+                            - Math.max(spans[i], other[j]));
+                }
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Queue the junctions a search from s starts at. If t lies on the same chain as s, the
+     * target is queued directly as well.
+     */
+    private void seed(SearchState st, GraphNode s, GraphNode t, int target) {
+        if (s.getJunction() >= 0) {
+            st.offer(s.getJunction(), 0, START, null, true, 0);
+            return;
+        }
+        ChainEdge e = s.getChain();
+        int p = s.getChainPosition();
+        st.offer(e.getFrom(), e.getOffset(p), START, e, false, 0);
+        st.offer(e.getTo(), e.getWeight() - e.getOffset(p), START, e, true, 0);
+        if (t != null && e == t.getChain()) {
+            int targetPos = t.getChainPosition();
+            st.offer(target, Math.abs(e.getOffset(targetPos) - e.getOffset(p)), START, e,
+                    targetPos > p, 0);
+        }
+    }
+
+    /**
+     * Dijkstra search until the next junction is farther than <code>bound</code>. Once the
+     * target, if any, is settled, the bound drops to stretch times its distance.
+     */
+    private void grow(SearchState st, GraphNode t, int target, double bound, double stretch,
+                      Cancellation cancel) {
+        ChainEdge targetEdge = t == null ? null : t.getChain();
+        int targetPos = t == null ? 0 : t.getChainPosition();
+        while (!st.isEmpty() && st.peekKey() <= bound) {
+            int u = st.poll();
+            if (u < 0) {
+                continue;
+            }
+            if ((st.settledCount - 1) % CHECK_EVERY == 0) {
+                cancel.check();
+            }
+            double du = st.dist[u];
+            if (u == target) {
+                bound = du * stretch;
+            }
+            if (u >= junctionCount) {
+                continue;
+            }
+            for (ChainEdge e : adjacency[u]) {
+                int v = e.other(u);
+                if (v != u && !st.isSettled(v)) {
+                    st.offer(v, du + e.getWeight(), u, e, e.getFrom() == u, 0);
+                }
+            }
+            if (targetEdge != null) {
+                if (targetEdge.getFrom() == u) {
+                    st.offer(target, du + targetEdge.getOffset(targetPos), u, targetEdge, true, 0);
+                }
+                if (targetEdge.getTo() == u) {
+                    st.offer(target, du + targetEdge.getWeight() - targetEdge.getOffset(targetPos),
+                            u, targetEdge, false, 0);
+                }
+            }
+        }
+    }
+
+    private double heuristic(int junction, GraphNode t) {
+        return MapServer.getDist(junctionLon[junction], junctionLat[junction], t.getLon(),
+                t.getLat());
+    }
+
+    /**
+     * Unwind the predecessor chain from x back to the start, expanding every contracted edge
+     * into the node ids it stands for. The edge into <code>target</code> ends at t's position.
+     */
+    private LinkedList<Long> expand(SearchState st, int x, int target, GraphNode s, GraphNode t) {
+        ArrayList<Long> reversed = new ArrayList<Long>();
+        while (true) {
+            ChainEdge e = st.prevEdge[x];
+            int p = st.prevJunction[x];
+            if (e == null) {
+                reversed.add(junctions[x].getID());
+                break;
+            }
+            boolean forward = st.prevForward[x];
+            int end = x == target && t.getJunction() < 0
+                    ? t.getChainPosition() : (forward ? e.length() - 1 : 0);
+            int begin = p == START ? s.getChainPosition() : (forward ? 0 : e.length() - 1);
+            int step = forward ? -1 : 1;
+            for (int i = end; i != begin; i += step) {
+                reversed.add(e.getID(i));
+            }
+            if (p == START) {
+                reversed.add(e.getID(begin));
+                break;
+            }
+            x = p;
+        }
+        Collections.reverse(reversed);
+        return new LinkedList<Long>(reversed);
+    }
+
+    /**
+     * Per-thread scratch space for route(). Entries are invalidated by bumping a stamp instead
+     * of clearing the arrays, so a query only pays for the junctions it touches.
+     */
+    private static class SearchState {
+        private int stamp;
+        private int[] seen = new int[0];
+        private int[] settled = new int[0];
+        private double[] dist = new double[0];
+        private int[] prevJunction = new int[0];
+        private ChainEdge[] prevEdge = new ChainEdge[0];
+        private boolean[] prevForward = new boolean[0];
+        private double[] heapKey = new double[64];
+        private int[] heapNode = new int[64];
+        private int heapSize;
+        private int settledCount;
+        private int pushCount;
+
+        void reset(int size) {
+            if (seen.length < size) {
+                int capacity = Math.max(size, seen.length * 2);
+                seen = new int[capacity];
+                settled = new int[capacity];
+                dist = new double[capacity];
+                prevJunction = new int[capacity];
+                prevEdge = new ChainEdge[capacity];
+                prevForward = new boolean[capacity];
+                stamp = 0;
+            }
+            if (stamp == Integer.MAX_VALUE) {
+                Arrays.fill(seen, 0);
+                Arrays.fill(settled, 0);
+                stamp = 0;
+            }
+            stamp++;
+            heapSize = 0;
+            settledCount = 0;
+            pushCount = 0;
+        }
+
+        boolean isSettled(int node) {
+            return settled[node] == stamp;
+        }
+
+        /**
+         * Record a tentative distance for node and queue it, unless it is no improvement.
+         */
+        void offer(int node, double d, int prev, ChainEdge edge, boolean forward, double h) {
+            if (seen[node] == stamp && d >= dist[node]) {
+                return;
+            }
+            seen[node] = stamp;
+            dist[node] = d;
+            prevJunction[node] = prev;
+            prevEdge[node] = edge;
+            prevForward[node] = forward;
+            push(d + h, node);
+        }
+
+        boolean isEmpty() {
+            return heapSize == 0;
+        }
+
+        double peekKey() {
+            return heapKey[0];
+        }
+
+        /**
+         * @return The next node to settle, or -1 if the popped entry was stale.
+         */
+        int poll() {
+            int node = heapNode[0];
+            heapSize--;
+            if (heapSize > 0) {
+                siftDown(heapKey[heapSize], heapNode[heapSize]);
+            }
+            if (settled[node] == stamp) {
+                return -1;
+            }
+            settled[node] = stamp;
+            settledCount++;
+            return node;
+        }
+
+        private void push(double key, int node) {
+            pushCount++;
+            if (heapSize == heapKey.length) {
+                heapKey = Arrays.copyOf(heapKey, heapSize * 2);
+                heapNode = Arrays.copyOf(heapNode, heapSize * 2);
+            }
+            int i = heapSize++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (heapKey[parent] <= key) {
+                    break;
+                }
+                heapKey[i] = heapKey[parent];
+                heapNode[i] = heapNode[parent];
+                i = parent;
+            }
+            heapKey[i] = key;
+            heapNode[i] = node;
+        }
+
+        private void siftDown(double key, int node) {
+            int i = 0;
+            int half = heapSize >>> 1;
+            while (i < half) {
+                int child = 2 * i + 1;
+                if (child + 1 < heapSize && heapKey[child + 1] < heapKey[child]) {
+                    child++;
+                }
+                if (key <= heapKey[child]) {
+                    break;
+                }
+                heapKey[i] = heapKey[child];
+                heapNode[i] = heapNode[child];
+                i = child;
+            }
+            heapKey[i] = key;
+            heapNode[i] = node;
+        }
+    }
+
+    /**
+     * One route returned by alternatives(): node ids from start to target and the length.
+     */
+    public static class Alternative {
+        private final LinkedList<Long> path;
+        private final double length;
+
+        Alternative(LinkedList<Long> path, double length) {
+            this.path = path;
+            this.length = length;
+        }
+
+        public LinkedList<Long> getPath() {
+            return path;
+        }
+
+        public double getLength() {
+            return length;
+        }
+    }
+}
@@ -0,0 +1,295 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Typo-tolerant lookup over location names. Every distinct cleaned name is broken into
+ * trigrams, padded at both ends, and each trigram keeps a posting list of the names that
+ * contain it; all posting lists live in one int array. A query counts shared trigrams to find
+ * candidates, then confirms each with a Levenshtein distance computed only inside the band the
+ * bound allows.
+ * <p>
+ * One edit destroys at most three trigrams, so a name within distance d of a query with n
+ * trigrams shares at least n - 3d of them. Short queries would make that bound useless, so at
+ * least one shared trigram is always required. Each query checks at most a fixed number of
+ * candidates, those sharing the most trigrams with it, and gives up after a fixed time budget
+ * with what it has confirmed so far.
+ * </p>
+ */
+public class FuzzyIndex {
+    /** Cleaned names only hold a-z and space; code 0 is the padding. */
+    private static final int ALPHABET = 28;
+    private static final char PAD = '\0';
+
+    private final NameIndex names;
+    private final String[] keys;
+    private final int[] postStart;
+    private final int[] postKeys;
+    private final int maxCandidates;
+    private final long budgetNanos;
+
+    private final ThreadLocal<int[]> shared = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[keys.length];
+        }
+    };
+
+    /**
+     * @param names         The exact-name index whose names are searched.
+     * @param maxCandidates Most names checked against the distance bound per query; those
+     *                      sharing the most trigrams with the query are kept.
+     * @param budgetMillis  Time after which a query stops checking candidates.
+     */
+    public FuzzyIndex(NameIndex names, int maxCandidates, long budgetMillis) {
+        this.names = names;
+        this.maxCandidates = maxCandidates;
+        this.budgetNanos = budgetMillis * 1000000L;
+        ArrayList<String> sorted = new ArrayList<String>(names.keys());
+        Collections.sort(sorted);
+        keys = sorted.toArray(new String[sorted.size()]);
+
+        /* Count, then fill: the posting list of trigram g is
+         * postKeys[postStart[g], postStart[g + 1]). */
+        int grams = ALPHABET * ALPHABET * ALPHABET;
+        postStart = new int[grams + 1];
+        for (String key : keys) {
+            for (int g : trigrams(key)) {
+                postStart[g + 1]++;
+            }
+        }
+        for (int g = 0; g < grams; g++) {
+            postStart[g + 1] += postStart[g];
+        }
+        postKeys = new int[postStart[grams]];
+        int[] fill = Arrays.copyOf(postStart, grams);
+        for (int k = 0; k < keys.length; k++) {
+            for (int g : trigrams(keys[k])) {
+                postKeys[fill[g]++] = k;
+            }
+        }
+    }
+
+    private static int code(char c) {
+        if (c == PAD) {
+            return 0;
+        }
+        return c == ' ' ? 1 : c - 'a' + 2;
+    }
+
+    /**
+     * @return The distinct trigrams of a cleaned string, as codes.
+     */
+    private static int[] trigrams(String key) {
+        int n = key.length();
+        int[] grams = new int[n];
+        for (int i = 0; i < n; i++) {
+            char a = i == 0 ? PAD : key.charAt(i - 1);
+            char c = i == n - 1 ? PAD : key.charAt(i + 1);
+            grams[i] = (code(a) * ALPHABET + code(key.charAt(i))) * ALPHABET + code(c);
+        }
+        Arrays.sort(grams);
+        int distinct = 0;
+        for (int i = 0; i < n; i++) {
+            if (i == 0 || grams[i] != grams[i - 1]) {
+                grams[distinct++] = grams[i];
+            }
+        }
+        return Arrays.copyOf(grams, distinct);
+    }
+
+    /**
+     * @return The edit bound for a query: one typo for short names, two otherwise.
+     */
+    static int maxDistance(String query) {
+        return query.length() <= 4 ? 1 : 2;
+    }
+
+    /**
+     * Levenshtein distance between a and b, computed only within <code>bound</code> of the
+     * diagonal.
+     *
+     * @return The distance, or bound + 1 if it exceeds bound.
+     */
+    static int boundedDistance(String a, String b, int bound, int[] prev, int[] cur) {
+        int n = a.length();
+        int m = b.length();
+        if (Math.abs(n - m) > bound) {
+            return bound + 1;
+        }
+        int over = bound + 1;
+        for (int j = 0; j <= m; j++) {
+            prev[j] = j <= bound ? j : over;
+        }
+        for (int i = 1; i <= n; i++) {
+            int from = Math.max(1, i - bound);
+            int to = Math.min(m, i + bound);
+            cur[0] = i <= bound ? i : over;
+            if (from > 1) {
+                cur[from - 1] = over;
+            }
+            int rowMin = cur[0];
+            for (int j = from; j <= to; j++) {
+                int d = prev[j - 1] + (a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1);
+                d = Math.min(d, prev[j] + 1);
+                d = Math.min(d, cur[j - 1] + 1);
+                cur[j] = Math.min(d, over);
+                rowMin = Math.min(rowMin, cur[j]);
+            }
+            if (to < m) {
+                cur[to + 1] = over;
+            }
+            if (rowMin > bound) {
+                return over;
+            }
+            int[] t = prev;
+            prev = cur;
+            cur = t;
+        }
+        return prev[m];
+    }
+
+    /**
+     * Locations whose names are within a small edit distance of the query, closest names
+     * first, then by cleaned name; the locations of one name stay in file order.
+     *
+     * @param query Any case, with or without punctuation.
+     * @return Indices into Locations.
+     */
+    public int[] search(String query) {
+        final String q = GraphDB.cleanString(query);
+        if (q.isEmpty()) {
+            return new int[0];
+        }
+        long deadline = System.nanoTime() + budgetNanos;
+        int bound = maxDistance(q);
+        int[] grams = trigrams(q);
+        int needed = Math.max(1, grams.length - 3 * bound);
+
+        int[] counts = shared.get();
+        int[] touched = new int[64];
+        int touchedCount = 0;
+        for (int g : grams) {
+            for (int p = postStart[g]; p < postStart[g + 1]; p++) {
+                int k = postKeys[p];
+                if (counts[k]++ == 0) {
+                    if (touchedCount == touched.length) {
+                        touched = Arrays.copyOf(touched, touchedCount * 2);
+                    }
+                    touched[touchedCount++] = k;
+                }
+            }
+        }
+        /* Bounded heap of the names sharing the most trigrams, worst on top. */
+        int[] candidates = new int[Math.min(maxCandidates, keys.length)];
+        int candidateCount = 0;
+        for (int t = 0; t < touchedCount; t++) {
+            int k = touched[t];
+            if (counts[k] < needed || Math.abs(keys[k].length() - q.length()) > bound) {
+                continue;
+            }
+            if (candidateCount < candidates.length) {
+                siftUp(candidates, counts, candidateCount++, k);
+            } else if (candidateCount > 0 && better(counts, k, candidates[0])) {
+                siftDown(candidates, counts, candidateCount, 0, k);
+            }
+        }
+        /* Sort in place, most shared first, so the time budget cuts the weakest. */
+        for (int i = candidateCount - 1; i > 0; i--) {
+            int worst = candidates[0];
+            siftDown(candidates, counts, i, 0, candidates[i]);
+            candidates[i] = worst;
+        }
+        for (int t = 0; t < touchedCount; t++) {
+            counts[touched[t]] = 0;
+        }
+
+        int[] prev = new int[q.length() + bound + 2];
+        int[] cur = new int[prev.length];
+        final int[] distance = new int[candidateCount];
+        ArrayList<Integer> matches = new ArrayList<Integer>();
+        for (int c = 0; c < candidateCount; c++) {
+            if ((c & 63) == 63 && System.nanoTime() > deadline) {
+                break;
+            }
+            String key = keys[candidates[c]];
+            int d = key.length() <= q.length()
+                    ? boundedDistance(key, q, bound, prev, cur)
+                    : boundedDistance(q, key, bound, prev, cur);
+            if (d <= bound) {
+                distance[c] = d;
+                matches.add(c);
+            }
+        }
+        final int[] found = candidates;
+        Collections.sort(matches, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                if (distance[a] != distance[b]) {
+                    return distance[a] - distance[b];
+                }
+                return keys[found[a]].compareTo(keys[found[b]]);
+            }
+        });
+
+        int[] result = new int[16];
+        int size = 0;
+        for (int c : matches) {
+            for (int location : names.lookup(keys[found[c]])) {
+                if (size == result.length) {
+                    result = Arrays.copyOf(result, size * 2);
+                }
+                result[size++] = location;
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    /**
+     * @return Whether name a shares more trigrams with the query than name b, or as many and
+     * sorts first.
+     */
+    private static boolean better(int[] counts, int a, int b) {
+        return counts[a] > counts[b] || counts[a] == counts[b] && a < b;
+    }
+
+    private static void siftUp(int[] heap, int[] counts, int i, int k) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!better(counts, heap[parent], k)) {
+                break;
+            }
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = k;
+    }
+
+    private static void siftDown(int[] heap, int[] counts, int size, int i, int k) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && better(counts, heap[child], heap[child + 1])) {
+                child++;
+            }
+            if (!better(counts, k, heap[child])) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = k;
+    }
+
+    public int getNameCount() {
+        return keys.length;
+    }
+
+    public int getPostingCount() {
+        return postKeys.length;
+    }
+}
@@ -2,11 +2,22 @@ import org.xml.sax.SAXException;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Wraps the parsing functionality of the MapDBHandler as an example.
@@ -15,13 +26,37 @@ import java.util.Iterator;
  * @author Alan Yao
  */
 public class GraphDB {
-    
+    /**
+     * How many off-road nodes from change files to remember the coordinates of. Past this the
+     * least recently seen are forgotten, and a later way through one of them skips it as if
+     * its coordinates had never been sent.
+     */
+    public static final int OFF_ROAD_LIMIT =
+            Integer.getInteger("bearmaps.change.offRoadLimit", 100000);
+
     private HashMap<Long, GraphNode> nodes = new HashMap<Long, GraphNode>();
+    private ContractedGraph contracted;
+    private final Locations locations = new Locations();
+    private int[] componentSizes = new int[0];
+    private int componentCount;
+    private int mainComponent;
+    /** Node ids of every road way, kept so that edits can remove the segments they replace. */
+    private HashMap<Long, long[]> roadWays = new HashMap<Long, long[]>();
+    /** Coordinates of nodes known from change files that are not on any road (yet). */
+    private LinkedHashMap<Long, double[]> offRoadNodes = new LinkedHashMap<Long, double[]>();
+    /** Nodes whose connections changed during the current applyChange(). */
+    private Set<GraphNode> touched;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile long revision;
+    /** Road nodes in Hilbert order for closest() and near(), kept up to date by edits. */
+    private NodeOrder nodeOrder;
 
     /**
      * Example constructor shows how to create and start an XML parser.
      *
      * @param db_path Path to the XML file to be parsed.
+     * @throws IllegalStateException if the file cannot be read or parsed, rather than yield a
+     * partial graph.
      */
     public GraphDB(String dbPath) {
         try {
@@ -30,12 +65,347 @@ public class GraphDB {
             SAXParser saxParser = factory.newSAXParser();
             MapDBHandler maphandler = new MapDBHandler(this);
             saxParser.parse(inputFile, maphandler);
+            maphandler.startNodePass();
+            saxParser.parse(inputFile, maphandler);
+            build(maphandler.getRoadNodes(), maphandler.getRoadWays());
+            locations.trim();
         } catch (ParserConfigurationException | SAXException | IOException e) {
-            e.printStackTrace();
+            throw new IllegalStateException("Could not read map data from " + dbPath, e);
         }
-        System.out.println(nodes.size());
         clean();
-        System.out.println(nodes.size());
+        labelComponents();
+        contracted = new ContractedGraph(nodes);
+        nodeOrder = new NodeOrder(nodes.values());
+        System.out.println(nodes.size() + " road nodes, " + contracted.getJunctionCount()
+                + " junctions, " + componentCount + " components (largest "
+                + (componentCount > 0 ? componentSizes[mainComponent] : 0) + ")");
+    }
+
+    /**
+     * Materialize the road graph from the packed ingestion buffers. Only nodes referenced by a
+     * road way get a GraphNode; segments whose endpoints are missing from the file are skipped.
+     */
+    private void build(RoadNodeIndex roadNodes, RoadWays roadWays) {
+        for (int i = 0; i < roadNodes.size(); i++) {
+            if (roadNodes.hasCoordinates(i)) {
+                long id = roadNodes.getID(i);
+                nodes.put(id, new GraphNode(id, roadNodes.getLon(i), roadNodes.getLat(i)));
+            }
+        }
+        for (int w = 0; w < roadWays.size(); w++) {
+            long[] refs = new long[roadWays.getEnd(w) - roadWays.getStart(w)];
+            for (int i = 0; i < refs.length; i++) {
+                refs[i] = roadWays.getRef(roadWays.getStart(w) + i);
+            }
+            this.roadWays.put(roadWays.getWayID(w), refs);
+            for (int i = 0; i < refs.length - 1; i++) {
+                GraphNode n1 = nodes.get(refs[i]);
+                GraphNode n2 = nodes.get(refs[i + 1]);
+                if (n1 != null && n2 != null) {
+                    n1.getConnectionSet().add(new Connection(n1, n2));
+                    n2.getConnectionSet().add(new Connection(n2, n1));
+                }
+            }
+        }
+    }
+
+    /**
+     * Apply an osmChange document to the road graph in place. Only the chains and components
+     * around the edited nodes are rebuilt, so the cost follows the size of the diff. The whole
+     * document is parsed before the graph is touched, so a malformed one changes nothing;
+     * readers are kept out while the edits are applied through the write lock.
+     *
+     * @param in The osmChange XML.
+     */
+    public void applyChange(InputStream in)
+            throws ParserConfigurationException, SAXException, IOException {
+        OsmChangeHandler change = new OsmChangeHandler();
+        SAXParserFactory.newInstance().newSAXParser().parse(in, change);
+        lock.writeLock().lock();
+        try {
+            touched = newNodeSet();
+            change.applyTo(this);
+        } finally {
+            /* Whatever was applied must be repaired and seen, even if an edit threw. */
+            try {
+                prune();
+                contracted.repair(touched);
+                if (!nodeOrder.update(touched, nodes)) {
+                    nodeOrder = new NodeOrder(nodes.values());
+                }
+            } finally {
+                touched = null;
+                revision++;
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Create or move a node. Connections of a road node that moves get their lengths updated;
+     * the coordinates of any other node are remembered, up to OFF_ROAD_LIMIT of them, in case
+     * a later way puts it on a road.
+     */
+    void putNode(long id, double lon, double lat) {
+        GraphNode node = nodes.get(id);
+        if (node == null) {
+            rememberOffRoad(id, lon, lat);
+            return;
+        }
+        node.setLocation(lon, lat);
+        touched.add(node);
+        for (Connection cxn : node.getConnectionSet()) {
+            cxn.updateDB();
+            touched.add(cxn.getN2());
+            for (Connection back : cxn.getN2().getConnectionSet()) {
+                if (back.getN2() == node) {
+                    back.updateDB();
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove a node together with every segment it is part of.
+     */
+    void deleteNode(long id) {
+        offRoadNodes.remove(id);
+        GraphNode node = nodes.get(id);
+        if (node == null) {
+            return;
+        }
+        touched.add(node);
+        while (!node.getConnectionSet().isEmpty()) {
+            GraphNode other = node.getConnectionSet().iterator().next().getN2();
+            removeSegment(node, other);
+        }
+        nodes.remove(id);
+        componentSizes[node.getComponent()]--;
+    }
+
+    /**
+     * Create or replace a way. The segments of the previous version are removed first; the new
+     * segments are added only if the way is an allowed road.
+     */
+    void putWay(long id, long[] refs, boolean isRoad) {
+        deleteWay(id);
+        if (!isRoad) {
+            return;
+        }
+        roadWays.put(id, refs);
+        for (int i = 0; i < refs.length - 1; i++) {
+            GraphNode n1 = materialize(refs[i]);
+            GraphNode n2 = materialize(refs[i + 1]);
+            if (n1 != null && n2 != null) {
+                addSegment(n1, n2);
+            }
+        }
+    }
+
+    void deleteWay(long id) {
+        long[] refs = roadWays.remove(id);
+        if (refs == null) {
+            return;
+        }
+        for (int i = 0; i < refs.length - 1; i++) {
+            GraphNode n1 = nodes.get(refs[i]);
+            GraphNode n2 = nodes.get(refs[i + 1]);
+            if (n1 != null && n2 != null) {
+                removeSegment(n1, n2);
+            }
+        }
+    }
+
+    /**
+     * Drop the edited nodes left with no connections, as clean() does after a full load, so
+     * that closest() and near() never snap to a node no route can leave. Their coordinates
+     * are remembered in case a later way puts them back on a road.
+     */
+    private void prune() {
+        for (GraphNode node : touched) {
+            if (node.getConnectionSet().isEmpty() && nodes.get(node.getID()) == node) {
+                nodes.remove(node.getID());
+                componentSizes[node.getComponent()]--;
+                rememberOffRoad(node.getID(), node.getLon(), node.getLat());
+            }
+        }
+    }
+
+    /**
+     * Remember the coordinates of a node that is not on a road, forgetting the least recently
+     * seen node if there are more than OFF_ROAD_LIMIT.
+     */
+    private void rememberOffRoad(long id, double lon, double lat) {
+        offRoadNodes.remove(id);
+        offRoadNodes.put(id, new double[]{lon, lat});
+        if (offRoadNodes.size() > OFF_ROAD_LIMIT) {
+            Iterator<Long> eldest = offRoadNodes.keySet().iterator();
+            eldest.next();
+            eldest.remove();
+        }
+    }
+
+    /**
+     * @return The road node with this id, creating it from known coordinates if needed, or null
+     * if the coordinates of the node are unknown.
+     */
+    private GraphNode materialize(long id) {
+        GraphNode node = nodes.get(id);
+        if (node != null) {
+            return node;
+        }
+        double[] lonlat = offRoadNodes.remove(id);
+        if (lonlat == null) {
+            return null;
+        }
+        node = new GraphNode(id, lonlat[0], lonlat[1]);
+        nodes.put(id, node);
+        node.setComponent(newComponent(1));
+        touched.add(node);
+        return node;
+    }
+
+    private void addSegment(GraphNode n1, GraphNode n2) {
+        n1.getConnectionSet().add(new Connection(n1, n2));
+        n2.getConnectionSet().add(new Connection(n2, n1));
+        touched.add(n1);
+        touched.add(n2);
+        if (n1.getComponent() != n2.getComponent()) {
+            GraphNode small = componentSizes[n1.getComponent()]
+                    < componentSizes[n2.getComponent()] ? n1 : n2;
+            GraphNode large = small == n1 ? n2 : n1;
+            int from = small.getComponent();
+            componentSizes[large.getComponent()] += relabel(small, large.getComponent());
+            componentSizes[from] = 0;
+            updateMainComponent();
+        }
+    }
+
+    /**
+     * Remove one copy of the segment between n1 and n2. If that disconnects them, the smaller
+     * of the two sides is found by searching from both ends in lockstep, and gets a new
+     * component id.
+     */
+    private void removeSegment(GraphNode n1, GraphNode n2) {
+        removeConnection(n1, n2);
+        removeConnection(n2, n1);
+        touched.add(n1);
+        touched.add(n2);
+        if (n1 == n2) {
+            return;
+        }
+        Set<GraphNode> seen1 = newNodeSet();
+        Set<GraphNode> seen2 = newNodeSet();
+        ArrayDeque<GraphNode> fringe1 = new ArrayDeque<GraphNode>();
+        ArrayDeque<GraphNode> fringe2 = new ArrayDeque<GraphNode>();
+        seen1.add(n1);
+        seen2.add(n2);
+        fringe1.add(n1);
+        fringe2.add(n2);
+        while (!fringe1.isEmpty() && !fringe2.isEmpty()) {
+            if (expandOne(fringe1, seen1, seen2) || expandOne(fringe2, seen2, seen1)) {
+                return;
+            }
+        }
+        Set<GraphNode> side = fringe1.isEmpty() ? seen1 : seen2;
+        int old = n1.getComponent();
+        int split = newComponent(side.size());
+        for (GraphNode node : side) {
+            node.setComponent(split);
+        }
+        componentSizes[old] -= side.size();
+        updateMainComponent();
+    }
+
+    /**
+     * Expand one node of a breadth-first search.
+     *
+     * @return Whether the search ran into a node seen by the opposite search.
+     */
+    private static boolean expandOne(ArrayDeque<GraphNode> fringe, Set<GraphNode> seen,
+                                     Set<GraphNode> other) {
+        GraphNode curr = fringe.poll();
+        for (Connection cxn : curr.getConnectionSet()) {
+            GraphNode next = cxn.getN2();
+            if (other.contains(next)) {
+                return true;
+            }
+            if (seen.add(next)) {
+                fringe.add(next);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * GraphNode equality compares coordinates and its hash is constant, so node sets are
+     * identity based.
+     */
+    private static Set<GraphNode> newNodeSet() {
+        return Collections.newSetFromMap(new IdentityHashMap<GraphNode, Boolean>());
+    }
+
+    private static void removeConnection(GraphNode from, GraphNode to) {
+        Iterator<Connection> iter = from.getConnectionSet().iterator();
+        while (iter.hasNext()) {
+            if (iter.next().getN2() == to) {
+                iter.remove();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Give every node reachable from start the component id c.
+     *
+     * @return The number of nodes relabeled.
+     */
+    private static int relabel(GraphNode start, int c) {
+        int count = 0;
+        ArrayDeque<GraphNode> fringe = new ArrayDeque<GraphNode>();
+        start.setComponent(c);
+        fringe.add(start);
+        while (!fringe.isEmpty()) {
+            GraphNode curr = fringe.poll();
+            count++;
+            for (Connection cxn : curr.getConnectionSet()) {
+                if (cxn.getN2().getComponent() != c) {
+                    cxn.getN2().setComponent(c);
+                    fringe.add(cxn.getN2());
+                }
+            }
+        }
+        return count;
+    }
+
+    private int newComponent(int size) {
+        if (componentCount == componentSizes.length) {
+            componentSizes = Arrays.copyOf(componentSizes, Math.max(16, componentCount * 2));
+        }
+        componentSizes[componentCount] = size;
+        return componentCount++;
+    }
+
+    private void updateMainComponent() {
+        for (int c = 0; c < componentCount; c++) {
+            if (componentSizes[c] > componentSizes[mainComponent]) {
+                mainComponent = c;
+            }
+        }
+    }
+
+    /**
+     * Lock to hold while reading the graph, so that applyChange() cannot edit it underneath.
+     */
+    public ReadWriteLock getLock() {
+        return lock;
+    }
+
+    /**
+     * @return The number of change files applied to this graph so far.
+     */
+    public long getRevision() {
+        return revision;
     }
 
     /**
@@ -63,7 +433,227 @@ public class GraphDB {
         }
     }
 
+    /**
+     * Label every node with the id of its connected component. Routing between two different
+     * components is impossible, which can then be detected without searching.
+     */
+    private void labelComponents() {
+        for (GraphNode node : nodes.values()) {
+            node.setComponent(-1);
+        }
+        componentCount = 0;
+        ArrayDeque<GraphNode> fringe = new ArrayDeque<GraphNode>();
+        for (GraphNode node : nodes.values()) {
+            if (node.getComponent() >= 0) {
+                continue;
+            }
+            int c = newComponent(0);
+            int size = 0;
+            node.setComponent(c);
+            fringe.add(node);
+            while (!fringe.isEmpty()) {
+                GraphNode curr = fringe.poll();
+                size++;
+                for (Connection cxn : curr.getConnectionSet()) {
+                    if (cxn.getN2().getComponent() < 0) {
+                        cxn.getN2().setComponent(c);
+                        fringe.add(cxn.getN2());
+                    }
+                }
+            }
+            componentSizes[c] = size;
+            if (size > componentSizes[mainComponent]) {
+                mainComponent = c;
+            }
+        }
+    }
+
+    /**
+     * @return Whether a route between the two nodes can exist at all.
+     */
+    public boolean connected(GraphNode a, GraphNode b) {
+        return a.getComponent() == b.getComponent();
+    }
+
+    public int getComponentCount() {
+        return componentCount;
+    }
+
+    public int getComponentSize(int component) {
+        return componentSizes[component];
+    }
+
+    /**
+     * @return The id of the largest connected component.
+     */
+    public int getMainComponent() {
+        return mainComponent;
+    }
+
     public HashMap<Long, GraphNode> getNodes() {
         return nodes;
     }
+
+    /**
+     * The road node closest to a point, by a sequential scan of coordinates laid out in
+     * Hilbert order, and of the nodes edits have moved out of it. Callers hold the read lock.
+     *
+     * @return The closest node, or null if the graph is empty.
+     */
+    public GraphNode closest(double lon, double lat) {
+        GraphNode best = closest(nodeOrder.nodes, nodeOrder.coordinates, lon, lat);
+        double bestDist = best == null ? Double.POSITIVE_INFINITY
+                : distance2(best.getLon(), best.getLat(), lon, lat);
+        for (GraphNode node : nodeOrder.extra) {
+            double d = distance2(node.getLon(), node.getLat(), lon, lat);
+            if (d < bestDist) {
+                bestDist = d;
+                best = node;
+            }
+        }
+        return best;
+    }
+
+    private static double distance2(double lon1, double lat1, double lon2, double lat2) {
+        double dx = lon1 - lon2;
+        double dy = lat1 - lat2;
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * The node closest to a point among <code>nodes</code>, by a sequential scan of their
+     * coordinates, which <code>coordinates</code> holds in the same order.
+     *
+     * @return The closest node, or null if there are none.
+     */
+    public static GraphNode closest(GraphNode[] nodes, Locations coordinates, double lon,
+                                    double lat) {
+        int best = -1;
+        double bestDist = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < coordinates.size(); i++) {
+            double dx = coordinates.getLon(i) - lon;
+            double dy = coordinates.getLat(i) - lat;
+            double d = dx * dx + dy * dy;
+            if (d < bestDist) {
+                bestDist = d;
+                best = i;
+            }
+        }
+        return best < 0 ? null : nodes[best];
+    }
+
+    /**
+     * Up to <code>limit</code> road nodes near a point, found through a grid over the road
+     * nodes instead of a scan. Callers hold the read lock.
+     *
+     * @param radius Farthest a node may be from the point, in the units of getDist().
+     * @return The nodes, nearest first.
+     */
+    public GraphNode[] near(double lon, double lat, double radius, int limit) {
+        NodeOrder order = nodeOrder;
+        int[] found = order.grid.nearest(lon, lat, limit,
+                i -> !Double.isNaN(order.coordinates.getLon(i)));
+        GraphNode[] candidates = new GraphNode[found.length + order.extra.size()];
+        int n = 0;
+        for (int i : found) {
+            candidates[n++] = order.nodes[i];
+        }
+        if (!order.extra.isEmpty()) {
+            for (GraphNode node : order.extra) {
+                candidates[n++] = node;
+            }
+            Arrays.sort(candidates, Comparator.comparingDouble((GraphNode node) ->
+                    order.grid.distance2(node.getLon(), node.getLat(), lon, lat)));
+            n = Math.min(n, limit);
+        }
+        int kept = 0;
+        GraphNode[] result = new GraphNode[n];
+        for (int i = 0; i < n; i++) {
+            GraphNode node = candidates[i];
+            if (MapServer.getDist(lon, lat, node.getLon(), node.getLat()) <= radius) {
+                result[kept++] = node;
+            }
+        }
+        return Arrays.copyOf(result, kept);
+    }
+
+    /**
+     * Road nodes and their coordinates in parallel arrays, in Hilbert order, with a grid over
+     * them for lookups around a point. Edits do not re-sort them: a node that moves or leaves
+     * the road graph has its slot cleared to NaN coordinates, which lookups pass over, and a
+     * node that moves or joins it goes on a short unsorted list that lookups scan as well.
+     * Edits hold the write lock and lookups the read lock, so neither sees the other halfway.
+     */
+    private static class NodeOrder {
+        /** Fewest cleared slots and unsorted nodes that justify laying the nodes out again. */
+        private static final int MIN_SLACK = 1024;
+
+        private final GraphNode[] nodes;
+        private final Locations coordinates;
+        private final PlaceGrid grid;
+        /** Road nodes that are not, or no longer, where their slot says. */
+        private final Set<GraphNode> extra = newNodeSet();
+        private int cleared;
+
+        NodeOrder(Collection<GraphNode> roadNodes) {
+            GraphNode[] all = roadNodes.toArray(new GraphNode[roadNodes.size()]);
+            double[] lons = new double[all.length];
+            double[] lats = new double[all.length];
+            for (int i = 0; i < all.length; i++) {
+                lons[i] = all[i].getLon();
+                lats[i] = all[i].getLat();
+            }
+            int[] order = Hilbert.order(lons, lats, all.length);
+            nodes = new GraphNode[all.length];
+            coordinates = new Locations();
+            for (int i = 0; i < order.length; i++) {
+                nodes[i] = all[order[i]];
+                nodes[i].setOrderIndex(i);
+                coordinates.add(nodes[i].getID(), lons[order[i]], lats[order[i]], null);
+            }
+            coordinates.trim();
+            grid = new PlaceGrid(coordinates);
+        }
+
+        /**
+         * Bring the order up to date with edits to some nodes, each of which is either still
+         * one of <code>roadNodes</code> or has left the graph.
+         *
+         * @return Whether the order is still compact enough to keep; if not, the caller lays
+         * the nodes out afresh, so that the cost of sorting is spread over many edits.
+         */
+        boolean update(Set<GraphNode> edited, HashMap<Long, GraphNode> roadNodes) {
+            for (GraphNode node : edited) {
+                boolean onRoad = roadNodes.get(node.getID()) == node;
+                int i = node.getOrderIndex();
+                boolean placed = i >= 0 && i < nodes.length && nodes[i] == node
+                        && !Double.isNaN(coordinates.getLon(i));
+                if (placed && onRoad && coordinates.getLon(i) == node.getLon()
+                        && coordinates.getLat(i) == node.getLat()) {
+                    continue;
+                }
+                if (placed) {
+                    coordinates.setLocation(i, Double.NaN, Double.NaN);
+                    cleared++;
+                }
+                if (onRoad) {
+                    extra.add(node);
+                } else {
+                    extra.remove(node);
+                }
+            }
+            return cleared + extra.size() <= Math.max(MIN_SLACK, nodes.length / 16);
+        }
+    }
+
+    /**
+     * @return The named nodes of the map, independent of the road graph.
+     */
+    public Locations getLocations() {
+        return locations;
+    }
+
+    public ContractedGraph getContractedGraph() {
+        return contracted;
+    }
 }
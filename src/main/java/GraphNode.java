@@ -1,21 +1,23 @@
 import java.util.HashSet;
 
-public class GraphNode implements Comparable<GraphNode> {
+public class GraphNode {
     private long id;
     private double lon;
     private double lat;
     private HashSet<Connection> connectionSet;
-    private GraphNode prev;
-    private double distToCurr;
-    private double priority;
+    private int junction;
+    private ChainEdge chain;
+    private int chainPosition;
+    private int component;
+    private int orderIndex;
 
     public GraphNode(long id, double lon, double lat) {
         this.id = id;
         this.lon = lon;
         this.lat = lat;
         this.connectionSet = new HashSet<Connection>();
-        this.distToCurr = 0;
-        this.priority = 0;
+        this.junction = -1;
+        this.orderIndex = -1;
     }
 
     public int hashCode() {
@@ -54,42 +56,63 @@ public class GraphNode implements Comparable<GraphNode> {
         return lat;
     }
 
+    public void setLocation(double newlon, double newlat) {
+        lon = newlon;
+        lat = newlat;
+    }
+
     public HashSet<Connection> getConnectionSet() {
         return connectionSet;
     }
 
-    public GraphNode getPrev() {
-        return prev;
+    /**
+     * @return This node's index among the junctions of the ContractedGraph, or -1 if the node
+     * lies in the middle of a chain.
+     */
+    public int getJunction() {
+        return junction;
     }
 
-    public double getDistToCurr() {
-        return distToCurr;
+    /**
+     * @return The contracted edge this node lies inside of, or null for junctions.
+     */
+    public ChainEdge getChain() {
+        return chain;
     }
 
-    public double getPriority() {
-        return priority;
+    public int getChainPosition() {
+        return chainPosition;
     }
 
-    public void setPrev(GraphNode newprev) {
-        prev = newprev;
+    /**
+     * @return The id of the connected component this node belongs to, as labeled by GraphDB.
+     */
+    public int getComponent() {
+        return component;
     }
 
-    public void setDistToCurr(double newdist) {
-        distToCurr = newdist;
+    /**
+     * @return Where GraphDB last laid this node out in its Hilbert order of road nodes, or -1
+     * if it never has.
+     */
+    public int getOrderIndex() {
+        return orderIndex;
     }
 
-    public void setPriority(double newprio) {
-        priority = newprio;
+    public void setOrderIndex(int neworderindex) {
+        orderIndex = neworderindex;
     }
 
-    @Override
-    public int compareTo(GraphNode other) {
-        if (this.priority < other.priority) {
-            return -1;
-        }
-        if (this.priority > other.priority) {
-            return 1;
-        }
-        return 0;
+    public void setComponent(int newcomponent) {
+        component = newcomponent;
+    }
+
+    public void setJunction(int newjunction) {
+        junction = newjunction;
+    }
+
+    public void setChain(ChainEdge newchain, int position) {
+        chain = newchain;
+        chainPosition = position;
     }
 }
@@ -0,0 +1,69 @@
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An input stream that fails once more than a given number of bytes are read from it, so a
+ * request body that does not declare its length still cannot grow without bound.
+ */
+public class LimitedInputStream extends FilterInputStream {
+    /**
+     * Thrown by a read past the limit.
+     */
+    public static class TooLarge extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public TooLarge(long limit) {
+            super("more than " + limit + " bytes");
+        }
+    }
+
+    private final long limit;
+    private long remaining;
+
+    public LimitedInputStream(InputStream in, long limit) {
+        super(in);
+        this.limit = limit;
+        this.remaining = limit;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) {
+            count(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if (n > 0) {
+            count(n);
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        count(skipped);
+        return skipped;
+    }
+
+    /**
+     * Marks would let bytes be read twice but counted once; they are not offered.
+     */
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private void count(long n) throws TooLarge {
+        remaining -= n;
+        if (remaining < 0) {
+            throw new TooLarge(limit);
+        }
+    }
+}
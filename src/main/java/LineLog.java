@@ -0,0 +1,79 @@
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An append-only text log written by a background thread, so request threads never wait on
+ * file I/O. Lines are queued in a bounded buffer; if the writer falls behind, new lines are
+ * dropped and counted rather than slowing requests down. The writer starts with the first
+ * line and flushes whenever the queue runs dry.
+ */
+public class LineLog {
+    private final String path;
+    private final BlockingQueue<String> pending = new ArrayBlockingQueue<String>(4096);
+    private final LongAdder dropped = new LongAdder();
+    private volatile Thread writer;
+
+    public LineLog(String path) {
+        this.path = path;
+    }
+
+    /**
+     * Queue one line, without its line terminator.
+     */
+    public void append(String line) {
+        if (!pending.offer(line)) {
+            dropped.increment();
+        }
+        if (writer == null) {
+            startWriter();
+        }
+    }
+
+    /**
+     * @return Lines lost because the writer fell behind.
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    private synchronized void startWriter() {
+        if (writer != null) {
+            return;
+        }
+        Thread t = new Thread(this::writeLoop, "log-" + path);
+        t.setDaemon(true);
+        t.start();
+        writer = t;
+    }
+
+    private void writeLoop() {
+        ArrayList<String> batch = new ArrayList<String>();
+        try (Writer out = new BufferedWriter(new FileWriter(path, true))) {
+            while (true) {
+                String line = pending.poll(1, TimeUnit.SECONDS);
+                if (line == null) {
+                    continue;
+                }
+                batch.add(line);
+                pending.drainTo(batch);
+                for (String l : batch) {
+                    out.write(l);
+                    out.write('\n');
+                }
+                batch.clear();
+                out.flush();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
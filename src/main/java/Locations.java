@@ -0,0 +1,63 @@
+import java.util.Arrays;
+
+/**
+ * The named OSM nodes of the map (shops, parks, stops, ...), in the order they appear in the
+ * OSM file. Kept in parallel primitive arrays, apart from the routing GraphNodes, so points of
+ * interest do not inflate the road graph.
+ */
+public class Locations {
+    private long[] ids = new long[256];
+    private double[] lons = new double[256];
+    private double[] lats = new double[256];
+    private String[] names = new String[256];
+    private int size;
+
+    public void add(long id, double lon, double lat, String name) {
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, size * 2);
+            lons = Arrays.copyOf(lons, size * 2);
+            lats = Arrays.copyOf(lats, size * 2);
+            names = Arrays.copyOf(names, size * 2);
+        }
+        ids[size] = id;
+        lons[size] = lon;
+        lats[size] = lat;
+        names[size] = name;
+        size++;
+    }
+
+    /**
+     * Release the slack left over from growing the arrays. Call once loading is done.
+     */
+    public void trim() {
+        ids = Arrays.copyOf(ids, size);
+        lons = Arrays.copyOf(lons, size);
+        lats = Arrays.copyOf(lats, size);
+        names = Arrays.copyOf(names, size);
+    }
+
+    public void setLocation(int i, double lon, double lat) {
+        lons[i] = lon;
+        lats[i] = lat;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getID(int i) {
+        return ids[i];
+    }
+
+    public double getLon(int i) {
+        return lons[i];
+    }
+
+    public double getLat(int i) {
+        return lats[i];
+    }
+
+    public String getName(int i) {
+        return names[i];
+    }
+}
@@ -6,9 +6,6 @@ import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 
-import java.util.HashMap;
-import java.util.ArrayList;
-
 /**
  * Parses OSM XML files using an XML SAX parser. Used to construct the graph of roads for
  * pathfinding, under some constraints.
@@ -18,6 +15,12 @@ import java.util.ArrayList;
  * <a href="http://wiki.openstreetmap.org/wiki/Node">the node XML element</a>,
  * and the java
  * <a href="https://docs.oracle.com/javase/tutorial/jaxp/sax/parsing.html">SAX parser tutorial</a>.
+ * <p>
+ * The file is read twice. The way pass records the node ids referenced by allowed highway ways;
+ * the node pass then keeps coordinates only for those ids. Nodes that are not on a road are
+ * never materialized. The node pass also collects every node with a name tag into the
+ * graph's Locations.
+ * </p>
  *
  * @author Alan Yao
  */
@@ -28,18 +31,42 @@ public class MapDBHandler extends DefaultHandler {
      * roads, but in practice we walk all over them with such impunity that we forget cars can
      * actually drive on them.
      */
-    private static final Set<String> ALLOWED_HIGHWAY_TYPES = new HashSet<>(Arrays.asList
+    static final Set<String> ALLOWED_HIGHWAY_TYPES = new HashSet<>(Arrays.asList
             ("motorway", "trunk", "primary", "secondary", "tertiary", "unclassified",
                     "residential", "living_street", "motorway_link", "trunk_link", "primary_link",
                     "secondary_link", "tertiary_link"));
     private String activeState = "";
     private final GraphDB g;
-    private HashMap<Long, GraphNode> gNodes;
-    private ArrayList<Long> gRefs;
+    private boolean nodePass;
+    private final RoadNodeIndex roadNodes = new RoadNodeIndex();
+    private final RoadWays roadWays = new RoadWays();
+    private long wayID;
+    private long[] wayRefs = new long[64];
+    private int wayRefCount;
+    private boolean wayIsRoad;
+    private long nodeID;
+    private double nodeLon;
+    private double nodeLat;
 
     public MapDBHandler(GraphDB g) {
         this.g = g;
-        this.gNodes = g.getNodes();
+    }
+
+    /**
+     * Switch from the way pass to the node pass. Must be called between the two parses.
+     */
+    public void startNodePass() {
+        roadNodes.freeze();
+        nodePass = true;
+        activeState = "";
+    }
+
+    public RoadNodeIndex getRoadNodes() {
+        return roadNodes;
+    }
+
+    public RoadWays getRoadWays() {
+        return roadWays;
     }
 
     /**
@@ -62,48 +89,43 @@ public class MapDBHandler extends DefaultHandler {
     @Override
     public void startElement(String uri, String localName, String qName, Attributes attributes)
             throws SAXException {
-        if (qName.equals("node")) {
-            activeState = "node";
-            GraphNode graphnode = new GraphNode(Long.parseLong(attributes.getValue("id")), 
-                Double.parseDouble(attributes.getValue("lon")), 
-                    Double.parseDouble(attributes.getValue("lat")));
-            gNodes.put(Long.parseLong(attributes.getValue("id")), graphnode);
-        } else if (qName.equals("way")) {
-            activeState = "way";
-            gRefs = new ArrayList<Long>();
-        } else if (activeState.equals("way") && qName.equals("nd")) {
-            gRefs.add(Long.parseLong(attributes.getValue("ref")));
-        } else if (activeState.equals("way") && qName.equals("tag")) {
-            String k = attributes.getValue("k");
-            String v = attributes.getValue("v");
-            if (k.equals("highway") && ALLOWED_HIGHWAY_TYPES.contains(v)) {
-                for (int i = 0; i < gRefs.size() - 1; i++) {
-                    Connection cxn1 = new Connection(gNodes.get(gRefs.get(i)), 
-                        gNodes.get(gRefs.get(i + 1)));
-                    Connection cxn2 = new Connection(gNodes.get(gRefs.get(i + 1)), 
-                        gNodes.get(gRefs.get(i)));
-                    gNodes.get(gRefs.get(i)).getConnectionSet().add(cxn1);
-                    gNodes.get(gRefs.get(i + 1)).getConnectionSet().add(cxn2);
+        if (nodePass) {
+            if (qName.equals("node")) {
+                activeState = "node";
+                nodeID = Long.parseLong(attributes.getValue("id"));
+                nodeLon = Double.parseDouble(attributes.getValue("lon"));
+                nodeLat = Double.parseDouble(attributes.getValue("lat"));
+                int index = roadNodes.indexOf(nodeID);
+                if (index >= 0) {
+                    roadNodes.setCoordinates(index, nodeLon, nodeLat);
                 }
+            } else if (qName.equals("way") || qName.equals("relation")) {
+                activeState = qName;
+            } else if (activeState.equals("node") && qName.equals("tag")
+                    && attributes.getValue("k").equals("name")) {
+                g.getLocations().add(nodeID, nodeLon, nodeLat, attributes.getValue("v"));
             }
+            return;
         }
-        
-        /* Some example code on how you might begin to parse XML files. */
-        /*
-        if (qName.equals("node")) {
-            activeState = "node";
-        } else if (qName.equals("way")) {
+        if (qName.equals("way")) {
             activeState = "way";
-//            System.out.println("Beginning a way...");
+            wayID = Long.parseLong(attributes.getValue("id"));
+            wayRefCount = 0;
+            wayIsRoad = false;
+        } else if (qName.equals("node") || qName.equals("relation")) {
+            activeState = qName;
+        } else if (activeState.equals("way") && qName.equals("nd")) {
+            if (wayRefCount == wayRefs.length) {
+                wayRefs = Arrays.copyOf(wayRefs, wayRefCount * 2);
+            }
+            wayRefs[wayRefCount++] = Long.parseLong(attributes.getValue("ref"));
         } else if (activeState.equals("way") && qName.equals("tag")) {
             String k = attributes.getValue("k");
             String v = attributes.getValue("v");
-//            System.out.println("Tag with k=" + k + ", v=" + v + ".");
-        } else if (activeState.equals("node") && qName.equals("tag") && attributes.getValue("k")
-                .equals("name")) {
-//            System.out.println("Node with name: " + attributes.getValue("v"));
+            if (k.equals("highway") && ALLOWED_HIGHWAY_TYPES.contains(v)) {
+                wayIsRoad = true;
+            }
         }
-        */
     }
 
     /**
@@ -121,8 +143,14 @@ public class MapDBHandler extends DefaultHandler {
      */
     @Override
     public void endElement(String uri, String localName, String qName) throws SAXException {
-        if (qName.equals("way")) {
-            gRefs = null;
+        if (!nodePass && qName.equals("way")) {
+            if (wayIsRoad) {
+                roadWays.add(wayID, wayRefs, wayRefCount);
+                for (int i = 0; i < wayRefCount; i++) {
+                    roadNodes.add(wayRefs[i]);
+                }
+            }
+            activeState = "";
         }
     }
 
@@ -0,0 +1,262 @@
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.function.Consumer;
+
+/**
+ * Snaps a stream of GPS points to road nodes with a hidden Markov model, decoded by Viterbi
+ * as the points arrive.
+ * <p>
+ * The hidden states of a point are the road nodes within <code>radius</code> of it. A node is
+ * as likely as a normal distribution of GPS noise makes its distance from the point, and a
+ * move between the nodes of consecutive points is as likely as the road distance between them
+ * is close to the straight distance between the points, falling off exponentially. Road
+ * distances come from one bounded Dijkstra search per node of the previous point, so a
+ * transition that would need a long detour is never searched out in full.
+ * </p>
+ * <p>
+ * Only the last <code>lag</code> points are kept. Once a point falls out of that window, its
+ * node is read off the best path so far and handed on, and is not revised later, so memory
+ * stays the same however long the trace. If no node of a point can be reached from any node
+ * of the one before, the window is flushed and decoding starts over from that point. Points
+ * with no node in range are passed on unmatched.
+ * </p>
+ */
+public class MapMatcher {
+    /**
+     * Defaults, in meters: the standard deviation of GPS noise, the scale of the difference
+     * between road and straight distance, and how far from a point its nodes may be. Also how
+     * many nodes to consider per point and how many points to keep undecided.
+     */
+    public static final double SIGMA_METERS =
+            Double.parseDouble(System.getProperty("bearmaps.match.sigmaMeters", "10"));
+    public static final double BETA_METERS =
+            Double.parseDouble(System.getProperty("bearmaps.match.betaMeters", "20"));
+    public static final double RADIUS_METERS =
+            Double.parseDouble(System.getProperty("bearmaps.match.radiusMeters", "50"));
+    public static final int CANDIDATES = Integer.getInteger("bearmaps.match.candidates", 8);
+    public static final int LAG = Integer.getInteger("bearmaps.match.lag", 8);
+    /** Distances on the graph are in degrees; this is a degree of latitude. */
+    public static final double METERS_PER_DEGREE = 111320;
+
+    private final GraphDB graph;
+    private final double sigma;
+    private final double beta;
+    private final double radius;
+    private final int candidates;
+    private final int lag;
+    private final ArrayDeque<Step> window = new ArrayDeque<Step>();
+    /** The newest point that has nodes, which transitions are taken from. */
+    private Step last;
+    private long revision;
+    private int count;
+
+    public MapMatcher(GraphDB graph) {
+        this(graph, SIGMA_METERS, BETA_METERS, RADIUS_METERS, CANDIDATES, LAG);
+    }
+
+    public MapMatcher(GraphDB graph, double sigmaMeters, double betaMeters, double radiusMeters,
+                      int candidates, int lag) {
+        this.graph = graph;
+        this.sigma = sigmaMeters / METERS_PER_DEGREE;
+        this.beta = betaMeters / METERS_PER_DEGREE;
+        this.radius = radiusMeters / METERS_PER_DEGREE;
+        this.candidates = Math.max(1, candidates);
+        this.lag = Math.max(0, lag);
+    }
+
+    /**
+     * Take the next point of the trace. Points whose node is settled by it are handed to
+     * <code>out</code>, in trace order. Holds the graph's read lock while it works; if the
+     * graph was edited since the previous point, the window is flushed first.
+     */
+    public void add(double lon, double lat, Consumer<Match> out) {
+        graph.getLock().readLock().lock();
+        try {
+            if (graph.getRevision() != revision) {
+                flush(out);
+                revision = graph.getRevision();
+            }
+            Step step = new Step(count++, lon, lat, graph.near(lon, lat, radius, candidates));
+            if (step.nodes.length > 0 && !(last != null && advance(last, step))) {
+                flush(out);
+                for (int i = 0; i < step.nodes.length; i++) {
+                    step.score[i] = emission(step, i);
+                    step.back[i] = -1;
+                }
+            }
+            window.addLast(step);
+            if (step.nodes.length > 0) {
+                last = step;
+            }
+            while (window.size() > lag) {
+                emitOldest(out);
+            }
+        } finally {
+            graph.getLock().readLock().unlock();
+        }
+    }
+
+    /**
+     * Decide every point still in the window, at the end of the trace.
+     */
+    public void finish(Consumer<Match> out) {
+        flush(out);
+    }
+
+    /**
+     * @return Points taken so far.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * One Viterbi step from the nodes of <code>prev</code> to those of <code>step</code>.
+     *
+     * @return Whether any node of step can be reached.
+     */
+    private boolean advance(Step prev, Step step) {
+        double straight = MapServer.getDist(prev.lon, prev.lat, step.lon, step.lat);
+        double bound = 2 * straight + 2 * radius;
+        ContractedGraph contracted = graph.getContractedGraph();
+        Arrays.fill(step.score, Double.NEGATIVE_INFINITY);
+        boolean reached = false;
+        for (int a = 0; a < prev.nodes.length; a++) {
+            if (prev.score[a] == Double.NEGATIVE_INFINITY) {
+                continue;
+            }
+            double[] road = contracted.distances(prev.nodes[a], step.nodes, bound);
+            for (int b = 0; b < step.nodes.length; b++) {
+                if (road[b] == Double.POSITIVE_INFINITY) {
+                    continue;
+                }
+                double score = prev.score[a] - Math.abs(road[b] - straight) / beta;
+                if (score > step.score[b]) {
+                    step.score[b] = score;
+                    step.back[b] = a;
+                    reached = true;
+                }
+            }
+        }
+        if (!reached) {
+            return false;
+        }
+        /* Keep scores near zero over arbitrarily long traces. */
+        double best = Double.NEGATIVE_INFINITY;
+        for (int b = 0; b < step.nodes.length; b++) {
+            step.score[b] += emission(step, b);
+            best = Math.max(best, step.score[b]);
+        }
+        for (int b = 0; b < step.nodes.length; b++) {
+            step.score[b] -= best;
+        }
+        return true;
+    }
+
+    /**
+     * @return The log likelihood, up to a constant, of seeing the point if node i is where the
+     * vehicle was.
+     */
+    private double emission(Step step, int i) {
+        GraphNode node = step.nodes[i];
+        double d = MapServer.getDist(step.lon, step.lat, node.getLon(), node.getLat()) / sigma;
+        return -0.5 * d * d;
+    }
+
+    /**
+     * Hand on the oldest point in the window with its node on the best path so far.
+     */
+    private void emitOldest(Consumer<Match> out) {
+        int chosen = -1;
+        Iterator<Step> newestFirst = window.descendingIterator();
+        while (newestFirst.hasNext()) {
+            Step step = newestFirst.next();
+            if (step.nodes.length == 0) {
+                continue;
+            }
+            chosen = chosen < 0 ? best(step) : chosen;
+            if (newestFirst.hasNext()) {
+                chosen = step.back[chosen];
+            }
+        }
+        Step oldest = window.pollFirst();
+        out.accept(new Match(oldest.index, oldest.lon, oldest.lat,
+                oldest.nodes.length == 0 ? null : oldest.nodes[chosen]));
+    }
+
+    private void flush(Consumer<Match> out) {
+        while (!window.isEmpty()) {
+            emitOldest(out);
+        }
+        last = null;
+    }
+
+    private static int best(Step step) {
+        int best = 0;
+        for (int i = 1; i < step.score.length; i++) {
+            if (step.score[i] > step.score[best]) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * A point of the trace with its candidate nodes, their Viterbi scores, and for each the
+     * candidate of the previous point with nodes on its best path.
+     */
+    private static class Step {
+        private final int index;
+        private final double lon;
+        private final double lat;
+        private final GraphNode[] nodes;
+        private final double[] score;
+        private final int[] back;
+
+        Step(int index, double lon, double lat, GraphNode[] nodes) {
+            this.index = index;
+            this.lon = lon;
+            this.lat = lat;
+            this.nodes = nodes;
+            this.score = new double[nodes.length];
+            this.back = new int[nodes.length];
+        }
+    }
+
+    /**
+     * A point of the trace and the road node it was matched to, or null if none was in range.
+     */
+    public static class Match {
+        private final int index;
+        private final double lon;
+        private final double lat;
+        private final GraphNode node;
+
+        Match(int index, double lon, double lat, GraphNode node) {
+            this.index = index;
+            this.lon = lon;
+            this.lat = lat;
+            this.node = node;
+        }
+
+        /**
+         * @return The position of the point in the trace, from 0.
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        public double getLon() {
+            return lon;
+        }
+
+        public double getLat() {
+            return lat;
+        }
+
+        public GraphNode getNode() {
+            return node;
+        }
+    }
+}
@@ -1,26 +1,54 @@
 import java.awt.Color;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.Base64;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.io.File;
+import java.io.InputStream;
 import javax.imageio.ImageIO;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URLDecoder;
 import java.awt.image.BufferedImage;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.PriorityQueue;
 import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.function.DoubleSupplier;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.BasicStroke;
 
 /* Maven is used to pull in these dependencies. */
 import com.google.gson.Gson;
+import org.eclipse.jetty.io.EndPoint;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletRequestWrapper;
+
+import spark.Route;
 
 import static spark.Spark.*;
 
@@ -47,6 +75,27 @@ public class MapServer {
      * HTTP failed response.
      */
     private static final int HALT_RESPONSE = 403;
+    /**
+     * HTTP response when the server is too busy to take a request.
+     */
+    private static final int SATURATED_RESPONSE = 503;
+    /**
+     * HTTP response when map data the request needs failed to load.
+     */
+    private static final int LOAD_FAILED_RESPONSE = 500;
+    /**
+     * HTTP response for a request that was cancelled, as nginx logs requests the client gave
+     * up on.
+     */
+    private static final int CANCELLED_RESPONSE = 499;
+    /**
+     * HTTP response for a request body past its size limit.
+     */
+    private static final int TOO_LARGE_RESPONSE = 413;
+    /**
+     * HTTP response for a request made again too soon.
+     */
+    private static final int RATE_LIMITED_RESPONSE = 429;
     /**
      * Route stroke information: typically roads are not more than 5px wide.
      */
@@ -82,10 +131,284 @@ public class MapServer {
      **/
     private static final String[] REQUIRED_ROUTE_REQUEST_PARAMS = {"start_lat", "start_lon",
         "end_lat", "end_lon"};
+    /**
+     * A search request that carries the client's viewport, as the raster request describes
+     * it, has its results ranked by distance to the viewport centre and truncated to
+     * <code>limit</code>.
+     **/
+    private static final String[] VIEWPORT_SEARCH_PARAMS = {"ullat", "ullon", "lrlat",
+        "lrlon"};
     /* Define any static variables here. Do not define any instance variables of MapServer. */
-    private static GraphDB g;
-    private static QuadTree qtree;
-    private static LinkedList<Long> sroute;
+    /**
+     * The regions being served, each with its own map data. Requests read a region's snapshot
+     * once and keep using what they got, so reload() can swap in a new one while they are still
+     * running. Requests are sent to a region by where they are on the map; see Regions.
+     */
+    private static final Regions REGIONS = Regions.fromProperties(new Region("berkeley",
+            OSM_DB_PATH, IMG_ROOT, ROOT_ULLON, ROOT_ULLAT, ROOT_LRLON, ROOT_LRLAT));
+    private static final AtomicBoolean RELOADING = new AtomicBoolean();
+    private static final ExecutorService RELOADER = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "map-reload");
+        t.setDaemon(true);
+        return t;
+    });
+    /**
+     * A region is reloaded over HTTP at most once per bearmaps.reload.minIntervalMillis, as a
+     * reload rebuilds all of its map data; RELOADED holds when each last was, by name.
+     */
+    private static final long RELOAD_INTERVAL_MILLIS =
+            Long.getLong("bearmaps.reload.minIntervalMillis", 60000);
+    private static final ConcurrentHashMap<String, Long> RELOADED = new ConcurrentHashMap<>();
+    private static volatile LinkedList<Long> sroute;
+    /**
+     * Rasters and routes run on their own bounded pools so a burst of either cannot take every
+     * web server thread from the cheap endpoints.
+     */
+    private static final int CPUS = Runtime.getRuntime().availableProcessors();
+    static final WorkerPool RASTER_POOL =
+            WorkerPool.fromProperties("raster", CPUS, 2 * CPUS, 10000);
+    private static final WorkerPool ROUTE_POOL =
+            WorkerPool.fromProperties("route", CPUS, 4 * CPUS, 5000);
+    /**
+     * Traces are matched on a pool of their own, as they are read, so a client that sends a
+     * long trace slowly holds one of its threads rather than a web server thread.
+     */
+    private static final WorkerPool MATCH_POOL =
+            WorkerPool.fromProperties("match", CPUS, CPUS, 60000);
+    /**
+     * Tiles, of TILE_SIZE squared pixels each, that rasters in flight may decode at once. Set
+     * in megapixels with bearmaps.raster.pixelBudget.
+     */
+    private static final int RASTER_TILE_BUDGET = Math.max(1,
+            Integer.getInteger("bearmaps.raster.pixelBudget", 256) * 1000000
+                    / (TILE_SIZE * TILE_SIZE));
+    private static final Semaphore RASTER_TILES = new Semaphore(RASTER_TILE_BUDGET);
+    /**
+     * Concurrent identical rasters and routes are computed once. A duplicate waits at most as
+     * long as its own pool would have let it run.
+     */
+    private static final SingleFlight<List<Object>, Raster> RASTER_FLIGHTS =
+            new SingleFlight<>(Long.getLong("bearmaps.raster.timeoutMillis", 10000));
+    private static final SingleFlight<List<Object>, List<Long>> ROUTE_FLIGHTS =
+            new SingleFlight<>(Long.getLong("bearmaps.route.timeoutMillis", 5000));
+    /**
+     * Route searches stop at their deadline, which a request can bring forward with a timeout
+     * parameter in milliseconds, and when superseded: a request that names its client with a
+     * client parameter cancels that client's previous request to the same endpoint.
+     */
+    private static final long ROUTE_DEADLINE_MILLIS =
+            Long.getLong("bearmaps.route.timeoutMillis", 5000);
+    /**
+     * Matching a trace stops when its client disconnects, or a second before the match pool
+     * would give up on it, so that the stream can end with an error line instead of being cut.
+     */
+    private static final long MATCH_DEADLINE_MILLIS =
+            Math.max(0, Long.getLong("bearmaps.match.timeoutMillis", 60000) - 1000);
+    private static final ConcurrentHashMap<String, Cancellation> ROUTE_CLIENTS =
+            new ConcurrentHashMap<>();
+    /**
+     * Routes that change map data. They need the token set with bearmaps.adminToken, sent as
+     * "Authorization: Bearer TOKEN", or with no token set a request from this machine; either
+     * way they turn away requests a browser sent from a page, and are not opened to other
+     * origins.
+     */
+    private static final Set<String> ADMIN_ROUTES =
+            new HashSet<>(Arrays.asList("/reload", "/osm_change"));
+    private static final String ADMIN_TOKEN = System.getProperty("bearmaps.adminToken", "");
+    /**
+     * Largest osmChange document taken, in bytes. It is parsed in full before it is applied.
+     */
+    private static final long CHANGE_MAX_BYTES =
+            Long.getLong("bearmaps.change.maxBytes", 16L << 20);
+    /**
+     * Timings and counts exposed at /metrics. Recording into them does not allocate.
+     */
+    private static final Metrics.Histogram RASTER_COLLECT = rasterStage("collect");
+    private static final Metrics.Histogram RASTER_DECODE = rasterStage("decode");
+    private static final Metrics.Histogram RASTER_COMPOSITE = rasterStage("composite");
+    private static final Metrics.Histogram RASTER_OVERLAY = rasterStage("route_overlay");
+    private static final Metrics.Histogram RASTER_ENCODE = rasterStage("png_encode");
+    private static final Metrics.Histogram RASTER_BASE64 = rasterStage("base64");
+    private static final Metrics.Histogram RASTER_JSON = rasterStage("json");
+    private static final Metrics.Histogram ROUTE_SNAP = Metrics.REGISTRY.histogram(
+            "bearmaps_route_snap_seconds", "Time to snap route endpoints to road nodes.", "");
+    private static final Metrics.Histogram ROUTE_SEARCH = Metrics.REGISTRY.histogram(
+            "bearmaps_route_search_seconds", "Time spent in A* over the junctions.", "");
+    private static final Metrics.Counter ROUTE_SETTLED = Metrics.REGISTRY.counter(
+            "bearmaps_route_settled_total", "Junctions settled by A* searches.", "");
+    private static final Metrics.Counter ROUTE_PUSHED = Metrics.REGISTRY.counter(
+            "bearmaps_route_pushed_total", "Heap insertions made by A* searches.", "");
+    private static final Metrics.Histogram ALTERNATIVES_SEARCH = Metrics.REGISTRY.histogram(
+            "bearmaps_alternatives_search_seconds",
+            "Time spent in the two searches behind an alternatives request.", "");
+    private static final Metrics.Counter ALTERNATIVES_SETTLED = Metrics.REGISTRY.counter(
+            "bearmaps_alternatives_settled_total",
+            "Junctions settled by alternatives searches.", "");
+    private static final Metrics.Counter ROUTE_CANCELLED = stoppedSearches("cancelled");
+    private static final Metrics.Counter ROUTE_TIMED_OUT = stoppedSearches("timed_out");
+    private static final Metrics.Histogram MATCH_POINT = Metrics.REGISTRY.histogram(
+            "bearmaps_match_point_seconds", "Time to take one point of a trace being matched.",
+            "");
+    private static final Metrics.Counter MATCH_MATCHED = matchedPoints("matched");
+    private static final Metrics.Counter MATCH_UNMATCHED = matchedPoints("unmatched");
+
+    /**
+     * Every request is logged here if bearmaps.accessLog names a file.
+     */
+    private static final LineLog ACCESS_LOG = System.getProperty("bearmaps.accessLog") == null
+            ? null : new LineLog(System.getProperty("bearmaps.accessLog"));
+
+    static {
+        registerGauges();
+    }
+
+    private static Metrics.Counter stoppedSearches(String reason) {
+        return Metrics.REGISTRY.counter("bearmaps_route_stopped_total",
+                "Route searches given up before they finished.", "reason=\"" + reason + "\"");
+    }
+
+    private static Metrics.Counter matchedPoints(String outcome) {
+        return Metrics.REGISTRY.counter("bearmaps_match_points_total",
+                "Trace points matched to the road graph; the rate is the matcher's throughput.",
+                "outcome=\"" + outcome + "\"");
+    }
+
+    private static Metrics.Histogram rasterStage(String stage) {
+        return Metrics.REGISTRY.histogram("bearmaps_raster_stage_seconds",
+                "Time spent in each stage of answering a raster request.",
+                "stage=\"" + stage + "\"");
+    }
+
+    /**
+     * Expose the sizes of the served data and the state of the pools, read at scrape time.
+     * Data sizes are those of the default region.
+     */
+    private static void registerGauges() {
+        Metrics m = Metrics.REGISTRY;
+        m.gauge("bearmaps_regions_loaded", "Regions whose map data is in memory.", "",
+            REGIONS::getLoadedCount);
+        m.gauge("bearmaps_snapshot_version", "Version of the map data being served.", "",
+            () -> getSnapshot() == null ? 0 : getSnapshot().getVersion());
+        m.gauge("bearmaps_graph_nodes", "Road nodes in the routing graph.", "",
+            ofGraph(g -> g.getNodes().size()));
+        m.gauge("bearmaps_graph_junctions", "Junctions in the contracted graph.", "",
+            ofGraph(g -> g.getContractedGraph().getLiveJunctionCount()));
+        m.gauge("bearmaps_graph_edges", "Chain edges in the contracted graph.", "",
+            ofGraph(g -> g.getContractedGraph().getEdgeCount()));
+        m.gauge("bearmaps_graph_components", "Connected components of the road graph.", "",
+            ofGraph(GraphDB::getComponentCount));
+        m.gauge("bearmaps_locations", "Named locations.", "",
+            ofIndex(i -> i.getLocations().size()));
+        m.gauge("bearmaps_prefix_trie_bytes", "Estimated heap used by the prefix index.", "",
+            ofIndex(i -> i.getPrefixTrie().memoryBytes()));
+        m.gauge("bearmaps_fuzzy_postings", "Entries in the trigram posting lists.", "",
+            ofIndex(i -> i.getFuzzyIndex().getPostingCount()));
+        m.gauge("bearmaps_raster_tiles_available", "Unused tiles of the raster pixel budget.",
+            "", RASTER_TILES::availablePermits);
+        for (WorkerPool pool : new WorkerPool[]{RASTER_POOL, ROUTE_POOL, MATCH_POOL}) {
+            String label = "pool=\"" + pool.getName() + "\"";
+            m.gauge("bearmaps_pool_in_flight", "Requests admitted to a worker pool.", label,
+                pool::getInFlight);
+            m.counter("bearmaps_pool_rejected_total", "Requests turned away with a 503.", label,
+                pool::getRejectedCount);
+        }
+        String[] kinds = {"raster", "route"};
+        SingleFlight<?, ?>[] flights = {RASTER_FLIGHTS, ROUTE_FLIGHTS};
+        for (int i = 0; i < kinds.length; i++) {
+            String label = "kind=\"" + kinds[i] + "\"";
+            SingleFlight<?, ?> flight = flights[i];
+            m.counter("bearmaps_coalesce_leaders_total", "Computations started.", label,
+                flight::getLeaderCount);
+            m.counter("bearmaps_coalesce_shared_total",
+                "Requests that shared an identical request's result.", label,
+                flight::getSharedCount);
+            m.counter("bearmaps_coalesce_failures_total", "Shared computations that failed.",
+                label, flight::getFailureCount);
+            m.counter("bearmaps_coalesce_timeouts_total",
+                "Requests that gave up waiting on an identical request.", label,
+                flight::getTimeoutCount);
+        }
+    }
+
+    /**
+     * A gauge on the default region's road graph, reading 0 until the graph is loaded.
+     */
+    private static DoubleSupplier ofGraph(ToDoubleFunction<GraphDB> value) {
+        return () -> {
+            MapSnapshot snap = getSnapshot();
+            return snap == null || snap.getGraph() == null ? 0 : value.applyAsDouble(
+                    snap.getGraph());
+        };
+    }
+
+    /**
+     * A gauge on the default region's search index, reading 0 until the index is built.
+     */
+    private static DoubleSupplier ofIndex(ToDoubleFunction<SearchIndex> value) {
+        return () -> {
+            MapSnapshot snap = getSnapshot();
+            return snap == null || snap.getSearchIndex() == null ? 0 : value.applyAsDouble(
+                    snap.getSearchIndex());
+        };
+    }
+
+    /**
+     * Wrap a request handler that does its work on the request thread so it is traced.
+     */
+    private static Route traced(String endpoint, Route route) {
+        return (req, res) -> {
+            boolean tracing = Trace.begin(endpoint);
+            try {
+                return route.handle(req, res);
+            } finally {
+                if (tracing) {
+                    Trace.end();
+                }
+            }
+        };
+    }
+
+    /**
+     * Wrap a request handler so its latency is recorded under the endpoint's name, and the
+     * request written to the access log if there is one.
+     */
+    private static Route timed(String endpoint, Route route) {
+        Metrics.Histogram latency = Metrics.REGISTRY.histogram("bearmaps_request_seconds",
+                "Request latency by endpoint.", "endpoint=\"" + endpoint + "\"");
+        return (req, res) -> {
+            long start = System.nanoTime();
+            try {
+                return route.handle(req, res);
+            } catch (NotReady e) {
+                if (e.isFailed()) {
+                    res.status(LOAD_FAILED_RESPONSE);
+                    halt(LOAD_FAILED_RESPONSE, e.getMessage());
+                }
+                return unavailable(res, e.getMessage());
+            } finally {
+                long nanos = latency.since(start) - start;
+                if (ACCESS_LOG != null) {
+                    logAccess(req, res, nanos);
+                }
+            }
+        };
+    }
+
+    /**
+     * Append a request to the access log as tab-separated fields: time in epoch milliseconds,
+     * method, path with query string, status, and latency in microseconds. The load generator
+     * in bench/ can replay this file.
+     */
+    private static void logAccess(spark.Request req, spark.Response res, long nanos) {
+        StringBuilder line = new StringBuilder(160);
+        line.append(System.currentTimeMillis()).append('\t').append(req.requestMethod())
+                .append('\t').append(req.pathInfo());
+        if (req.queryString() != null) {
+            line.append('?').append(req.queryString());
+        }
+        line.append('\t').append(res.raw().getStatus()).append('\t').append(nanos / 1000);
+        ACCESS_LOG.append(line.toString());
+    }
 
     /**
      * Place any initialization statements that will be run before the server main loop here.
@@ -93,19 +416,144 @@ public class MapServer {
      * This is for testing purposes, and you may fail tests otherwise.
      **/
     public static void initialize() {
-        g = new GraphDB(OSM_DB_PATH);
-        Node root = new Node(ROOT_ULLON, ROOT_ULLAT, ROOT_LRLON, ROOT_LRLAT, 0, 0);
-        File imgdir = new File(IMG_ROOT);
-        qtree = new QuadTree(root, imgdir);
+        startInitialization();
+        REGIONS.getDefault().get();
+    }
+
+    /**
+     * Start loading the default region without waiting for it. Its tiles, road graph and
+     * search index are built concurrently, and each can be served as soon as it is published;
+     * until then requests that need it are answered 503.
+     *
+     * @return The default region's complete snapshot, when it is ready.
+     */
+    public static CompletableFuture<MapSnapshot> startInitialization() {
         sroute = new LinkedList<Long>();
+        return REGIONS.getDefault().start();
+    }
+
+    /**
+     * @return The map data of the default region, or null before initialize().
+     */
+    public static MapSnapshot getSnapshot() {
+        return REGIONS.getDefault().peek();
+    }
+
+    public static Regions getRegions() {
+        return REGIONS;
+    }
+
+    /**
+     * @return The region named by the request's region parameter, else the one holding the
+     * viewport it carries, else the default region.
+     */
+    private static Region regionOf(spark.Request req) {
+        String name = req.queryParams("region");
+        if (name != null) {
+            return namedRegion(name);
+        }
+        if (req.queryParams().contains("ullat")) {
+            HashMap<String, Double> box = getRequestParams(req, VIEWPORT_SEARCH_PARAMS);
+            return REGIONS.forBox(box.get("ullon"), box.get("ullat"), box.get("lrlon"),
+                    box.get("lrlat"));
+        }
+        return REGIONS.getDefault();
+    }
+
+    /**
+     * @return The region named by the region parameter of the request's query string, else the
+     * default region. For requests whose body is their input: servlet request parameters would
+     * read a form encoded body looking for the region, and leave nothing for the handler.
+     */
+    private static Region regionOfQuery(spark.Request req) throws IOException {
+        String query = req.queryString();
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                int eq = pair.indexOf('=');
+                if (eq >= 0 && URLDecoder.decode(pair.substring(0, eq), "UTF-8").equals("region")) {
+                    return namedRegion(URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+                }
+            }
+        }
+        return REGIONS.getDefault();
+    }
+
+    private static Region namedRegion(String name) {
+        Region region = REGIONS.get(name);
+        if (region == null) {
+            halt(HALT_RESPONSE, "Request failed - unknown region.");
+        }
+        return region;
+    }
+
+    /**
+     * Apply an osmChange document to the road graph of the default region.
+     */
+    public static void applyChange(InputStream in) throws Exception {
+        applyChange(REGIONS.getDefault(), in);
+    }
+
+    /**
+     * Apply an osmChange document to a region's road graph. The change lives only in memory:
+     * it is lost if the region is reloaded, or evicted and loaded again from disk.
+     */
+    public static void applyChange(Region region, InputStream in) throws Exception {
+        ready(region, MapSnapshot::getGraph, "road graph").getGraph().applyChange(in);
+    }
+
+    /**
+     * Reload the default region.
+     *
+     * @see #reload(Region)
+     */
+    public static boolean reload() {
+        return reload(REGIONS.getDefault());
+    }
+
+    /**
+     * Rebuild a region's graph and quadtree from disk in the background and publish them with a
+     * single reference swap. Requests already in flight finish against the snapshot they
+     * started with.
+     *
+     * @return false if a reload is already running.
+     */
+    public static boolean reload(Region region) {
+        if (!RELOADING.compareAndSet(false, true)) {
+            return false;
+        }
+        RELOADER.execute(() -> {
+            try {
+                MapSnapshot next = region.load();
+                region.publish(next);
+                System.out.println("Reloaded map data of " + region.getName() + ", version "
+                        + next.getVersion());
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            } finally {
+                RELOADING.set(false);
+            }
+        });
+        return true;
     }
 
     public static void main(String[] args) {
-        initialize();
+        startInitialization().whenComplete((snap, e) -> {
+            if (e != null) {
+                e.printStackTrace();
+            } else {
+                System.out.println("Map data loaded, version " + snap.getVersion());
+            }
+        });
         staticFileLocation("/page");
+        /* Define the viewport streaming channel. Web sockets must be mapped before any route. */
+        webSocket("/stream", ViewportSocket.class);
         /* Allow for all origin requests (since this is not an authenticated server, we do not
-         * care about CSRF).  */
+         * care about CSRF), except to the routes that change map data.  */
         before((request, response) -> {
+            if (ADMIN_ROUTES.contains(request.pathInfo())) {
+                requireAdmin(request, response);
+                return;
+            }
             response.header("Access-Control-Allow-Origin", "*");
             response.header("Access-Control-Request-Method", "*");
             response.header("Access-Control-Allow-Headers", "*");
@@ -113,52 +561,175 @@ public class MapServer {
 
         /* Define the raster endpoint for HTTP GET requests. I use anonymous functions to define
          * the request handlers. */
-        get("/raster", (req, res) -> {
+        get("/raster", timed("raster", (req, res) -> {
             HashMap<String, Double> params =
                     getRequestParams(req, REQUIRED_RASTER_REQUEST_PARAMS);
-            /* The png image is written to the ByteArrayOutputStream */
-            ByteArrayOutputStream os = new ByteArrayOutputStream();
-            /* getMapRaster() does almost all the work for this API call */
-            Map<String, Object> rasteredImgParams = getMapRaster(params, os);
-            /* On an image query success, add the image data to the response */
-            if (rasteredImgParams.containsKey("query_success")
-                    && (Boolean) rasteredImgParams.get("query_success")) {
-                String encodedImage = Base64.getEncoder().encodeToString(os.toByteArray());
-                rasteredImgParams.put("b64_encoded_image_data", encodedImage);
-            }
-            /* Encode response to Json */
-            Gson gson = new Gson();
-            return gson.toJson(rasteredImgParams);
-        });
+            return admit(RASTER_POOL, res, () -> {
+                /* The png image is written to the ByteArrayOutputStream */
+                ByteArrayOutputStream os = new ByteArrayOutputStream();
+                /* getMapRaster() does almost all the work for this API call */
+                Map<String, Object> rasteredImgParams = getMapRaster(params, os);
+                Trace.params(params);
+                long t = System.nanoTime();
+                /* On an image query success, add the image data to the response */
+                if (rasteredImgParams.containsKey("query_success")
+                        && (Boolean) rasteredImgParams.get("query_success")) {
+                    String encodedImage = Base64.getEncoder().encodeToString(os.toByteArray());
+                    rasteredImgParams.put("b64_encoded_image_data", encodedImage);
+                }
+                t = RASTER_BASE64.since(t);
+                Trace.phase("base64");
+                /* Encode response to Json */
+                Gson gson = new Gson();
+                String json = gson.toJson(rasteredImgParams);
+                RASTER_JSON.since(t);
+                Trace.phase("json");
+                return json;
+            });
+        }));
 
         /* Define the routing endpoint for HTTP GET requests. */
-        get("/route", (req, res) -> {
+        get("/route", timed("route", (req, res) -> {
             HashMap<String, Double> params =
                     getRequestParams(req, REQUIRED_ROUTE_REQUEST_PARAMS);
-            LinkedList<Long> route = findAndSetRoute(params);
-            return !route.isEmpty();
-        });
+            return cancellable(req, res, cancel -> !findAndSetRoute(params, cancel).isEmpty());
+        }));
+
+        /* Define the API endpoint for the shortest route and up to k - 1 alternatives. */
+        get("/alternatives", timed("alternatives", (req, res) -> {
+            HashMap<String, Double> params =
+                    getRequestParams(req, REQUIRED_ROUTE_REQUEST_PARAMS);
+            int k = (int) getOption(req, "k", ContractedGraph.ALTERNATIVES_K);
+            double stretch = getOption(req, "stretch", ContractedGraph.ALTERNATIVES_STRETCH);
+            double sharing = getOption(req, "sharing", ContractedGraph.ALTERNATIVES_SHARING);
+            return cancellable(req, res, cancel -> new Gson().toJson(
+                    findAlternatives(params, Math.max(1, k), stretch, sharing, cancel)));
+        }));
+
+        /* Define the API endpoint for snapping a GPS trace (POST body) to the road graph. */
+        post("/match", timed("match", (req, res) -> {
+            GraphDB graph = ready(regionOfQuery(req), MapSnapshot::getGraph, "road graph")
+                    .getGraph();
+            Cancellation cancel = new Cancellation(MATCH_DEADLINE_MILLIS, disconnected(req));
+            return admit(MATCH_POOL, res, () -> {
+                res.type("application/x-ndjson");
+                matchTrace(graph, req.raw().getInputStream(), res.raw().getOutputStream(),
+                        cancel);
+                return "";
+            });
+        }));
 
         /* Define the API endpoint for clearing the current route. */
-        get("/clear_route", (req, res) -> {
+        get("/clear_route", timed("clear_route", (req, res) -> {
             clearRoute();
             return true;
-        });
+        }));
+
+        /* Define the API endpoint for reloading the map data without a restart. */
+        post("/reload", timed("reload", (req, res) -> {
+            Region region = regionOfQuery(req);
+            long now = System.nanoTime();
+            Long last = RELOADED.putIfAbsent(region.getName(), now);
+            if (last != null) {
+                long wait = RELOAD_INTERVAL_MILLIS - (now - last) / 1000000;
+                if (wait > 0 || !RELOADED.replace(region.getName(), last, now)) {
+                    res.header("Retry-After", Long.toString(Math.max(1, (wait + 999) / 1000)));
+                    res.status(RATE_LIMITED_RESPONSE);
+                    halt(RATE_LIMITED_RESPONSE, "Request failed - " + region.getName()
+                            + " was reloaded too recently.");
+                }
+            }
+            return reload(region);
+        }));
+
+        /* Define the API endpoint for applying an osmChange document (POST body) in place. */
+        post("/osm_change", timed("osm_change", (req, res) -> {
+            Region region = regionOfQuery(req);
+            try {
+                applyChange(region, limitedBody(req, res, CHANGE_MAX_BYTES));
+            } catch (LimitedInputStream.TooLarge e) {
+                tooLarge(res, CHANGE_MAX_BYTES);
+            }
+            return true;
+        }));
+
+        /* Define the API endpoint for named places in a box */
+        get("/pois", timed("pois", traced("pois", (req, res) -> {
+            HashMap<String, Double> box = getRequestParams(req, VIEWPORT_SEARCH_PARAMS);
+            int limit = getLimit(req, SearchIndex.POI_LIMIT);
+            SearchIndex index = ready(regionOf(req), MapSnapshot::getSearchIndex, "search index")
+                    .getSearchIndex();
+            Trace.params(box);
+            int[] found = index.within(box.get("ullon"), box.get("ullat"), box.get("lrlon"),
+                    box.get("lrlat"), limit);
+            Trace.phase("lookup");
+            Trace.note("results", found.length);
+            return index.getNameIndex().toJson(found);
+        })));
 
         /* Define the API endpoint for search */
-        get("/search", (req, res) -> {
+        get("/search", timed("search", traced("search", (req, res) -> {
             Set<String> reqParams = req.queryParams();
             String term = req.queryParams("term");
+            Trace.tag("term", term);
             Gson gson = new Gson();
             /* Search for actual location data. */
             if (reqParams.contains("full")) {
-                List<Map<String, Object>> data = getLocations(term);
-                return gson.toJson(data);
+                SearchIndex index = ready(regionOf(req), MapSnapshot::getSearchIndex,
+                        "search index").getSearchIndex();
+                NameIndex names = index.getNameIndex();
+                if (reqParams.contains("ullat")) {
+                    HashMap<String, Double> viewport =
+                            getRequestParams(req, VIEWPORT_SEARCH_PARAMS);
+                    double lon = (viewport.get("ullon") + viewport.get("lrlon")) / 2;
+                    double lat = (viewport.get("ullat") + viewport.get("lrlat")) / 2;
+                    int limit = getLimit(req, SearchIndex.NEARBY_LIMIT);
+                    if (reqParams.contains("fuzzy")) {
+                        return names.toJson(index.rank(index.getFuzzyIndex().search(term),
+                                lon, lat, limit));
+                    }
+                    return names.toJson(index.nearest(term, lon, lat, limit));
+                }
+                if (reqParams.contains("fuzzy")) {
+                    return names.toJson(index.getFuzzyIndex().search(term));
+                }
+                return names.toJson(names.lookup(term));
             } else {
-                /* Search for prefix matching strings. */
-                List<String> matches = getLocationsByPrefix(term);
+                /* Search for the most common prefix matching strings. */
+                List<String> matches = ready(regionOf(req), MapSnapshot::getSearchIndex,
+                        "search index").getSearchIndex().getPrefixTrie()
+                        .complete(term, SearchIndex.AUTOCOMPLETE_K);
                 return gson.toJson(matches);
             }
+        })));
+
+        /* Define the liveness endpoint: the server is up and answering requests. */
+        get("/health", (req, res) -> "ok");
+
+        /* Define the readiness endpoint: 200 once the default region is fully loaded, 503
+         * until then, and 500 while a part that failed to load waits to be tried again. The
+         * body tells which parts are being served already, and why any failed. */
+        get("/ready", (req, res) -> {
+            Region region = REGIONS.getDefault();
+            MapSnapshot snap = region.current();
+            Map<String, String> failures = region.getFailures();
+            HashMap<String, Object> parts = new HashMap<>();
+            parts.put("tiles", snap != null && snap.getQuadTree() != null);
+            parts.put("routing", snap != null && snap.getGraph() != null);
+            parts.put("search", snap != null && snap.getSearchIndex() != null);
+            if (!failures.isEmpty()) {
+                parts.put("failed", failures);
+            }
+            res.type("application/json");
+            res.status(snap != null && snap.isComplete() ? 200
+                    : failures.isEmpty() ? SATURATED_RESPONSE : LOAD_FAILED_RESPONSE);
+            return new Gson().toJson(parts);
+        });
+
+        /* Define the metrics endpoint, in the Prometheus text format. */
+        get("/metrics", (req, res) -> {
+            res.type("text/plain; version=0.0.4");
+            return Metrics.REGISTRY.render();
         });
 
         /* Define map application redirect */
@@ -195,6 +766,208 @@ public class MapServer {
         return params;
     }
 
+    /**
+     * Run a request's work on a worker pool, or answer 503 with a Retry-After header at once
+     * if the pool or the raster pixel budget is saturated.
+     */
+    private static <T> T admit(WorkerPool pool, spark.Response res, Callable<T> work)
+            throws Exception {
+        long submitted = System.nanoTime();
+        try {
+            return pool.call(() -> {
+                boolean tracing = Trace.begin(pool.getName());
+                try {
+                    Trace.note("queued_us", (System.nanoTime() - submitted) / 1000);
+                    return work.call();
+                } finally {
+                    if (tracing) {
+                        Trace.end();
+                    }
+                }
+            });
+        } catch (WorkerPool.Overloaded e) {
+            return unavailable(res, e.getMessage());
+        }
+    }
+
+    /**
+     * Run a route request's work on the route pool with a Cancellation for its deadline, its
+     * client's next request and its client's connection. Work stopped at the deadline is
+     * answered like an overloaded pool; work cancelled is answered with CANCELLED_RESPONSE.
+     */
+    private static Object cancellable(spark.Request req, spark.Response res,
+                                      SingleFlight.Work<Object> work) throws Exception {
+        long timeout = (long) getOption(req, "timeout", ROUTE_DEADLINE_MILLIS);
+        Cancellation cancel = new Cancellation(Math.max(0, Math.min(timeout,
+                ROUTE_DEADLINE_MILLIS)), disconnected(req));
+        String client = req.queryParams("client") == null ? null
+                : req.pathInfo() + " " + req.queryParams("client");
+        if (client != null) {
+            Cancellation previous = ROUTE_CLIENTS.put(client, cancel);
+            if (previous != null) {
+                previous.cancel();
+            }
+        }
+        try {
+            return admit(ROUTE_POOL, res, () -> work.call(cancel));
+        } catch (Cancellation.Cancelled e) {
+            if (e.getReason() == Cancellation.Reason.TIMED_OUT) {
+                return unavailable(res, "Route search " + e.getMessage() + ".");
+            }
+            halt(CANCELLED_RESPONSE, "Route search cancelled.");
+            return null;
+        } finally {
+            if (client != null) {
+                ROUTE_CLIENTS.remove(client, cancel);
+            }
+        }
+    }
+
+    /**
+     * @return A test for whether the client of a request has closed its connection, as far as
+     * Jetty has noticed. Jetty notices when it next reads or writes the connection, or when
+     * the client resets it.
+     */
+    private static BooleanSupplier disconnected(spark.Request req) {
+        ServletRequest raw = req.raw();
+        while (raw instanceof ServletRequestWrapper) {
+            raw = ((ServletRequestWrapper) raw).getRequest();
+        }
+        if (!(raw instanceof org.eclipse.jetty.server.Request)) {
+            return () -> false;
+        }
+        EndPoint endPoint = ((org.eclipse.jetty.server.Request) raw).getHttpChannel()
+                .getEndPoint();
+        return () -> !endPoint.isOpen();
+    }
+
+    /**
+     * Answer HALT_RESPONSE unless the request may change map data: it carries the admin token,
+     * or no token is set and it comes from a loopback address. A request with an Origin header
+     * was sent by a browser on behalf of some page, and is refused either way.
+     */
+    private static void requireAdmin(spark.Request req, spark.Response res) throws IOException {
+        boolean allowed;
+        if (req.headers("Origin") != null) {
+            allowed = false;
+        } else if (!ADMIN_TOKEN.isEmpty()) {
+            String auth = req.headers("Authorization");
+            allowed = auth != null && MessageDigest.isEqual(
+                    auth.getBytes(StandardCharsets.UTF_8),
+                    ("Bearer " + ADMIN_TOKEN).getBytes(StandardCharsets.UTF_8));
+        } else {
+            allowed = req.ip() != null && InetAddress.getByName(req.ip()).isLoopbackAddress();
+        }
+        if (!allowed) {
+            res.status(HALT_RESPONSE);
+            halt(HALT_RESPONSE, "Request failed - not allowed to change map data.");
+        }
+    }
+
+    /**
+     * @return The body of a request, which fails with {@link LimitedInputStream.TooLarge} once
+     * more than maxBytes of it are read. A body declared longer is answered at once, with
+     * TOO_LARGE_RESPONSE.
+     */
+    private static InputStream limitedBody(spark.Request req, spark.Response res,
+                                           long maxBytes) throws IOException {
+        if (req.raw().getContentLengthLong() > maxBytes) {
+            tooLarge(res, maxBytes);
+        }
+        return new LimitedInputStream(req.raw().getInputStream(), maxBytes);
+    }
+
+    private static void tooLarge(spark.Response res, long maxBytes) {
+        res.status(TOO_LARGE_RESPONSE);
+        halt(TOO_LARGE_RESPONSE, "Request body is larger than " + maxBytes + " bytes.");
+    }
+
+    /**
+     * Answer 503 with a Retry-After header.
+     */
+    private static <T> T unavailable(spark.Response res, String message) {
+        res.header("Retry-After", Integer.toString(WorkerPool.RETRY_AFTER_SECONDS));
+        res.status(SATURATED_RESPONSE);
+        halt(SATURATED_RESPONSE, message);
+        return null;
+    }
+
+    /**
+     * Thrown when a request needs a part of a region's map data that is not loaded yet. Request
+     * handlers answer it with a 503, or a 500 if the part failed to load.
+     */
+    public static class NotReady extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private final boolean failed;
+
+        public NotReady(String message) {
+            this(message, false);
+        }
+
+        public NotReady(String message, boolean failed) {
+            super(message);
+            this.failed = failed;
+        }
+
+        /**
+         * @return Whether the part failed to load, rather than still loading.
+         */
+        public boolean isFailed() {
+            return failed;
+        }
+    }
+
+    /**
+     * @return The latest snapshot of a region, which has the given part loaded. Starts loading
+     * the region if it is not in memory.
+     * @throws NotReady if the part is not loaded yet, or failed to load.
+     */
+    private static MapSnapshot ready(Region region, Function<MapSnapshot, Object> part,
+                                     String name) {
+        MapSnapshot snap = REGIONS.snapshot(region);
+        if (snap == null || part.apply(snap) == null) {
+            String failure = region.getFailures().get(name);
+            if (failure != null) {
+                throw new NotReady("The " + name + " of " + region.getName()
+                        + " failed to load: " + failure, true);
+            }
+            throw new NotReady("The " + name + " of " + region.getName() + " is still loading.");
+        }
+        return snap;
+    }
+
+    /**
+     * @return An optional numeric parameter of a request, or <code>fallback</code> if it has
+     * none.
+     */
+    private static double getOption(spark.Request req, String name, double fallback) {
+        if (!req.queryParams().contains(name)) {
+            return fallback;
+        }
+        try {
+            return Double.parseDouble(req.queryParams(name));
+        } catch (NumberFormatException e) {
+            halt(HALT_RESPONSE, "Incorrect parameters - provide numbers.");
+            return fallback;
+        }
+    }
+
+    /**
+     * @return The <code>limit</code> parameter of a request, or <code>fallback</code> if it
+     * has none.
+     */
+    private static int getLimit(spark.Request req, int fallback) {
+        if (!req.queryParams().contains("limit")) {
+            return fallback;
+        }
+        try {
+            return Math.max(0, Integer.parseInt(req.queryParams("limit")));
+        } catch (NumberFormatException e) {
+            halt(HALT_RESPONSE, "Incorrect parameters - provide numbers.");
+            return fallback;
+        }
+    }
 
     /**
      * Handles raster API calls, queries for tiles and rasters the full image. <br>
@@ -233,9 +1006,17 @@ public class MapServer {
      */
 
     public static int getReqDepth(Map<String, Double> params) {
+        return getReqDepth(params, ROOT_LRLON - ROOT_ULLON);
+    }
+
+    /**
+     * The quadtree depth whose resolution first matches the request's, for a region whose root
+     * tile spans <code>rootWidth</code> degrees of longitude.
+     */
+    public static int getReqDepth(Map<String, Double> params, double rootWidth) {
         double qDPP = (params.get("lrlon") - params.get("ullon")) / params.get("w");
         int reqDepth = 0;
-        while ((ROOT_LRLON - ROOT_ULLON) / (Math.pow(2, reqDepth) * 256) > qDPP) {
+        while (rootWidth / (Math.pow(2, reqDepth) * 256) > qDPP) {
             reqDepth += 1;
         }
         return Math.min(reqDepth, 7);
@@ -311,16 +1092,133 @@ public class MapServer {
     }
 
     public static Map<String, Object> getMapRaster(Map<String, Double> params, OutputStream os) {
-        HashMap<String, Object> rasteredImageParams = new HashMap<>();
+        View view = view(params);
+        Raster raster = raster(view);
+        Trace.phase("render");
+        Trace.note("route_length", view.route == null ? 0 : view.route.size());
+
+        HashMap<String, Object> rasteredImageParams = new HashMap<>(raster.params);
+        if (raster.png != null) {
+            try {
+                os.write(raster.png);
+            } catch (IOException ioException) {
+                rasteredImageParams.remove("query_success");
+            }
+        }
+
+        return rasteredImageParams;
+    }
 
+    /**
+     * Resolve a raster request to the tiles it covers, on the latest snapshot of the region
+     * holding it, without composing anything.
+     *
+     * @throws NotReady if the region's tiles are still loading.
+     */
+    static View view(Map<String, Double> params) {
+        long start = System.nanoTime();
         ArrayList<Node> collection = new ArrayList<Node>();
+        Region region = REGIONS.forBox(params.get("ullon"), params.get("ullat"),
+                params.get("lrlon"), params.get("lrlat"));
+        MapSnapshot snap = ready(region, MapSnapshot::getQuadTree, "tiles");
 
-        int reqDepth = getReqDepth(params);
+        int reqDepth = getReqDepth(params, region.getLrlon() - region.getUllon());
 
-        collect(qtree.getNode(), params, reqDepth, collection);
+        collect(snap.getQuadTree().getNode(), params, reqDepth, collection);
 
         Collections.sort(collection);
+        RASTER_COLLECT.since(start);
+        Trace.phase("collect");
+        Trace.note("depth", reqDepth);
+        Trace.note("tiles", collection.size());
+        return new View(region, snap, collection, reqDepth,
+                snap.getGraph() == null ? null : sroute);
+    }
+
+    /**
+     * Compose a view. Identical views of the same data and route are composed once and shared.
+     */
+    static Raster raster(View view) {
+        return raster(view, Cancellation.NONE);
+    }
+
+    /**
+     * raster() for a view that may stop being wanted. A shared composition stops only once
+     * every request waiting on it is stopped.
+     *
+     * @throws Cancellation.Cancelled If the composition was stopped.
+     */
+    static Raster raster(View view, Cancellation cancel) {
+        return coalesce(RASTER_FLIGHTS, view.key, cancel,
+            shared -> renderRaster(view.snap, view.collection, view.depth, view.route, shared));
+    }
+
+    /**
+     * The tiles and route a raster request resolves to. Two views with equal keys compose to
+     * the same raster.
+     */
+    static class View {
+        private final MapSnapshot snap;
+        private final ArrayList<Node> collection;
+        private final int depth;
+        private final LinkedList<Long> route;
+        private final List<Object> key;
+
+        View(Region region, MapSnapshot snap, ArrayList<Node> collection, int depth,
+             LinkedList<Long> route) {
+            this.snap = snap;
+            this.collection = collection;
+            this.depth = depth;
+            this.route = route;
+            this.key = Arrays.asList(region.getName(), snap.getVersion(),
+                    route == null ? -1 : snap.getGraph().getRevision(), depth,
+                    collection.isEmpty() ? -1 : collection.get(0).getImg(),
+                    collection.isEmpty() ? -1 : collection.get(collection.size() - 1).getImg(),
+                    route);
+        }
+
+        List<Object> getKey() {
+            return key;
+        }
+    }
+
+    /**
+     * A composed raster: the response parameters and the encoded png, or no png if the tiles
+     * could not be read. Shared between coalesced requests, so never modified.
+     */
+    static class Raster {
+        private final Map<String, Object> params;
+        private final byte[] png;
+
+        Raster(Map<String, Object> params, byte[] png) {
+            this.params = params;
+            this.png = png;
+        }
+
+        Map<String, Object> getParams() {
+            return params;
+        }
+
+        byte[] getPng() {
+            return png;
+        }
+    }
 
+    /**
+     * Compose the tiles of a raster, sorted in row order, and draw the route over them.
+     * <code>cancel</code> is checked before each tile and every so many route segments.
+     */
+    private static Raster renderRaster(MapSnapshot snap, ArrayList<Node> collection,
+                                       int reqDepth, LinkedList<Long> route,
+                                       Cancellation cancel) {
+        HashMap<String, Object> rasteredImageParams = new HashMap<>();
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        byte[] png = null;
+        /* A raster larger than the whole budget may still run, alone. */
+        int tiles = Math.min(collection.size(), RASTER_TILE_BUDGET);
+        if (!RASTER_TILES.tryAcquire(tiles)) {
+            throw new WorkerPool.Overloaded("raster pixel budget exhausted");
+        }
         try {
             BufferedImage result = new BufferedImage(getCol(collection) * 256, getRow(collection)
                     * 256, BufferedImage.TYPE_INT_RGB);
@@ -328,14 +1226,22 @@ public class MapServer {
 
             int x = 0;
             int y = 0;
+            long decode = 0;
+            long composite = 0;
+            long t = System.nanoTime();
             for (Node node : collection) {
+                cancel.check();
                 BufferedImage bi;
                 if (node.getImg() == 0) {
-                    bi = ImageIO.read(new File(IMG_ROOT + "root.png"));
+                    bi = ImageIO.read(new File(snap.getImgRoot() + "root.png"));
                 } else {
-                    bi = ImageIO.read(new File(IMG_ROOT + node.getImg() + ".png"));
+                    bi = ImageIO.read(new File(snap.getImgRoot() + node.getImg() + ".png"));
                 }
+                long read = System.nanoTime();
+                decode += read - t;
                 gr.drawImage(bi, x, y, null);
+                t = System.nanoTime();
+                composite += t - read;
                 x += 256;
                 if (x >= result.getWidth()) {
                     x = 0;
@@ -343,32 +1249,55 @@ public class MapServer {
                 }
             }
 
+            RASTER_DECODE.record(decode);
+            RASTER_COMPOSITE.record(composite);
+            Trace.note("decode_us", decode / 1000);
+            Trace.note("composite_us", composite / 1000);
+
             BasicStroke stroke = new BasicStroke(MapServer.ROUTE_STROKE_WIDTH_PX, 
                 BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
             ((Graphics2D) gr).setStroke(stroke);
             gr.setColor(ROUTE_STROKE_COLOR);
 
-            if (sroute != null) {
-                for (long id : sroute) {
-                    if (g.getNodes().get(id).getPrev() != null) {
-                        double xDPP = (collection.get(collection.size() - 1).getBLON()
-                                - collection.get(0).getTLON()) / result.getWidth();
-                        double yDPP = (collection.get(0).getTLAT() 
+            if (route != null) {
+                snap.getGraph().getLock().readLock().lock();
+                try {
+                    double xDPP = (collection.get(collection.size() - 1).getBLON()
+                            - collection.get(0).getTLON()) / result.getWidth();
+                    double yDPP = (collection.get(0).getTLAT()
                             - collection.get(collection.size() - 1).getBLAT()) / result.getHeight();
-                        int gpx = (int) Math.floor((g.getNodes().get(id).getPrev().getLon()
-                                - collection.get(0).getTLON()) / xDPP);
-                        int gpy = (int) Math.floor((collection.get(0).getTLAT()
-                                - g.getNodes().get(id).getPrev().getLat()) / yDPP);
-                        int gx = (int) Math.floor((g.getNodes().get(id).getLon()
-                                - collection.get(0).getTLON()) / xDPP);
-                        int gy = (int) Math.floor((collection.get(0).getTLAT()
-                                - g.getNodes().get(id).getLat()) / yDPP);
-                        gr.drawLine(gpx, gpy, gx, gy);
+                    GraphNode prev = null;
+                    int drawn = 0;
+                    for (long id : route) {
+                        if (drawn++ % ContractedGraph.CHECK_EVERY == 0) {
+                            cancel.check();
+                        }
+                        GraphNode curr = snap.getGraph().getNodes().get(id);
+                        if (prev != null && curr != null) {
+                            int gpx = (int) Math.floor((prev.getLon()
+                                    - collection.get(0).getTLON()) / xDPP);
+                            int gpy = (int) Math.floor((collection.get(0).getTLAT()
+                                    - prev.getLat()) / yDPP);
+                            int gx = (int) Math.floor((curr.getLon()
+                                    - collection.get(0).getTLON()) / xDPP);
+                            int gy = (int) Math.floor((collection.get(0).getTLAT()
+                                    - curr.getLat()) / yDPP);
+                            gr.drawLine(gpx, gpy, gx, gy);
+                        }
+                        prev = curr;
                     }
+                } finally {
+                    snap.getGraph().getLock().readLock().unlock();
                 }
             }
 
+            t = RASTER_OVERLAY.since(t);
+            Trace.phase("route_overlay");
+
             ImageIO.write(result, "png", os);
+            png = os.toByteArray();
+            RASTER_ENCODE.since(t);
+            Trace.phase("png_encode");
             rasteredImageParams.put("raster_ul_lon", collection.get(0).getTLON());
             rasteredImageParams.put("raster_ul_lat", collection.get(0).getTLAT());
             rasteredImageParams.put("raster_lr_lon", collection.get(collection.size() 
@@ -381,11 +1310,35 @@ public class MapServer {
             rasteredImageParams.put("query_success", true);
         } catch (IOException ioException) {
             System.out.println("Could not read image");
+        } finally {
+            RASTER_TILES.release(tiles);
         }
 
-        System.out.println(rasteredImageParams);
+        return new Raster(Collections.unmodifiableMap(rasteredImageParams), png);
+    }
 
-        return rasteredImageParams;
+    /**
+     * Run work through a single-flight group, turning a wait that timed out into a 503.
+     */
+    private static <K, V> V coalesce(SingleFlight<K, V> flight, K key, Callable<V> work) {
+        return coalesce(flight, key, Cancellation.NONE, cancel -> work.call());
+    }
+
+    /**
+     * coalesce() for work that can be stopped. The shared work stops only once every request
+     * waiting for it has been stopped.
+     */
+    private static <K, V> V coalesce(SingleFlight<K, V> flight, K key, Cancellation cancel,
+                                     SingleFlight.Work<V> work) {
+        try {
+            return flight.execute(key, cancel, work);
+        } catch (TimeoutException e) {
+            throw new WorkerPool.Overloaded("timed out waiting for an identical request");
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
     }
 
     /**
@@ -417,67 +1370,254 @@ public class MapServer {
         return min;
     }
 
-    public static LinkedList<Long> search(GraphNode s, GraphNode t) {
-        PriorityQueue<GraphNode> pq = new PriorityQueue<GraphNode>();
-        ArrayList<GraphNode> allpaths = new ArrayList<GraphNode>();
-        LinkedList<Long> theway = new LinkedList<Long>();
+    public static LinkedList<Long> search(GraphDB graph, GraphNode s, GraphNode t) {
+        return search(graph, s, t, Cancellation.NONE);
+    }
 
-        for (GraphNode node : g.getNodes().values()) {
-            node.setDistToCurr(0);
-            node.setPriority(0);
-            node.setPrev(null);
+    /**
+     * search() that gives up once <code>cancel</code> says so, counting searches given up.
+     *
+     * @throws Cancellation.Cancelled If the search was stopped.
+     */
+    public static LinkedList<Long> search(GraphDB graph, GraphNode s, GraphNode t,
+                                          Cancellation cancel) {
+        if (!graph.connected(s, t)) {
+            return new LinkedList<Long>();
+        }
+        long start = System.nanoTime();
+        ContractedGraph contracted = graph.getContractedGraph();
+        LinkedList<Long> route;
+        try {
+            route = contracted.route(s, t, cancel);
+        } catch (Cancellation.Cancelled e) {
+            countStopped(e);
+            throw e;
+        } finally {
+            ROUTE_SEARCH.since(start);
         }
+        ROUTE_SETTLED.add(contracted.getLastSettledCount());
+        ROUTE_PUSHED.add(contracted.getLastPushCount());
+        Trace.note("settled", contracted.getLastSettledCount());
+        return route;
+    }
 
-        pq.add(s);
+    /**
+     * Route on the graph of the region holding the start point. Routes do not cross regions:
+     * an end point outside it snaps to the region's closest node.
+     */
+    public static LinkedList<Long> findAndSetRoute(Map<String, Double> params) {
+        return findAndSetRoute(params, Cancellation.NONE);
+    }
 
-        while (!pq.isEmpty()) {
-            GraphNode min = pq.poll();
-            allpaths.add(min);
-            if (min.equals(t)) {
-                break;
-            } else {
-                for (Connection cxn : min.getConnectionSet()) {
-                    GraphNode neighbor = cxn.getN2();
-                    if (!allpaths.contains(neighbor)) {
-                        double heu = getDist(neighbor.getLon(), neighbor.getLat(), 
-                            t.getLon(), t.getLat());
-                        if (pq.contains(neighbor)) {
-                            double newPriority = min.getDistToCurr() + cxn.getDB() + heu;
-                            if (newPriority < neighbor.getPriority()) {
-                                pq.remove(neighbor);
-                                neighbor.setPrev(min);
-                                neighbor.setDistToCurr(min.getDistToCurr() + cxn.getDB());
-                                neighbor.setPriority(newPriority);
-                                pq.add(neighbor);
-                            }
-                        } else {
-                            neighbor.setPrev(min);
-                            neighbor.setDistToCurr(min.getDistToCurr() + cxn.getDB());
-                            neighbor.setPriority(min.getDistToCurr() + cxn.getDB() + heu);
-                            pq.add(neighbor);
-                        }
-                    }
-                }
+    /**
+     * findAndSetRoute() that gives up once <code>cancel</code> says so.
+     *
+     * @throws Cancellation.Cancelled If the search was stopped.
+     */
+    public static LinkedList<Long> findAndSetRoute(Map<String, Double> params,
+                                                   Cancellation cancel) {
+        clearRoute();
+        Region region = REGIONS.forPoint(params.get("start_lon"), params.get("start_lat"));
+        MapSnapshot snap = ready(region, MapSnapshot::getGraph, "road graph");
+        GraphDB graph = snap.getGraph();
+        LinkedList<Long> route;
+        graph.getLock().readLock().lock();
+        try {
+            long snapStart = System.nanoTime();
+            GraphNode start = graph.closest(params.get("start_lon"), params.get("start_lat"));
+            GraphNode target = graph.closest(params.get("end_lon"), params.get("end_lat"));
+            ROUTE_SNAP.since(snapStart);
+            Trace.params(params);
+            Trace.phase("snap");
+            /* Requests that snap to the same pair on the same data share one search. */
+            List<Object> key = Arrays.asList(region.getName(), snap.getVersion(),
+                    graph.getRevision(), start.getID(), target.getID());
+            route = new LinkedList<Long>(coalesce(ROUTE_FLIGHTS, key, cancel,
+                shared -> search(graph, start, target, shared)));
+        } finally {
+            graph.getLock().readLock().unlock();
+        }
+        Trace.phase("search");
+        Trace.note("route_length", route.size());
+        sroute = route;
+        return route;
+    }
+
+    private static void countStopped(Cancellation.Cancelled e) {
+        if (e.getReason() == Cancellation.Reason.TIMED_OUT) {
+            ROUTE_TIMED_OUT.inc();
+        } else {
+            ROUTE_CANCELLED.inc();
+        }
+    }
+
+    /**
+     * Snap a GPS trace to the road graph as it is read. Each line of the input holds a point
+     * as "lon,lat". For each point one line of JSON is written, in trace order: the point's
+     * index i and either the id, lon and lat of its road node or "matched": false. Output is
+     * flushed whenever no more input is ready, so a client still sending its trace gets the
+     * matches decided so far. The last line gives the number of points and points per second.
+     */
+    public static void matchTrace(GraphDB graph, InputStream in, OutputStream out)
+            throws IOException {
+        matchTrace(graph, in, out, Cancellation.NONE);
+    }
+
+    /**
+     * Snap a GPS trace to the road graph until it ends or <code>cancel</code> stops it. A
+     * stopped match ends with an error line, after the matches decided so far, in place of the
+     * summary.
+     */
+    public static void matchTrace(GraphDB graph, InputStream in, OutputStream out,
+                                  Cancellation cancel) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in,
+                StandardCharsets.UTF_8));
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        Gson gson = new Gson();
+        MapMatcher matcher = new MapMatcher(graph);
+        ArrayList<MapMatcher.Match> decided = new ArrayList<>();
+        long start = System.nanoTime();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            try {
+                cancel.check();
+            } catch (Cancellation.Cancelled e) {
+                matcher.finish(decided::add);
+                writeMatches(gson, decided, writer);
+                HashMap<String, Object> error = new HashMap<>();
+                error.put("error", "Match " + e.getMessage() + " after " + matcher.getCount()
+                        + " points.");
+                writer.write(gson.toJson(error));
+                writer.write('\n');
+                writer.flush();
+                return;
+            }
+            String[] point = line.trim().split("\\s*,\\s*");
+            double lon;
+            double lat;
+            try {
+                lon = Double.parseDouble(point[0]);
+                lat = Double.parseDouble(point[1]);
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                HashMap<String, Object> error = new HashMap<>();
+                error.put("error", "Incorrect point - provide lon,lat: " + line);
+                writer.write(gson.toJson(error));
+                writer.write('\n');
+                continue;
+            }
+            long pointStart = System.nanoTime();
+            matcher.add(lon, lat, decided::add);
+            MATCH_POINT.since(pointStart);
+            writeMatches(gson, decided, writer);
+            if (!reader.ready()) {
+                writer.flush();
             }
         }
-        pq = null;
-        GraphNode curr = allpaths.get(allpaths.size() - 1);
-        while (curr != null) {
-            theway.add(curr.getID());
-            curr = curr.getPrev();
+        matcher.finish(decided::add);
+        writeMatches(gson, decided, writer);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        HashMap<String, Object> summary = new HashMap<>();
+        summary.put("points", matcher.getCount());
+        summary.put("points_per_second", seconds > 0 ? matcher.getCount() / seconds : 0);
+        writer.write(gson.toJson(summary));
+        writer.write('\n');
+        writer.flush();
+    }
+
+    private static void writeMatches(Gson gson, List<MapMatcher.Match> decided, Writer writer)
+            throws IOException {
+        for (MapMatcher.Match match : decided) {
+            HashMap<String, Object> result = new HashMap<>();
+            result.put("i", match.getIndex());
+            GraphNode node = match.getNode();
+            result.put("matched", node != null);
+            if (node != null) {
+                result.put("id", node.getID());
+                result.put("lon", node.getLon());
+                result.put("lat", node.getLat());
+                MATCH_MATCHED.inc();
+            } else {
+                MATCH_UNMATCHED.inc();
+            }
+            writer.write(gson.toJson(result));
+            writer.write('\n');
         }
-        allpaths = null;
-        Collections.reverse(theway);
-        return theway;
+        decided.clear();
     }
 
-    public static LinkedList<Long> findAndSetRoute(Map<String, Double> params) {
+    /**
+     * Find the shortest route and up to k - 1 alternatives between the request's endpoints, and
+     * make the shortest one the current route.
+     *
+     * @return One map per route, shortest first: "length" -> Number, the route length in
+     * degrees, and "route" -> a list of [lon, lat] pairs from start to end.
+     * @see ContractedGraph#alternatives
+     */
+    public static List<Map<String, Object>> findAlternatives(Map<String, Double> params, int k,
+                                                             double stretch, double sharing) {
+        return findAlternatives(params, k, stretch, sharing, Cancellation.NONE);
+    }
+
+    /**
+     * findAlternatives() that gives up once <code>cancel</code> says so.
+     *
+     * @throws Cancellation.Cancelled If the searches were stopped.
+     */
+    public static List<Map<String, Object>> findAlternatives(Map<String, Double> params, int k,
+                                                             double stretch, double sharing,
+                                                             Cancellation cancel) {
         clearRoute();
-        GraphNode start = findClosest(params.get("start_lon"), params.get("start_lat"), 
-            g.getNodes());
-        GraphNode target = findClosest(params.get("end_lon"), params.get("end_lat"), g.getNodes());
-        sroute = search(start, target);
-        return sroute;
+        Region region = REGIONS.forPoint(params.get("start_lon"), params.get("start_lat"));
+        GraphDB graph = ready(region, MapSnapshot::getGraph, "road graph").getGraph();
+        ArrayList<Map<String, Object>> result = new ArrayList<>();
+        graph.getLock().readLock().lock();
+        try {
+            long snapStart = System.nanoTime();
+            GraphNode start = graph.closest(params.get("start_lon"), params.get("start_lat"));
+            GraphNode target = graph.closest(params.get("end_lon"), params.get("end_lat"));
+            ROUTE_SNAP.since(snapStart);
+            Trace.params(params);
+            Trace.phase("snap");
+            if (!graph.connected(start, target)) {
+                return result;
+            }
+            long searchStart = System.nanoTime();
+            ContractedGraph contracted = graph.getContractedGraph();
+            List<ContractedGraph.Alternative> routes;
+            try {
+                routes = contracted.alternatives(start, target, k, stretch, sharing,
+                        ContractedGraph.ALTERNATIVES_LOCAL_OPTIMALITY, cancel);
+            } catch (Cancellation.Cancelled e) {
+                countStopped(e);
+                throw e;
+            } finally {
+                ALTERNATIVES_SEARCH.since(searchStart);
+            }
+            ALTERNATIVES_SETTLED.add(contracted.getLastAlternativesSettledCount());
+            Trace.phase("search");
+            Trace.note("settled", contracted.getLastAlternativesSettledCount());
+            Trace.note("routes", routes.size());
+            for (ContractedGraph.Alternative alt : routes) {
+                ArrayList<double[]> coordinates = new ArrayList<>(alt.getPath().size());
+                for (long id : alt.getPath()) {
+                    GraphNode node = graph.getNodes().get(id);
+                    coordinates.add(new double[]{node.getLon(), node.getLat()});
+                }
+                HashMap<String, Object> route = new HashMap<>();
+                route.put("length", alt.getLength());
+                route.put("route", coordinates);
+                result.add(route);
+            }
+            if (!routes.isEmpty()) {
+                sroute = routes.get(0).getPath();
+            }
+        } finally {
+            graph.getLock().readLock().unlock();
+        }
+        return result;
     }
 
     /**
@@ -489,7 +1629,8 @@ public class MapServer {
     }
 
     /**
-     * In linear time, collect all the names of OSM locations that prefix-match the query string.
+     * Collect all the names of OSM locations that prefix-match the query string, in time
+     * proportional to the prefix length plus the number of matches.
      *
      * @param prefix Prefix string to be searched for. Could be any case, with our without
      *               punctuation.
@@ -497,7 +1638,20 @@ public class MapServer {
      * cleaned <code>prefix</code>.
      */
     public static List<String> getLocationsByPrefix(String prefix) {
-        return new LinkedList<>();
+        return REGIONS.getDefault().get().getSearchIndex().getPrefixTrie().all(prefix);
+    }
+
+    /**
+     * The SearchIndex.AUTOCOMPLETE_K most common names of OSM locations that prefix-match the
+     * query string, served from the completions cached in the prefix index.
+     *
+     * @param prefix Prefix string to be searched for. Could be any case, with our without
+     *               punctuation.
+     * @return A <code>List</code> of full location names, most common first.
+     */
+    public static List<String> autocomplete(String prefix) {
+        return REGIONS.getDefault().get().getSearchIndex().getPrefixTrie().complete(prefix,
+                SearchIndex.AUTOCOMPLETE_K);
     }
 
     /**
@@ -514,6 +1668,19 @@ public class MapServer {
      * "id" -> Number, The id of the node. <br>
      */
     public static List<Map<String, Object>> getLocations(String locationName) {
-        return new LinkedList<>();
+        NameIndex names = REGIONS.getDefault().get().getSearchIndex().getNameIndex();
+        return names.toMaps(names.lookup(locationName));
+    }
+
+    /**
+     * Collect the locations whose cleaned name is within one or two edits of the cleaned
+     * <code>locationName</code>, closest names first. Each location is a map in the same
+     * format as {@link #getLocations(String)}.
+     *
+     * @param locationName A possibly misspelled full name of a location.
+     */
+    public static List<Map<String, Object>> getFuzzyLocations(String locationName) {
+        SearchIndex index = REGIONS.getDefault().get().getSearchIndex();
+        return index.getNameIndex().toMaps(index.getFuzzyIndex().search(locationName));
     }
 }
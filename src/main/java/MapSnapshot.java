@@ -0,0 +1,60 @@
+/**
+ * A self-consistent set of the map data a request works against: the road graph, the location
+ * search indices, the tile quadtree and the folder the tiles are read from. The references are
+ * fixed; MapServer publishes a new snapshot with a single reference swap, so a request that
+ * picked up the previous one finishes against it undisturbed and the old data is collected
+ * once the last such request is done.
+ * Anything derived from a snapshot should be stored on it or keyed by its version.
+ * <p>
+ * The road graph is the one part that is not immutable: osmChange documents edit it in place
+ * under its own lock. Readers of the graph should hold GraphDB.getLock(), and anything derived
+ * from it should also be keyed by GraphDB.getRevision().
+ * </p>
+ * <p>
+ * While a region first loads, partial snapshots are published in which the parts not built
+ * yet are null; see Region.
+ * </p>
+ */
+public class MapSnapshot {
+    private final long version;
+    private final GraphDB graph;
+    private final SearchIndex searchIndex;
+    private final QuadTree quadTree;
+    private final String imgRoot;
+
+    public MapSnapshot(long version, GraphDB graph, SearchIndex searchIndex, QuadTree quadTree,
+                       String imgRoot) {
+        this.version = version;
+        this.graph = graph;
+        this.searchIndex = searchIndex;
+        this.quadTree = quadTree;
+        this.imgRoot = imgRoot;
+    }
+
+    /**
+     * @return Whether every part of the snapshot is loaded.
+     */
+    public boolean isComplete() {
+        return graph != null && searchIndex != null && quadTree != null;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public GraphDB getGraph() {
+        return graph;
+    }
+
+    public SearchIndex getSearchIndex() {
+        return searchIndex;
+    }
+
+    public QuadTree getQuadTree() {
+        return quadTree;
+    }
+
+    public String getImgRoot() {
+        return imgRoot;
+    }
+}
@@ -0,0 +1,251 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * A small metrics registry, rendered in the Prometheus text exposition format. Metrics are
+ * created once, usually into static fields, and recording into them is lock-free and
+ * allocation-free: counters and histogram buckets are LongAdders, and histogram buckets are
+ * fixed at creation.
+ * <p>
+ * Several metrics may share a name with different labels; they are rendered together as one
+ * family.
+ * </p>
+ */
+public class Metrics {
+    /**
+     * The registry the server exposes at /metrics.
+     */
+    public static final Metrics REGISTRY = new Metrics();
+
+    /**
+     * Default latency buckets, in seconds.
+     */
+    public static final double[] LATENCY_BUCKETS = {0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025,
+        0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+
+    private final List<Metric> metrics = new CopyOnWriteArrayList<Metric>();
+
+    private abstract static class Metric {
+        private final String name;
+        private final String help;
+        private final String labels;
+
+        Metric(String name, String help, String labels) {
+            this.name = name;
+            this.help = help;
+            this.labels = labels;
+        }
+
+        abstract String type();
+
+        abstract void write(StringBuilder out);
+
+        void sample(StringBuilder out, String suffix, String extraLabel, double value) {
+            out.append(name).append(suffix);
+            if (!labels.isEmpty() || extraLabel != null) {
+                out.append('{').append(labels);
+                if (extraLabel != null) {
+                    out.append(labels.isEmpty() ? "" : ",").append(extraLabel);
+                }
+                out.append('}');
+            }
+            out.append(' ');
+            if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+                out.append((long) value);
+            } else {
+                out.append(value);
+            }
+            out.append('\n');
+        }
+    }
+
+    /**
+     * A monotonically increasing count.
+     */
+    public static class Counter extends Metric {
+        private final LongAdder value = new LongAdder();
+
+        Counter(String name, String help, String labels) {
+            super(name, help, labels);
+        }
+
+        public void inc() {
+            value.increment();
+        }
+
+        public void add(long n) {
+            value.add(n);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+
+        @Override
+        String type() {
+            return "counter";
+        }
+
+        @Override
+        void write(StringBuilder out) {
+            sample(out, "", null, value.sum());
+        }
+    }
+
+    /**
+     * A value read when the metrics are rendered: a gauge, or a counter kept elsewhere.
+     */
+    public static class Gauge extends Metric {
+        private final String type;
+        private final DoubleSupplier value;
+
+        Gauge(String name, String help, String labels, String type, DoubleSupplier value) {
+            super(name, help, labels);
+            this.type = type;
+            this.value = value;
+        }
+
+        @Override
+        String type() {
+            return type;
+        }
+
+        @Override
+        void write(StringBuilder out) {
+            sample(out, "", null, value.getAsDouble());
+        }
+    }
+
+    /**
+     * A distribution over fixed buckets. Durations are recorded in nanoseconds and rendered in
+     * seconds, as Prometheus expects.
+     */
+    public static class Histogram extends Metric {
+        private final double[] bounds;
+        private final long[] nanoBounds;
+        private final LongAdder[] buckets;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumNanos = new LongAdder();
+
+        Histogram(String name, String help, String labels, double[] bounds) {
+            super(name, help, labels);
+            this.bounds = bounds.clone();
+            this.nanoBounds = new long[bounds.length];
+            this.buckets = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < bounds.length; i++) {
+                nanoBounds[i] = (long) (bounds[i] * 1e9);
+            }
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * Record one duration.
+         */
+        public void record(long nanos) {
+            int i = 0;
+            while (i < nanoBounds.length && nanos > nanoBounds[i]) {
+                i++;
+            }
+            buckets[i].increment();
+            count.increment();
+            sumNanos.add(nanos);
+        }
+
+        /**
+         * Record the time since <code>startNanos</code>, a System.nanoTime() reading.
+         *
+         * @return The current System.nanoTime(), to chain consecutive stages.
+         */
+        public long since(long startNanos) {
+            long now = System.nanoTime();
+            record(now - startNanos);
+            return now;
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        @Override
+        String type() {
+            return "histogram";
+        }
+
+        @Override
+        void write(StringBuilder out) {
+            long cumulative = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                cumulative += buckets[i].sum();
+                sample(out, "_bucket", "le=\"" + bounds[i] + "\"", cumulative);
+            }
+            cumulative += buckets[bounds.length].sum();
+            sample(out, "_bucket", "le=\"+Inf\"", cumulative);
+            sample(out, "_sum", null, sumNanos.sum() / 1e9);
+            sample(out, "_count", null, cumulative);
+        }
+    }
+
+    /**
+     * @param labels Prometheus labels without braces, e.g. <code>endpoint="raster"</code>, or
+     *               the empty string.
+     */
+    public Counter counter(String name, String help, String labels) {
+        return register(new Counter(name, help, labels));
+    }
+
+    public Gauge gauge(String name, String help, String labels, DoubleSupplier value) {
+        return register(new Gauge(name, help, labels, "gauge", value));
+    }
+
+    /**
+     * Expose a count that some other object maintains.
+     */
+    public Gauge counter(String name, String help, String labels, DoubleSupplier value) {
+        return register(new Gauge(name, help, labels, "counter", value));
+    }
+
+    public Histogram histogram(String name, String help, String labels) {
+        return histogram(name, help, labels, LATENCY_BUCKETS);
+    }
+
+    public Histogram histogram(String name, String help, String labels, double[] bounds) {
+        return register(new Histogram(name, help, labels, bounds));
+    }
+
+    private <M extends Metric> M register(M metric) {
+        metrics.add(metric);
+        return metric;
+    }
+
+    /**
+     * @return Every metric in the Prometheus text format, grouped by name.
+     */
+    public String render() {
+        ArrayList<Metric> sorted = new ArrayList<Metric>(metrics);
+        /* Stable, so the metrics of one family keep their registration order. */
+        Collections.sort(sorted, new Comparator<Metric>() {
+            @Override
+            public int compare(Metric a, Metric b) {
+                return a.name.compareTo(b.name);
+            }
+        });
+        StringBuilder out = new StringBuilder(4096);
+        String family = null;
+        for (Metric m : sorted) {
+            if (!m.name.equals(family)) {
+                family = m.name;
+                out.append("# HELP ").append(m.name).append(' ').append(m.help).append('\n');
+                out.append("# TYPE ").append(m.name).append(' ').append(m.type()).append('\n');
+            }
+            m.write(out);
+        }
+        return out.toString();
+    }
+}
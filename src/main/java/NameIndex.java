@@ -0,0 +1,123 @@
+import com.google.gson.Gson;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Exact-name lookup over Locations: a hash map from cleaned name to the indices of the
+ * locations carrying it, in OSM file order. The JSON of each location is rendered once, on
+ * first request, and reused so popular lookups skip Gson reflection entirely.
+ */
+public class NameIndex {
+    private static final int[] NONE = new int[0];
+
+    private final Locations locations;
+    private final HashMap<String, int[]> byName = new HashMap<String, int[]>();
+    /** The match array of each location's own name, shared with byName. */
+    private final int[][] matchesOf;
+    /** Lazily rendered JSON objects; racing writers store equal strings, so no locking. */
+    private final String[] json;
+
+    public NameIndex(Locations locations) {
+        this.locations = locations;
+        this.json = new String[locations.size()];
+        this.matchesOf = new int[locations.size()][];
+        HashMap<String, Integer> counts = new HashMap<String, Integer>();
+        String[] keys = new String[locations.size()];
+        for (int i = 0; i < locations.size(); i++) {
+            keys[i] = GraphDB.cleanString(locations.getName(i));
+            Integer old = counts.get(keys[i]);
+            counts.put(keys[i], old == null ? 1 : old + 1);
+        }
+        for (int i = 0; i < locations.size(); i++) {
+            int[] matches = byName.get(keys[i]);
+            if (matches == null) {
+                matches = new int[counts.get(keys[i])];
+                byName.put(keys[i], matches);
+            }
+            matches[matches.length - counts.get(keys[i])] = i;
+            matchesOf[i] = matches;
+            counts.put(keys[i], counts.get(keys[i]) - 1);
+        }
+    }
+
+    /**
+     * @return Indices into Locations of every location whose cleaned name equals the cleaned
+     * <code>name</code>, in file order.
+     */
+    public int[] lookup(String name) {
+        int[] matches = byName.get(GraphDB.cleanString(name));
+        return matches == null ? NONE : matches;
+    }
+
+    /**
+     * @return The array lookup() returns for the name of location i; two locations share a
+     * cleaned name exactly when these are the same array.
+     */
+    public int[] matchesOf(int i) {
+        return matchesOf[i];
+    }
+
+    /**
+     * @return The location as the map the search API describes: lat, lon, name and id.
+     */
+    public Map<String, Object> toMap(int i) {
+        LinkedHashMap<String, Object> location = new LinkedHashMap<String, Object>();
+        location.put("lat", locations.getLat(i));
+        location.put("lon", locations.getLon(i));
+        location.put("name", locations.getName(i));
+        location.put("id", locations.getID(i));
+        return location;
+    }
+
+    public List<Map<String, Object>> toMaps(int[] matches) {
+        ArrayList<Map<String, Object>> result = new ArrayList<Map<String, Object>>(matches.length);
+        for (int i : matches) {
+            result.add(toMap(i));
+        }
+        return result;
+    }
+
+    /**
+     * @return The cached JSON object of a location.
+     */
+    public String toJson(int i) {
+        String cached = json[i];
+        if (cached == null) {
+            cached = new Gson().toJson(toMap(i));
+            json[i] = cached;
+        }
+        return cached;
+    }
+
+    /**
+     * @return A JSON array of the given locations, assembled from the cached objects.
+     */
+    public String toJson(int[] matches) {
+        StringBuilder sb = new StringBuilder(2 + matches.length * 96);
+        sb.append('[');
+        for (int m = 0; m < matches.length; m++) {
+            if (m > 0) {
+                sb.append(',');
+            }
+            sb.append(toJson(matches[m]));
+        }
+        return sb.append(']').toString();
+    }
+
+    /**
+     * @return Every distinct cleaned name.
+     */
+    public Collection<String> keys() {
+        return Collections.unmodifiableSet(byName.keySet());
+    }
+
+    public int size() {
+        return byName.size();
+    }
+}
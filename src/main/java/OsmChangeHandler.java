@@ -0,0 +1,86 @@
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Parses an <a href="http://wiki.openstreetmap.org/wiki/OsmChange">osmChange</a> document into
+ * a list of create, modify and delete actions, to be applied to a GraphDB in document order
+ * once the whole document has parsed. Nodes are recorded when they start, ways when they end,
+ * so that their nd refs and tags are complete. Deleting a node or way that is not part of the
+ * road graph is a no-op.
+ */
+public class OsmChangeHandler extends DefaultHandler {
+    private final List<Consumer<GraphDB>> edits = new ArrayList<Consumer<GraphDB>>();
+    private String action = "";
+    private String activeState = "";
+    private long wayID;
+    private long[] wayRefs = new long[64];
+    private int wayRefCount;
+    private boolean wayIsRoad;
+
+    /**
+     * Apply the actions parsed so far to g.
+     */
+    public void applyTo(GraphDB g) {
+        for (Consumer<GraphDB> edit : edits) {
+            edit.accept(g);
+        }
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes attributes)
+            throws SAXException {
+        if (qName.equals("create") || qName.equals("modify") || qName.equals("delete")) {
+            action = qName;
+        } else if (qName.equals("node")) {
+            activeState = "node";
+            long id = Long.parseLong(attributes.getValue("id"));
+            if (action.equals("delete")) {
+                edits.add(g -> g.deleteNode(id));
+            } else {
+                double lon = Double.parseDouble(attributes.getValue("lon"));
+                double lat = Double.parseDouble(attributes.getValue("lat"));
+                edits.add(g -> g.putNode(id, lon, lat));
+            }
+        } else if (qName.equals("way")) {
+            activeState = "way";
+            wayID = Long.parseLong(attributes.getValue("id"));
+            wayRefCount = 0;
+            wayIsRoad = false;
+        } else if (qName.equals("relation")) {
+            activeState = "relation";
+        } else if (activeState.equals("way") && qName.equals("nd")) {
+            if (wayRefCount == wayRefs.length) {
+                wayRefs = Arrays.copyOf(wayRefs, wayRefCount * 2);
+            }
+            wayRefs[wayRefCount++] = Long.parseLong(attributes.getValue("ref"));
+        } else if (activeState.equals("way") && qName.equals("tag")) {
+            if (attributes.getValue("k").equals("highway")
+                    && MapDBHandler.ALLOWED_HIGHWAY_TYPES.contains(attributes.getValue("v"))) {
+                wayIsRoad = true;
+            }
+        }
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        if (qName.equals("way")) {
+            long id = wayID;
+            if (action.equals("delete")) {
+                edits.add(g -> g.deleteWay(id));
+            } else {
+                long[] refs = Arrays.copyOf(wayRefs, wayRefCount);
+                boolean isRoad = wayIsRoad;
+                edits.add(g -> g.putWay(id, refs, isRoad));
+            }
+            activeState = "";
+        } else if (qName.equals("create") || qName.equals("modify") || qName.equals("delete")) {
+            action = "";
+        }
+    }
+}
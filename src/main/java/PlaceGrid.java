@@ -0,0 +1,296 @@
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+/**
+ * A uniform grid over the named locations, packed into flat arrays: the locations of cell c
+ * are entries [cellStart[c], cellStart[c + 1]) of the item arrays, which also carry the
+ * projected coordinates so a scan stays within one contiguous block.
+ * <p>
+ * Coordinates are projected with an equirectangular projection about the centre latitude of
+ * the data, so cells are roughly square on the ground and distances compare correctly at
+ * city scale.
+ * </p>
+ */
+public class PlaceGrid {
+    /** Target number of locations per cell. */
+    private static final int PER_CELL = 4;
+
+    private final double xScale;
+    private final double minX;
+    private final double minY;
+    private final double cellSize;
+    private final int cols;
+    private final int rows;
+    private final int[] cellStart;
+    private final int[] items;
+    private final double[] itemX;
+    private final double[] itemY;
+
+    public PlaceGrid(Locations locations) {
+        int n = locations.size();
+        double loLat = Double.POSITIVE_INFINITY;
+        double hiLat = Double.NEGATIVE_INFINITY;
+        double loLon = Double.POSITIVE_INFINITY;
+        double hiLon = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            loLat = Math.min(loLat, locations.getLat(i));
+            hiLat = Math.max(hiLat, locations.getLat(i));
+            loLon = Math.min(loLon, locations.getLon(i));
+            hiLon = Math.max(hiLon, locations.getLon(i));
+        }
+        if (n == 0) {
+            loLat = hiLat = loLon = hiLon = 0;
+        }
+        xScale = Math.cos(Math.toRadians((loLat + hiLat) / 2));
+        minX = loLon * xScale;
+        minY = loLat;
+        double width = Math.max(hiLon * xScale - minX, 1e-9);
+        double height = Math.max(hiLat - minY, 1e-9);
+        /* Pick a square cell so that there are about n / PER_CELL cells in the bounding box. */
+        cellSize = Math.sqrt(width * height * PER_CELL / Math.max(n, 1));
+        cols = Math.max(1, Math.min((int) (width / cellSize) + 1, 1 << 12));
+        rows = Math.max(1, Math.min((int) (height / cellSize) + 1, 1 << 12));
+
+        int[] cellOf = new int[n];
+        cellStart = new int[cols * rows + 1];
+        for (int i = 0; i < n; i++) {
+            cellOf[i] = cell(col(locations.getLon(i) * xScale), row(locations.getLat(i)));
+            cellStart[cellOf[i] + 1]++;
+        }
+        for (int c = 0; c < cols * rows; c++) {
+            cellStart[c + 1] += cellStart[c];
+        }
+        items = new int[n];
+        itemX = new double[n];
+        itemY = new double[n];
+        int[] fill = Arrays.copyOf(cellStart, cols * rows);
+        for (int i = 0; i < n; i++) {
+            int slot = fill[cellOf[i]]++;
+            items[slot] = i;
+            itemX[slot] = locations.getLon(i) * xScale;
+            itemY[slot] = locations.getLat(i);
+        }
+    }
+
+    private int col(double x) {
+        return Math.max(0, Math.min(cols - 1, (int) Math.floor((x - minX) / cellSize)));
+    }
+
+    private int row(double y) {
+        return Math.max(0, Math.min(rows - 1, (int) Math.floor((y - minY) / cellSize)));
+    }
+
+    private int cell(int col, int row) {
+        return row * cols + col;
+    }
+
+    /**
+     * @return The squared projected distance between a location and a point, for ranking.
+     */
+    public double distance2(Locations locations, int i, double lon, double lat) {
+        return distance2(locations.getLon(i), locations.getLat(i), lon, lat);
+    }
+
+    /**
+     * @return The squared projected distance between two points, for ranking.
+     */
+    public double distance2(double lon1, double lat1, double lon2, double lat2) {
+        double dx = (lon1 - lon2) * xScale;
+        double dy = lat1 - lat2;
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * The nearest locations to a point that pass a filter.
+     *
+     * @return Indices into Locations, nearest first; at most <code>limit</code> of them.
+     */
+    public int[] nearest(double lon, double lat, int limit, IntPredicate accept) {
+        if (limit <= 0 || items.length == 0) {
+            return new int[0];
+        }
+        return scanRings(lon * xScale, lat, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY,
+                Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, limit, accept);
+    }
+
+    /**
+     * Every location inside a bounding box that passes a filter or, if there are more than
+     * <code>limit</code>, the <code>limit</code> of them nearest the centre of the box.
+     *
+     * @return Indices into Locations, nearest the centre of the box first.
+     */
+    public int[] within(double ullon, double ullat, double lrlon, double lrlat, int limit,
+                        IntPredicate accept) {
+        double x0 = Math.min(ullon, lrlon) * xScale;
+        double x1 = Math.max(ullon, lrlon) * xScale;
+        double y0 = Math.min(ullat, lrlat);
+        double y1 = Math.max(ullat, lrlat);
+        if (limit <= 0 || items.length == 0 || x1 < minX || y1 < minY
+                || x0 > minX + cols * cellSize || y0 > minY + rows * cellSize) {
+            return new int[0];
+        }
+        return scanRings((x0 + x1) / 2, (y0 + y1) / 2, x0, y0, x1, y1, limit, accept);
+    }
+
+    /**
+     * The nearest locations to a projected point among those in the projected box from (x0, y0)
+     * to (x1, y1), found by scanning rings of the cells the box covers outward from the closest
+     * one until no unscanned cell can hold anything closer than the worst of the best
+     * <code>limit</code> found so far.
+     */
+    private int[] scanRings(double x, double y, double x0, double y0, double x1, double y1,
+                            int limit, IntPredicate accept) {
+        int gx0 = col(x0);
+        int gy0 = row(y0);
+        int gx1 = col(x1);
+        int gy1 = row(y1);
+        /* Rings start from the closest point of the cells; since they form a rectangle, the
+         * squared distance to anything in them is at least the squared offset plus the squared
+         * distance from that closest point. */
+        double px = Math.max(minX + gx0 * cellSize, Math.min(minX + (gx1 + 1) * cellSize, x));
+        double py = Math.max(minY + gy0 * cellSize, Math.min(minY + (gy1 + 1) * cellSize, y));
+        double offset = (x - px) * (x - px) + (y - py) * (y - py);
+        int cx = Math.max(gx0, Math.min(gx1, col(px)));
+        int cy = Math.max(gy0, Math.min(gy1, row(py)));
+        Best best = new Best(limit);
+        int maxRing = Math.max(Math.max(cx - gx0, gx1 - cx), Math.max(cy - gy0, gy1 - cy));
+        for (int r = 0; r <= maxRing; r++) {
+            if (best.isFull() && offset + ringBound(px, py, cx, cy, r) > best.worst()) {
+                break;
+            }
+            for (int gy = cy - r; gy <= cy + r; gy++) {
+                if (gy < gy0 || gy > gy1) {
+                    continue;
+                }
+                boolean edge = gy == cy - r || gy == cy + r;
+                for (int gx = cx - r; gx <= cx + r; gx += edge ? 1 : 2 * r) {
+                    if (gx >= gx0 && gx <= gx1) {
+                        scanCell(cell(gx, gy), x, y, x0, y0, x1, y1, accept, best);
+                    }
+                    if (r == 0) {
+                        break;
+                    }
+                }
+            }
+        }
+        return best.drain();
+    }
+
+    /**
+     * @return A lower bound on the squared distance from (x, y) to any cell in ring r.
+     */
+    private double ringBound(double x, double y, int cx, int cy, int r) {
+        double left = x - (minX + (cx - r + 1) * cellSize);
+        double right = minX + (cx + r) * cellSize - x;
+        double below = y - (minY + (cy - r + 1) * cellSize);
+        double above = minY + (cy + r) * cellSize - y;
+        double d = Math.max(0, Math.min(Math.min(left, right), Math.min(below, above)));
+        return d * d;
+    }
+
+    private void scanCell(int c, double x, double y, double x0, double y0, double x1, double y1,
+                          IntPredicate accept, Best best) {
+        for (int s = cellStart[c]; s < cellStart[c + 1]; s++) {
+            double dx = itemX[s] - x;
+            double dy = itemY[s] - y;
+            double d = dx * dx + dy * dy;
+            if (best.isFull() && d >= best.worst() || itemX[s] < x0 || itemX[s] > x1
+                    || itemY[s] < y0 || itemY[s] > y1 || !accept.test(items[s])) {
+                continue;
+            }
+            best.offer(items[s], d);
+        }
+    }
+
+    /**
+     * A bounded max-heap of the best matches found so far, worst on top. Its arrays grow as
+     * it fills, so a large limit costs nothing until that many are found.
+     */
+    private static class Best {
+        private final int limit;
+        private int[] heap;
+        private double[] heapDist;
+        private int size;
+
+        Best(int limit) {
+            this.limit = limit;
+            this.heap = new int[Math.min(limit, 64)];
+            this.heapDist = new double[heap.length];
+        }
+
+        boolean isFull() {
+            return size == limit;
+        }
+
+        double worst() {
+            return heapDist[0];
+        }
+
+        void offer(int item, double d) {
+            if (size < limit) {
+                if (size == heap.length) {
+                    heap = Arrays.copyOf(heap, (int) Math.min(limit, 2L * size));
+                    heapDist = Arrays.copyOf(heapDist, heap.length);
+                }
+                siftUp(heap, heapDist, size++, item, d);
+            } else if (d < heapDist[0]) {
+                siftDown(heap, heapDist, size, 0, item, d);
+            }
+        }
+
+        int[] drain() {
+            return PlaceGrid.drain(heap, heapDist, size);
+        }
+    }
+
+    private static void siftUp(int[] heap, double[] heapDist, int i, int item, double d) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heapDist[parent] >= d) {
+                break;
+            }
+            heap[i] = heap[parent];
+            heapDist[i] = heapDist[parent];
+            i = parent;
+        }
+        heap[i] = item;
+        heapDist[i] = d;
+    }
+
+    private static void siftDown(int[] heap, double[] heapDist, int size, int i, int item,
+                                 double d) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && heapDist[child + 1] > heapDist[child]) {
+                child++;
+            }
+            if (heapDist[child] <= d) {
+                break;
+            }
+            heap[i] = heap[child];
+            heapDist[i] = heapDist[child];
+            i = child;
+        }
+        heap[i] = item;
+        heapDist[i] = d;
+    }
+
+    /**
+     * Empty the heap into an array ordered nearest first.
+     */
+    private static int[] drain(int[] heap, double[] heapDist, int size) {
+        int[] result = new int[size];
+        for (int i = size - 1; i >= 0; i--) {
+            result[i] = heap[0];
+            siftDown(heap, heapDist, i, 0, heap[i], heapDist[i]);
+        }
+        return result;
+    }
+
+    public int getCellCount() {
+        return cols * rows;
+    }
+}
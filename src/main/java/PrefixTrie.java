@@ -0,0 +1,288 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Autocomplete over location names: a ternary search tree keyed on cleaned names, stored in
+ * parallel primitive arrays. Every tree node caches the best <code>k</code> completions below
+ * it, ranked by how many locations carry the name, so a keystroke costs O(prefix length + k)
+ * and never walks a subtree.
+ * <p>
+ * Each distinct original name is an entry. Entries are sorted by cleaned name, so the entries
+ * under any prefix form one contiguous range, which each node also records; listing every
+ * match is a plain scan of that range.
+ * </p>
+ */
+public class PrefixTrie {
+    private final int k;
+    private final String[] entryNames;
+    private final int[] entryWeights;
+
+    private char[] split = new char[1024];
+    private int[] lo = new int[1024];
+    private int[] eq = new int[1024];
+    private int[] hi = new int[1024];
+    private int[] rangeStart = new int[1024];
+    private int[] rangeEnd = new int[1024];
+    private int nodeCount;
+    private int root = -1;
+
+    private int[] topStart;
+    private int[] topPool;
+    private int[] globalTop;
+
+    /**
+     * @param locations The named locations to index.
+     * @param k         Number of completions cached per node.
+     */
+    public PrefixTrie(Locations locations, int k) {
+        this.k = k;
+        HashMap<String, Integer> counts = new HashMap<String, Integer>();
+        for (int i = 0; i < locations.size(); i++) {
+            Integer old = counts.get(locations.getName(i));
+            counts.put(locations.getName(i), old == null ? 1 : old + 1);
+        }
+        ArrayList<String> names = new ArrayList<String>(counts.keySet());
+        final HashMap<String, String> keys = new HashMap<String, String>();
+        for (String name : names) {
+            keys.put(name, GraphDB.cleanString(name));
+        }
+        Collections.sort(names, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                int c = keys.get(a).compareTo(keys.get(b));
+                return c != 0 ? c : a.compareTo(b);
+            }
+        });
+        entryNames = names.toArray(new String[names.size()]);
+        entryWeights = new int[entryNames.length];
+        String[] entryKeys = new String[entryNames.length];
+        for (int i = 0; i < entryNames.length; i++) {
+            entryWeights[i] = counts.get(entryNames[i]);
+            entryKeys[i] = keys.get(entryNames[i]);
+        }
+
+        /* Group entries by key, then insert the keys median first to keep the tree balanced. */
+        ArrayList<int[]> groups = new ArrayList<int[]>();
+        for (int i = 0; i < entryKeys.length; i++) {
+            if (i == 0 || !entryKeys[i].equals(entryKeys[i - 1])) {
+                groups.add(new int[]{i, i + 1});
+            } else {
+                groups.get(groups.size() - 1)[1] = i + 1;
+            }
+        }
+        insertBalanced(groups, entryKeys, 0, groups.size());
+        trimNodes();
+        cacheTopK();
+        globalTop = topOf(0, entryNames.length);
+    }
+
+    private void insertBalanced(List<int[]> groups, String[] keys, int from, int to) {
+        if (from >= to) {
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        int[] group = groups.get(mid);
+        insert(keys[group[0]], group[0], group[1]);
+        insertBalanced(groups, keys, from, mid);
+        insertBalanced(groups, keys, mid + 1, to);
+    }
+
+    private void insert(String key, int start, int end) {
+        if (key.isEmpty()) {
+            return;
+        }
+        int i = 0;
+        if (root < 0) {
+            root = newNode(key.charAt(0));
+        }
+        int node = root;
+        while (true) {
+            char c = key.charAt(i);
+            if (c < split[node]) {
+                if (lo[node] < 0) {
+                    /* newNode() may grow the arrays, so store into them only after it. */
+                    int child = newNode(c);
+                    lo[node] = child;
+                }
+                node = lo[node];
+            } else if (c > split[node]) {
+                if (hi[node] < 0) {
+                    int child = newNode(c);
+                    hi[node] = child;
+                }
+                node = hi[node];
+            } else {
+                rangeStart[node] = Math.min(rangeStart[node], start);
+                rangeEnd[node] = Math.max(rangeEnd[node], end);
+                if (++i == key.length()) {
+                    return;
+                }
+                if (eq[node] < 0) {
+                    int child = newNode(key.charAt(i));
+                    eq[node] = child;
+                }
+                node = eq[node];
+            }
+        }
+    }
+
+    private int newNode(char c) {
+        if (nodeCount == split.length) {
+            int capacity = nodeCount * 2;
+            split = Arrays.copyOf(split, capacity);
+            lo = Arrays.copyOf(lo, capacity);
+            eq = Arrays.copyOf(eq, capacity);
+            hi = Arrays.copyOf(hi, capacity);
+            rangeStart = Arrays.copyOf(rangeStart, capacity);
+            rangeEnd = Arrays.copyOf(rangeEnd, capacity);
+        }
+        split[nodeCount] = c;
+        lo[nodeCount] = -1;
+        eq[nodeCount] = -1;
+        hi[nodeCount] = -1;
+        rangeStart[nodeCount] = Integer.MAX_VALUE;
+        rangeEnd[nodeCount] = 0;
+        return nodeCount++;
+    }
+
+    private void trimNodes() {
+        split = Arrays.copyOf(split, nodeCount);
+        lo = Arrays.copyOf(lo, nodeCount);
+        eq = Arrays.copyOf(eq, nodeCount);
+        hi = Arrays.copyOf(hi, nodeCount);
+        rangeStart = Arrays.copyOf(rangeStart, nodeCount);
+        rangeEnd = Arrays.copyOf(rangeEnd, nodeCount);
+    }
+
+    private void cacheTopK() {
+        topStart = new int[nodeCount + 1];
+        int total = 0;
+        for (int n = 0; n < nodeCount; n++) {
+            topStart[n] = total;
+            total += Math.min(k, rangeEnd[n] - rangeStart[n]);
+        }
+        topStart[nodeCount] = total;
+        topPool = new int[total];
+        for (int n = 0; n < nodeCount; n++) {
+            int[] top = topOf(rangeStart[n], rangeEnd[n]);
+            System.arraycopy(top, 0, topPool, topStart[n], top.length);
+        }
+    }
+
+    /**
+     * @return True if entry a ranks before entry b: more locations first, then by name.
+     */
+    private boolean ranksBefore(int a, int b) {
+        if (entryWeights[a] != entryWeights[b]) {
+            return entryWeights[a] > entryWeights[b];
+        }
+        return entryNames[a].compareTo(entryNames[b]) < 0;
+    }
+
+    /**
+     * Select the best min(k, end - start) entries of a range, in rank order.
+     */
+    private int[] topOf(int start, int end) {
+        int[] top = new int[Math.max(0, Math.min(k, end - start))];
+        int size = 0;
+        for (int e = start; e < end && top.length > 0; e++) {
+            if (size == top.length && !ranksBefore(e, top[size - 1])) {
+                continue;
+            }
+            int i = size < top.length ? size++ : size - 1;
+            while (i > 0 && ranksBefore(e, top[i - 1])) {
+                top[i] = top[i - 1];
+                i--;
+            }
+            top[i] = e;
+        }
+        return top;
+    }
+
+    /**
+     * @return The node matching the whole cleaned prefix, or -1 if no name starts with it.
+     */
+    private int find(String prefix) {
+        int node = root;
+        int i = 0;
+        while (node >= 0) {
+            char c = prefix.charAt(i);
+            if (c < split[node]) {
+                node = lo[node];
+            } else if (c > split[node]) {
+                node = hi[node];
+            } else {
+                if (++i == prefix.length()) {
+                    return node;
+                }
+                node = eq[node];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The best completions of a prefix, most common names first.
+     *
+     * @param prefix Any case, with or without punctuation.
+     * @param limit  Maximum number of names to return; at most k are served from the cache.
+     */
+    public List<String> complete(String prefix, int limit) {
+        String p = GraphDB.cleanString(prefix);
+        ArrayList<String> result = new ArrayList<String>();
+        if (p.isEmpty()) {
+            for (int i = 0; i < globalTop.length && i < limit; i++) {
+                result.add(entryNames[globalTop[i]]);
+            }
+            return result;
+        }
+        int node = find(p);
+        if (node < 0) {
+            return result;
+        }
+        int count = Math.min(limit, topStart[node + 1] - topStart[node]);
+        for (int i = 0; i < count; i++) {
+            result.add(entryNames[topPool[topStart[node] + i]]);
+        }
+        return result;
+    }
+
+    /**
+     * Every distinct full name whose cleaned form starts with the cleaned prefix, in order of
+     * cleaned name. Costs O(prefix length + number of matches).
+     */
+    public List<String> all(String prefix) {
+        String p = GraphDB.cleanString(prefix);
+        ArrayList<String> result = new ArrayList<String>();
+        int start = 0;
+        int end = entryNames.length;
+        if (!p.isEmpty()) {
+            int node = find(p);
+            if (node < 0) {
+                return result;
+            }
+            start = rangeStart[node];
+            end = rangeEnd[node];
+        }
+        result.addAll(Arrays.asList(entryNames).subList(start, end));
+        return result;
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * @return An estimate of the heap used by the index, excluding the name strings, which are
+     * shared with Locations.
+     */
+    public long memoryBytes() {
+        long arrays = (long) nodeCount * (2 + 4 * 5) + (topStart.length + topPool.length) * 4L
+                + globalTop.length * 4L + entryWeights.length * 4L + entryNames.length * 4L;
+        return arrays + 6 * 16 + 5 * 16;
+    }
+}
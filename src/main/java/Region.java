@@ -0,0 +1,312 @@
+import java.io.File;
+import java.lang.ref.SoftReference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One independently loaded map area: its OSM file, its tile folder and the bounding box of
+ * its root tile. The region's MapSnapshot is built on first use and published with a single
+ * reference swap, so reloads never disturb requests already holding the previous one.
+ * <p>
+ * A first load runs its parts concurrently: the tile quadtree, and the road graph followed by
+ * the search index. As each part finishes a partial snapshot holding the parts done so far is
+ * published, so tiles can be served while the OSM file is still being parsed. Reloads publish
+ * only complete snapshots.
+ * </p>
+ * <p>
+ * If a part of a first load fails, the parts that did load stay published and the failure is
+ * kept for getFailures() to report. The next request after a backoff, which doubles with every
+ * failure in a row, tries the whole load again.
+ * </p>
+ * <p>
+ * A loaded region can be demoted: its snapshot is then only softly reachable, so the garbage
+ * collector frees it under memory pressure, and the next request either picks it back up or,
+ * if it was collected, loads it again from disk. Changes applied to the graph since the last
+ * load are lost when that happens.
+ * </p>
+ */
+public class Region {
+    /** Names of the parts of a snapshot, as failures are reported under. */
+    public static final String TILES = "tiles";
+    public static final String GRAPH = "road graph";
+    public static final String SEARCH = "search index";
+    /** Backoff before retrying a failed first load, and the most it grows to. */
+    public static final long RETRY_MILLIS = Long.getLong("bearmaps.region.retryMillis", 1000);
+    public static final long RETRY_MAX_MILLIS =
+            Long.getLong("bearmaps.region.retryMaxMillis", 60000);
+    private static final ExecutorService LOADER = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "map-load");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final String name;
+    private final String osmPath;
+    private final String imgRoot;
+    private final double ullon;
+    private final double ullat;
+    private final double lrlon;
+    private final double lrlat;
+
+    private volatile MapSnapshot loaded;
+    private CompletableFuture<MapSnapshot> loading;
+    private SoftReference<MapSnapshot> demoted = new SoftReference<MapSnapshot>(null);
+    private long versions;
+    private volatile long lastUsed;
+    /** Parts whose last first load failed, with the error, until the next attempt. */
+    private final Map<String, String> failures = new ConcurrentHashMap<String, String>();
+    private Throwable lastFailure;
+    private int failuresInRow;
+    private long retryAt;
+
+    public Region(String name, String osmPath, String imgRoot, double ullon, double ullat,
+                  double lrlon, double lrlat) {
+        this.name = name;
+        this.osmPath = osmPath;
+        this.imgRoot = imgRoot;
+        this.ullon = ullon;
+        this.ullat = ullat;
+        this.lrlon = lrlon;
+        this.lrlat = lrlat;
+    }
+
+    /**
+     * @return The region's complete snapshot, waiting for it to load if needed.
+     */
+    public MapSnapshot get() {
+        return join(start());
+    }
+
+    /**
+     * @return The region's latest snapshot, which may be partial, or null if no part of it is
+     * loaded yet. Starts loading the region if it is not in memory, but does not wait.
+     */
+    public MapSnapshot current() {
+        lastUsed = System.nanoTime();
+        MapSnapshot snap = loaded;
+        if (snap != null && snap.isComplete()) {
+            return snap;
+        }
+        start();
+        return loaded;
+    }
+
+    /**
+     * @return The region's snapshot if any part of it is loaded, without loading it or
+     * marking it used.
+     */
+    public MapSnapshot peek() {
+        return loaded;
+    }
+
+    /**
+     * Start loading the region unless it is loaded or loading already. A failed load is tried
+     * again once its backoff has passed; until then the failure is returned.
+     *
+     * @return The complete snapshot, when it is ready.
+     */
+    public synchronized CompletableFuture<MapSnapshot> start() {
+        lastUsed = System.nanoTime();
+        if (loading == null) {
+            MapSnapshot kept = demoted.get();
+            if (kept != null) {
+                loaded = kept;
+                loading = CompletableFuture.completedFuture(kept);
+            } else if (lastFailure != null && lastUsed - retryAt < 0) {
+                CompletableFuture<MapSnapshot> failed = new CompletableFuture<MapSnapshot>();
+                failed.completeExceptionally(lastFailure);
+                return failed;
+            } else {
+                /* The load may fail, and clear loading, before it returns. */
+                CompletableFuture<MapSnapshot> started = new CompletableFuture<MapSnapshot>();
+                failures.clear();
+                loading = started;
+                load(started, true);
+                return started;
+            }
+        }
+        return loading;
+    }
+
+    /**
+     * @return The parts whose last attempt at a first load failed, with the error, while the
+     * next attempt waits out its backoff.
+     */
+    public Map<String, String> getFailures() {
+        return new HashMap<String, String>(failures);
+    }
+
+    /**
+     * Build a fresh snapshot from disk. It is not published; see {@link #publish}.
+     */
+    public MapSnapshot load() {
+        CompletableFuture<MapSnapshot> result = new CompletableFuture<MapSnapshot>();
+        load(result, false);
+        return join(result);
+    }
+
+    private void load(CompletableFuture<MapSnapshot> result, boolean partial) {
+        CompletableFuture<QuadTree> tiles = CompletableFuture.supplyAsync(
+            () -> new QuadTree(new Node(ullon, ullat, lrlon, lrlat, 0, 0), new File(imgRoot)),
+            LOADER);
+        CompletableFuture<GraphDB> graph = CompletableFuture.supplyAsync(
+            () -> new GraphDB(osmPath), LOADER);
+        CompletableFuture<SearchIndex> index = graph.thenApplyAsync(
+            g -> new SearchIndex(g.getLocations()), LOADER);
+        if (partial) {
+            for (CompletableFuture<?> part : new CompletableFuture<?>[]{tiles, graph, index}) {
+                part.thenRun(() -> publishParts(result, tiles, graph, index));
+            }
+        }
+        CompletableFuture.allOf(tiles, graph, index).whenComplete((done, e) -> {
+            synchronized (this) {
+                if (e != null) {
+                    if (partial && loading == result) {
+                        publishParts(result, tiles, graph, index);
+                        loading = null;
+                        failed(TILES, tiles);
+                        failed(GRAPH, graph);
+                        failed(SEARCH, index);
+                        lastFailure = unwrap(e);
+                        failuresInRow++;
+                        retryAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.min(
+                                RETRY_MAX_MILLIS, RETRY_MILLIS << Math.min(failuresInRow - 1, 20)));
+                    }
+                    result.completeExceptionally(unwrap(e));
+                    return;
+                }
+                MapSnapshot snap = new MapSnapshot(++versions, graph.join(), index.join(),
+                        tiles.join(), imgRoot);
+                if (partial && loading == result) {
+                    loaded = snap;
+                    lastFailure = null;
+                    failuresInRow = 0;
+                }
+                result.complete(snap);
+            }
+        });
+    }
+
+    /**
+     * Record the error of a part of a load, if it failed.
+     */
+    private void failed(String name, CompletableFuture<?> part) {
+        try {
+            part.join();
+        } catch (CompletionException e) {
+            failures.put(name, String.valueOf(unwrap(e).getMessage()));
+        }
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+    }
+
+    /**
+     * Publish the parts of a first load that are done, unless the load has finished or been
+     * superseded in the meantime. Parts a failed earlier attempt did load are kept until this
+     * attempt has its own.
+     */
+    private synchronized void publishParts(CompletableFuture<MapSnapshot> result,
+            CompletableFuture<QuadTree> tiles, CompletableFuture<GraphDB> graph,
+            CompletableFuture<SearchIndex> index) {
+        if (loading != result || result.isDone()) {
+            return;
+        }
+        MapSnapshot earlier = loaded;
+        loaded = new MapSnapshot(++versions,
+                partOf(graph, earlier == null ? null : earlier.getGraph()),
+                partOf(index, earlier == null ? null : earlier.getSearchIndex()),
+                partOf(tiles, earlier == null ? null : earlier.getQuadTree()), imgRoot);
+    }
+
+    private static <T> T partOf(CompletableFuture<T> part, T earlier) {
+        return part.isDone() && !part.isCompletedExceptionally() ? part.join() : earlier;
+    }
+
+    private static MapSnapshot join(CompletableFuture<MapSnapshot> load) {
+        try {
+            return load.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Serve a new snapshot from now on.
+     */
+    public synchronized void publish(MapSnapshot snap) {
+        loaded = snap;
+        loading = CompletableFuture.completedFuture(snap);
+        demoted = new SoftReference<MapSnapshot>(null);
+        failures.clear();
+        lastFailure = null;
+        failuresInRow = 0;
+    }
+
+    /**
+     * Keep the snapshot only as long as memory allows. A region that is still loading is left
+     * alone.
+     *
+     * @return Whether the region was demoted.
+     */
+    synchronized boolean demote() {
+        MapSnapshot snap = loaded;
+        if (snap == null || !snap.isComplete()) {
+            return false;
+        }
+        demoted = new SoftReference<MapSnapshot>(snap);
+        loaded = null;
+        loading = null;
+        return true;
+    }
+
+    /**
+     * @return The System.nanoTime() of the last request served from this region.
+     */
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    public boolean contains(double lon, double lat) {
+        return lon >= ullon && lon <= lrlon && lat <= ullat && lat >= lrlat;
+    }
+
+    /**
+     * @return The area, in square degrees, that a box shares with the region.
+     */
+    public double overlap(double boxUllon, double boxUllat, double boxLrlon, double boxLrlat) {
+        double w = Math.min(lrlon, boxLrlon) - Math.max(ullon, boxUllon);
+        double h = Math.min(ullat, boxUllat) - Math.max(lrlat, boxLrlat);
+        return w > 0 && h > 0 ? w * h : 0;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public double getUllon() {
+        return ullon;
+    }
+
+    public double getUllat() {
+        return ullat;
+    }
+
+    public double getLrlon() {
+        return lrlon;
+    }
+
+    public double getLrlat() {
+        return lrlat;
+    }
+}
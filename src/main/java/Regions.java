@@ -0,0 +1,181 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * The regions one server process serves, and the dispatch of requests to them by location.
+ * The first region is the default: it is loaded at startup, is never demoted, and answers
+ * requests that carry no location. Other regions load on first use, and at most
+ * <code>maxLoaded</code> regions are kept loaded; past that the least recently used one is
+ * demoted (see {@link Region#demote()}).
+ * <p>
+ * Regions are configured in a properties file named by the bearmaps.regions system property:
+ * </p>
+ * <pre>
+ * regions = berkeley, oakland
+ * region.berkeley.osm = berkeley.osm
+ * region.berkeley.img = img/
+ * region.berkeley.bbox = -122.2998046875, 37.892195547244356, -122.2119140625, 37.82280243352756
+ * </pre>
+ * where bbox is the upper left longitude and latitude, then the lower right ones, of the root
+ * tile. Without the property the server serves a single default region. The number of
+ * regions kept loaded is set by bearmaps.regions.maxLoaded.
+ */
+public class Regions {
+    private final List<Region> regions;
+    private final int maxLoaded;
+
+    public Regions(List<Region> regions, int maxLoaded) {
+        if (regions.isEmpty()) {
+            throw new IllegalArgumentException("No regions configured");
+        }
+        this.regions = Collections.unmodifiableList(new ArrayList<Region>(regions));
+        this.maxLoaded = Math.max(1, maxLoaded);
+    }
+
+    /**
+     * Regions from the file named by bearmaps.regions, or only <code>fallback</code> if it is
+     * not set.
+     */
+    public static Regions fromProperties(Region fallback) {
+        int maxLoaded = Integer.getInteger("bearmaps.regions.maxLoaded", 4);
+        String path = System.getProperty("bearmaps.regions");
+        if (path == null) {
+            return new Regions(Collections.singletonList(fallback), maxLoaded);
+        }
+        Properties config = new Properties();
+        try (InputStream in = new FileInputStream(path)) {
+            config.load(in);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not read regions from " + path, e);
+        }
+        ArrayList<Region> regions = new ArrayList<Region>();
+        for (String name : config.getProperty("regions", "").split(",")) {
+            name = name.trim();
+            if (name.isEmpty()) {
+                continue;
+            }
+            String prefix = "region." + name + ".";
+            String[] bbox = required(config, prefix + "bbox").split(",");
+            if (bbox.length != 4) {
+                throw new IllegalStateException(prefix + "bbox needs four numbers");
+            }
+            regions.add(new Region(name, required(config, prefix + "osm"),
+                    config.getProperty(prefix + "img", "img/").trim(),
+                    Double.parseDouble(bbox[0].trim()), Double.parseDouble(bbox[1].trim()),
+                    Double.parseDouble(bbox[2].trim()), Double.parseDouble(bbox[3].trim())));
+        }
+        return new Regions(regions, maxLoaded);
+    }
+
+    private static String required(Properties config, String key) {
+        String value = config.getProperty(key);
+        if (value == null) {
+            throw new IllegalStateException("Missing region setting " + key);
+        }
+        return value.trim();
+    }
+
+    public Region getDefault() {
+        return regions.get(0);
+    }
+
+    public List<Region> getRegions() {
+        return regions;
+    }
+
+    /**
+     * @return The region with this name, or null.
+     */
+    public Region get(String name) {
+        for (Region r : regions) {
+            if (r.getName().equals(name)) {
+                return r;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The first region containing the point, or the default region.
+     */
+    public Region forPoint(double lon, double lat) {
+        for (Region r : regions) {
+            if (r.contains(lon, lat)) {
+                return r;
+            }
+        }
+        return getDefault();
+    }
+
+    /**
+     * @return The region containing the centre of the box, else the one sharing the most
+     * area with it, else the default region.
+     */
+    public Region forBox(double ullon, double ullat, double lrlon, double lrlat) {
+        double lon = (ullon + lrlon) / 2;
+        double lat = (ullat + lrlat) / 2;
+        Region best = null;
+        double bestOverlap = 0;
+        for (Region r : regions) {
+            if (r.contains(lon, lat)) {
+                return r;
+            }
+            double overlap = r.overlap(ullon, ullat, lrlon, lrlat);
+            if (overlap > bestOverlap) {
+                best = r;
+                bestOverlap = overlap;
+            }
+        }
+        return best != null ? best : getDefault();
+    }
+
+    /**
+     * The latest snapshot of a region, which may be partial or null while the region loads;
+     * see {@link Region#current()}. Demotes the least recently used other regions to stay
+     * within maxLoaded.
+     */
+    public MapSnapshot snapshot(Region region) {
+        MapSnapshot snap = region.current();
+        if (regions.size() > 1) {
+            evict(region);
+        }
+        return snap;
+    }
+
+    private synchronized void evict(Region keep) {
+        while (true) {
+            int count = 0;
+            Region oldest = null;
+            for (Region r : regions) {
+                MapSnapshot snap = r.peek();
+                if (snap == null) {
+                    continue;
+                }
+                count++;
+                if (r != keep && r != getDefault() && snap.isComplete()
+                        && (oldest == null || r.getLastUsed() < oldest.getLastUsed())) {
+                    oldest = r;
+                }
+            }
+            if (count <= maxLoaded || oldest == null || !oldest.demote()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return The number of regions currently loaded.
+     */
+    public int getLoadedCount() {
+        int count = 0;
+        for (Region r : regions) {
+            count += r.peek() == null ? 0 : 1;
+        }
+        return count;
+    }
+}
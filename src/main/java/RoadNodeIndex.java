@@ -0,0 +1,81 @@
+import java.util.Arrays;
+
+/**
+ * Primitive storage for the ids and coordinates of the nodes referenced by road ways.
+ * Ids are appended while ways are read, then frozen into sorted, de-duplicated order so that
+ * coordinates can be attached by binary search while the nodes themselves are read. Nodes that
+ * are not on a road never get an entry, so memory stays proportional to the road graph.
+ */
+public class RoadNodeIndex {
+    private long[] ids = new long[1024];
+    private double[] lons;
+    private double[] lats;
+    private int size;
+    private boolean frozen;
+
+    /**
+     * Record that a road way references the node with this id. Duplicates are allowed.
+     */
+    public void add(long id) {
+        if (frozen) {
+            throw new IllegalStateException("Index is frozen.");
+        }
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, size * 2);
+        }
+        ids[size++] = id;
+    }
+
+    /**
+     * Sort and de-duplicate the recorded ids and allocate the coordinate arrays.
+     * Coordinates of nodes that never show up stay NaN.
+     */
+    public void freeze() {
+        Arrays.sort(ids, 0, size);
+        int unique = 0;
+        for (int i = 0; i < size; i++) {
+            if (unique == 0 || ids[unique - 1] != ids[i]) {
+                ids[unique++] = ids[i];
+            }
+        }
+        size = unique;
+        ids = Arrays.copyOf(ids, size);
+        lons = new double[size];
+        lats = new double[size];
+        Arrays.fill(lons, Double.NaN);
+        Arrays.fill(lats, Double.NaN);
+        frozen = true;
+    }
+
+    /**
+     * @return The position of the id in the frozen index, or a negative number if absent.
+     */
+    public int indexOf(long id) {
+        return Arrays.binarySearch(ids, 0, size, id);
+    }
+
+    public void setCoordinates(int index, double lon, double lat) {
+        lons[index] = lon;
+        lats[index] = lat;
+    }
+
+    public boolean hasCoordinates(int index) {
+        return !Double.isNaN(lons[index]);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getID(int index) {
+        return ids[index];
+    }
+
+    public double getLon(int index) {
+        return lons[index];
+    }
+
+    public double getLat(int index) {
+        return lats[index];
+    }
+}
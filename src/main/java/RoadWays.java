@@ -0,0 +1,54 @@
+import java.util.Arrays;
+
+/**
+ * The node references of every allowed highway way, packed into flat primitive arrays.
+ * Way i spans <code>refs[offsets[i]]</code> up to (excluding) <code>refs[offsets[i + 1]]</code>.
+ */
+public class RoadWays {
+    private long[] wayIDs = new long[256];
+    private int[] offsets = new int[257];
+    private long[] refs = new long[2048];
+    private int size;
+
+    /**
+     * Append a way.
+     *
+     * @param wayID The OSM id of the way.
+     * @param wayRefs Buffer holding the node ids of the way, in order.
+     * @param count Number of valid entries in <code>wayRefs</code>.
+     */
+    public void add(long wayID, long[] wayRefs, int count) {
+        if (size == wayIDs.length) {
+            wayIDs = Arrays.copyOf(wayIDs, size * 2);
+            offsets = Arrays.copyOf(offsets, size * 2 + 1);
+        }
+        int start = offsets[size];
+        if (start + count > refs.length) {
+            refs = Arrays.copyOf(refs, Math.max(refs.length * 2, start + count));
+        }
+        System.arraycopy(wayRefs, 0, refs, start, count);
+        wayIDs[size] = wayID;
+        offsets[size + 1] = start + count;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getWayID(int way) {
+        return wayIDs[way];
+    }
+
+    public int getStart(int way) {
+        return offsets[way];
+    }
+
+    public int getEnd(int way) {
+        return offsets[way + 1];
+    }
+
+    public long getRef(int position) {
+        return refs[position];
+    }
+}
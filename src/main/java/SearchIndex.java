@@ -0,0 +1,114 @@
+import java.util.Arrays;
+
+/**
+ * The location search structures of a snapshot, built from the graph's Locations at load time.
+ */
+public class SearchIndex {
+    /**
+     * Number of autocomplete suggestions cached per prefix, and returned per keystroke.
+     */
+    public static final int AUTOCOMPLETE_K = Integer.getInteger("bearmaps.autocomplete.k", 10);
+
+    /**
+     * Most names a fuzzy query checks for edit distance, and its time budget.
+     */
+    public static final int FUZZY_MAX_CANDIDATES =
+            Integer.getInteger("bearmaps.fuzzy.maxCandidates", 2000);
+    public static final long FUZZY_BUDGET_MILLIS = Long.getLong("bearmaps.fuzzy.budgetMillis", 20);
+
+    /**
+     * Number of results a viewport-ranked search returns when the client gives no limit.
+     */
+    public static final int NEARBY_LIMIT = Integer.getInteger("bearmaps.search.limit", 20);
+    /**
+     * Number of places a /pois request returns when the client gives no limit.
+     */
+    public static final int POI_LIMIT = Integer.getInteger("bearmaps.pois.limit", 200);
+    /**
+     * Names with at most this many matches per requested result are ranked by sorting the
+     * matches; more common names are searched outward through the place grid instead.
+     */
+    private static final int SORT_FACTOR = 8;
+
+    private final Locations locations;
+    private final PrefixTrie prefixTrie;
+    private final NameIndex nameIndex;
+    private final FuzzyIndex fuzzyIndex;
+    private final PlaceGrid placeGrid;
+
+    public SearchIndex(Locations locations) {
+        this.locations = locations;
+        this.prefixTrie = new PrefixTrie(locations, AUTOCOMPLETE_K);
+        this.nameIndex = new NameIndex(locations);
+        this.fuzzyIndex = new FuzzyIndex(nameIndex, FUZZY_MAX_CANDIDATES, FUZZY_BUDGET_MILLIS);
+        this.placeGrid = new PlaceGrid(locations);
+        System.out.println(locations.size() + " named locations, prefix index "
+                + prefixTrie.getNodeCount() + " nodes, "
+                + prefixTrie.memoryBytes() / 1024 + " KiB, "
+                + fuzzyIndex.getPostingCount() + " trigram postings, "
+                + placeGrid.getCellCount() + " place grid cells");
+    }
+
+    /**
+     * The locations whose cleaned name equals the cleaned <code>name</code>, nearest to a
+     * point first, without looking at more than a bounded number of the matches.
+     *
+     * @return Indices into Locations; at most <code>limit</code> of them.
+     */
+    public int[] nearest(String name, double lon, double lat, int limit) {
+        final int[] matches = nameIndex.lookup(name);
+        if (matches.length <= (long) limit * SORT_FACTOR) {
+            return rank(matches, lon, lat, limit);
+        }
+        return placeGrid.nearest(lon, lat, limit, i -> nameIndex.matchesOf(i) == matches);
+    }
+
+    /**
+     * Order some locations by distance to a point, nearest first, and keep the first
+     * <code>limit</code>.
+     */
+    public int[] rank(int[] candidates, double lon, double lat, int limit) {
+        final double[] distance = new double[candidates.length];
+        Integer[] order = new Integer[candidates.length];
+        for (int c = 0; c < candidates.length; c++) {
+            distance[c] = placeGrid.distance2(locations, candidates[c], lon, lat);
+            order[c] = c;
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(distance[a], distance[b]));
+        int[] result = new int[Math.min(limit, candidates.length)];
+        for (int r = 0; r < result.length; r++) {
+            result[r] = candidates[order[r]];
+        }
+        return result;
+    }
+
+    /**
+     * The named locations inside a bounding box, at most <code>limit</code> of them: those
+     * nearest the centre of the box.
+     *
+     * @return Indices into Locations, nearest the centre first.
+     */
+    public int[] within(double ullon, double ullat, double lrlon, double lrlat, int limit) {
+        return placeGrid.within(ullon, ullat, lrlon, lrlat, limit, i -> true);
+    }
+
+    public Locations getLocations() {
+        return locations;
+    }
+
+    public PrefixTrie getPrefixTrie() {
+        return prefixTrie;
+    }
+
+    public NameIndex getNameIndex() {
+        return nameIndex;
+    }
+
+    public FuzzyIndex getFuzzyIndex() {
+        return fuzzyIndex;
+    }
+
+    public PlaceGrid getPlaceGrid() {
+        return placeGrid;
+    }
+}
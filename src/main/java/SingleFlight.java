@@ -0,0 +1,154 @@
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent identical work. The first caller for a key computes the value; callers
+ * that arrive with the same key while it is running wait for that computation and share its
+ * result, or its exception. The key is forgotten as soon as the computation finishes, so
+ * nothing is cached beyond the requests that overlapped.
+ *
+ * @param <K> Work unit key; must have value equality.
+ * @param <V> Result type. Results are shared between callers and must not be mutated.
+ */
+public class SingleFlight<K, V> {
+    /**
+     * Work that can be stopped through a Cancellation.
+     */
+    public interface Work<V> {
+        V call(Cancellation cancel) throws Exception;
+    }
+
+    /** How often a waiting caller looks at its own Cancellation. */
+    private static final long POLL_MILLIS = 50;
+
+    private final ConcurrentHashMap<K, Flight<V>> inFlight = new ConcurrentHashMap<K, Flight<V>>();
+    private final long timeoutMillis;
+    private final AtomicLong leaders = new AtomicLong();
+    private final AtomicLong shared = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+
+    /**
+     * @param timeoutMillis Longest a caller waits on another caller's computation.
+     */
+    public SingleFlight(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Compute the value for a key, or wait for the computation already running for it.
+     *
+     * @throws TimeoutException If the shared computation took longer than the timeout; the
+     *                          computation itself carries on for its own caller.
+     */
+    public V execute(K key, Callable<V> work) throws Exception {
+        return execute(key, Cancellation.NONE, cancel -> work.call());
+    }
+
+    /**
+     * Compute the value for a key, or wait for the computation already running for it, on
+     * behalf of a caller that may be stopped. The computation is handed a Cancellation that
+     * stops it only once every caller waiting for it has been stopped or has left, so one
+     * caller going away does not fail the others.
+     *
+     * @throws TimeoutException       If the shared computation took longer than the timeout;
+     *                                the computation carries on for its other callers.
+     * @throws Cancellation.Cancelled If this caller was stopped while it waited, or the
+     *                                computation was stopped.
+     */
+    public V execute(K key, Cancellation caller, Work<V> work) throws Exception {
+        Flight<V> mine = new Flight<V>(caller);
+        Flight<V> running = inFlight.putIfAbsent(key, mine);
+        if (running != null) {
+            shared.incrementAndGet();
+            running.cancel.join(caller);
+            try {
+                return await(running.result, caller);
+            } catch (TimeoutException e) {
+                timeouts.incrementAndGet();
+                throw e;
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+                throw (Exception) e.getCause();
+            } finally {
+                running.cancel.leave(caller);
+            }
+        }
+        leaders.incrementAndGet();
+        try {
+            V value = work.call(mine.cancel);
+            mine.result.complete(value);
+            return value;
+        } catch (Exception | Error e) {
+            failures.incrementAndGet();
+            mine.result.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    /**
+     * Wait for a shared result until it is done, the timeout passes, or the caller is stopped,
+     * looking at the caller every POLL_MILLIS.
+     */
+    private V await(CompletableFuture<V> result, Cancellation caller) throws Exception {
+        long deadline = System.nanoTime() + timeoutMillis * 1000000;
+        while (true) {
+            long left = (deadline - System.nanoTime()) / 1000000;
+            if (left <= 0) {
+                throw new TimeoutException();
+            }
+            try {
+                return result.get(Math.min(left, POLL_MILLIS), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                caller.check();
+            }
+        }
+    }
+
+    /**
+     * A computation in progress: its result, and the cancellation shared by its callers.
+     */
+    private static class Flight<V> {
+        private final CompletableFuture<V> result = new CompletableFuture<V>();
+        private final Cancellation.Shared cancel = new Cancellation.Shared();
+
+        Flight(Cancellation leader) {
+            cancel.join(leader);
+        }
+    }
+
+    /**
+     * @return Computations started.
+     */
+    public long getLeaderCount() {
+        return leaders.get();
+    }
+
+    /**
+     * @return Callers that waited on another caller's computation instead of starting one.
+     */
+    public long getSharedCount() {
+        return shared.get();
+    }
+
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+}
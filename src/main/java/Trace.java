@@ -0,0 +1,217 @@
+import java.util.Map;
+
+/**
+ * Optional per-request tracing. A request marks the end of each phase it goes through and
+ * notes a few facts about itself (tile count, depth, route length, ...) into a buffer that
+ * belongs to its thread and is allocated once, so a traced request costs a handful of array
+ * stores. Only requests slower than a threshold are rendered, as one JSON object per line,
+ * and appended to the slow log by a background thread, see {@link LineLog}.
+ * <p>
+ * Enabled with <code>bearmaps.trace=true</code>. The threshold is
+ * <code>bearmaps.slowlog.thresholdMillis</code> and the log file
+ * <code>bearmaps.slowlog.path</code>. Every method is a no-op while tracing is disabled or
+ * no request is being traced on the calling thread.
+ * </p>
+ */
+public class Trace {
+    public static final boolean ENABLED = Boolean.getBoolean("bearmaps.trace");
+    private static final long THRESHOLD_NANOS =
+            Long.getLong("bearmaps.slowlog.thresholdMillis", 500) * 1000000L;
+    private static final LineLog SLOW_LOG =
+            new LineLog(System.getProperty("bearmaps.slowlog.path", "slow.log"));
+    private static final int MAX_PHASES = 32;
+    private static final int MAX_NOTES = 16;
+
+    private static final ThreadLocal<Trace> CURRENT = new ThreadLocal<Trace>() {
+        @Override
+        protected Trace initialValue() {
+            return new Trace();
+        }
+    };
+
+    private boolean active;
+    private String endpoint;
+    private long startMillis;
+    private long startNanos;
+    private final String[] phases = new String[MAX_PHASES];
+    private final long[] phaseEnds = new long[MAX_PHASES];
+    private int phaseCount;
+    private final String[] noteKeys = new String[MAX_NOTES];
+    private final long[] noteValues = new long[MAX_NOTES];
+    private int noteCount;
+    private final String[] tagKeys = new String[MAX_NOTES];
+    private final String[] tagValues = new String[MAX_NOTES];
+    private int tagCount;
+    private Map<String, ?> params;
+
+    /**
+     * Start tracing a request on the calling thread.
+     *
+     * @return False if tracing is disabled or a request is already traced on this thread, in
+     * which case the caller must not call end().
+     */
+    public static boolean begin(String endpoint) {
+        if (!ENABLED) {
+            return false;
+        }
+        Trace t = CURRENT.get();
+        if (t.active) {
+            return false;
+        }
+        t.active = true;
+        t.endpoint = endpoint;
+        t.startMillis = System.currentTimeMillis();
+        t.startNanos = System.nanoTime();
+        t.phaseCount = 0;
+        t.noteCount = 0;
+        t.tagCount = 0;
+        t.params = null;
+        return true;
+    }
+
+    /**
+     * Mark the end of a phase of the current request.
+     */
+    public static void phase(String name) {
+        if (!ENABLED) {
+            return;
+        }
+        Trace t = CURRENT.get();
+        if (t.active && t.phaseCount < MAX_PHASES) {
+            t.phases[t.phaseCount] = name;
+            t.phaseEnds[t.phaseCount++] = System.nanoTime();
+        }
+    }
+
+    /**
+     * Record a number about the current request, e.g. its tile count.
+     */
+    public static void note(String key, long value) {
+        if (!ENABLED) {
+            return;
+        }
+        Trace t = CURRENT.get();
+        if (t.active && t.noteCount < MAX_NOTES) {
+            t.noteKeys[t.noteCount] = key;
+            t.noteValues[t.noteCount++] = value;
+        }
+    }
+
+    /**
+     * Record a string about the current request, e.g. its search term.
+     */
+    public static void tag(String key, String value) {
+        if (!ENABLED) {
+            return;
+        }
+        Trace t = CURRENT.get();
+        if (t.active && t.tagCount < MAX_NOTES) {
+            t.tagKeys[t.tagCount] = key;
+            t.tagValues[t.tagCount++] = value;
+        }
+    }
+
+    /**
+     * Attach the request parameters. They are only read if the request turns out slow.
+     */
+    public static void params(Map<String, ?> params) {
+        if (!ENABLED) {
+            return;
+        }
+        Trace t = CURRENT.get();
+        if (t.active) {
+            t.params = params;
+        }
+    }
+
+    /**
+     * Finish the current request, and queue it for the slow log if it took longer than the
+     * threshold.
+     */
+    public static void end() {
+        if (!ENABLED) {
+            return;
+        }
+        Trace t = CURRENT.get();
+        if (!t.active) {
+            return;
+        }
+        t.active = false;
+        long total = System.nanoTime() - t.startNanos;
+        if (total >= THRESHOLD_NANOS) {
+            SLOW_LOG.append(t.toJson(total));
+        }
+        t.params = null;
+    }
+
+    /**
+     * @return Slow requests that were not logged because the writer fell behind.
+     */
+    public static long getDroppedCount() {
+        return SLOW_LOG.getDroppedCount();
+    }
+
+    private String toJson(long totalNanos) {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("{\"ts\":").append(startMillis);
+        sb.append(",\"endpoint\":");
+        quote(sb, endpoint);
+        sb.append(",\"total_ms\":").append(totalNanos / 1e6);
+        sb.append(",\"phases\":[");
+        long prev = startNanos;
+        for (int i = 0; i < phaseCount; i++) {
+            sb.append(i == 0 ? "" : ",").append("{\"name\":");
+            quote(sb, phases[i]);
+            sb.append(",\"ms\":").append((phaseEnds[i] - prev) / 1e6).append('}');
+            prev = phaseEnds[i];
+        }
+        sb.append(']');
+        for (int i = 0; i < noteCount; i++) {
+            sb.append(',');
+            quote(sb, noteKeys[i]);
+            sb.append(':').append(noteValues[i]);
+        }
+        for (int i = 0; i < tagCount; i++) {
+            sb.append(',');
+            quote(sb, tagKeys[i]);
+            sb.append(':');
+            quote(sb, tagValues[i]);
+        }
+        if (params != null) {
+            sb.append(",\"params\":{");
+            boolean first = true;
+            for (Map.Entry<String, ?> e : params.entrySet()) {
+                sb.append(first ? "" : ",");
+                first = false;
+                quote(sb, e.getKey());
+                sb.append(':');
+                if (e.getValue() instanceof Number) {
+                    sb.append(e.getValue());
+                } else {
+                    quote(sb, String.valueOf(e.getValue()));
+                }
+            }
+            sb.append('}');
+        }
+        return sb.append('}').toString();
+    }
+
+    private static void quote(StringBuilder sb, String s) {
+        if (s == null) {
+            sb.append("null");
+            return;
+        }
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+}
@@ -0,0 +1,202 @@
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketClose;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketConnect;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketMessage;
+import org.eclipse.jetty.websocket.api.annotations.WebSocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A persistent channel over which a client streams its viewport and the server pushes rasters
+ * back, in place of one /raster request per pan or zoom.
+ * <p>
+ * The client sends each viewport as a JSON text message with the raster request parameters
+ * (ullat, ullon, lrlat, lrlon, w, h) and a sequence number, seq. The server answers with a
+ * JSON text message carrying seq and the raster parameters /raster returns, followed by the
+ * png as a binary message instead of Base64. If the viewport resolves to the very raster last
+ * sent on the channel, only {"seq": n, "unchanged": true} is sent. Failures are sent as
+ * {"seq": n, "error": message}, with "retry": true when the server is busy or still loading.
+ * </p>
+ * <p>
+ * Each channel renders one viewport at a time. A viewport that arrives while another is being
+ * rendered replaces any viewport still waiting, and the raster in progress is stopped between
+ * tiles, or dropped instead of sent if it is done, so a fast drag never queues up stale
+ * renders.
+ * </p>
+ */
+@WebSocket
+public class ViewportSocket {
+    private static final String[] VIEWPORT_PARAMS = {"ullat", "ullon", "lrlat", "lrlon", "w",
+        "h"};
+    private static final ExecutorService STREAMERS = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "viewport-stream");
+        t.setDaemon(true);
+        return t;
+    });
+    private static final Map<Session, Stream> STREAMS = new ConcurrentHashMap<>();
+
+    private static final Metrics.Counter SENT = frames("raster");
+    private static final Metrics.Counter UNCHANGED = frames("unchanged");
+    private static final Metrics.Counter DROPPED = frames("dropped");
+    private static final Metrics.Counter FAILED = frames("error");
+
+    static {
+        Metrics.REGISTRY.gauge("bearmaps_stream_sessions", "Open viewport streams.", "",
+            STREAMS::size);
+    }
+
+    private static Metrics.Counter frames(String kind) {
+        return Metrics.REGISTRY.counter("bearmaps_stream_viewports_total",
+                "Viewports received on streams, by how they were answered.",
+                "outcome=\"" + kind + "\"");
+    }
+
+    @OnWebSocketConnect
+    public void connected(Session session) {
+        STREAMS.put(session, new Stream(session));
+    }
+
+    @OnWebSocketClose
+    public void closed(Session session, int statusCode, String reason) {
+        STREAMS.remove(session);
+    }
+
+    @OnWebSocketMessage
+    public void message(Session session, String message) {
+        Stream stream = STREAMS.get(session);
+        if (stream != null) {
+            stream.offer(message);
+        }
+    }
+
+    /**
+     * The state of one channel: the newest viewport not rendered yet, and the key of the last
+     * raster sent.
+     */
+    private static class Stream {
+        private final Session session;
+        private final AtomicReference<String> latest = new AtomicReference<>();
+        private final AtomicBoolean draining = new AtomicBoolean();
+        private List<Object> lastSent;
+
+        Stream(Session session) {
+            this.session = session;
+        }
+
+        void offer(String message) {
+            if (latest.getAndSet(message) != null) {
+                DROPPED.inc();
+            }
+            if (draining.compareAndSet(false, true)) {
+                STREAMERS.execute(this::drain);
+            }
+        }
+
+        /**
+         * Render the newest viewport until none is waiting. Only one drain runs per channel, so
+         * messages on it are sent in order.
+         */
+        private void drain() {
+            try {
+                String message;
+                while ((message = latest.getAndSet(null)) != null && session.isOpen()) {
+                    push(message);
+                }
+            } finally {
+                draining.set(false);
+            }
+            /* A viewport may have arrived after the last check but before the flag was reset. */
+            if (latest.get() != null && draining.compareAndSet(false, true)) {
+                STREAMERS.execute(this::drain);
+            }
+        }
+
+        private void push(String message) {
+            Gson gson = new Gson();
+            HashMap<String, Object> reply = new HashMap<>();
+            HashMap<String, Double> params = new HashMap<>();
+            try {
+                JsonObject request = new JsonParser().parse(message).getAsJsonObject();
+                JsonElement seq = request.get("seq");
+                reply.put("seq", seq == null ? 0 : seq.getAsLong());
+                for (String param : VIEWPORT_PARAMS) {
+                    params.put(param, request.get(param).getAsDouble());
+                }
+            } catch (RuntimeException e) {
+                fail(reply, "Incorrect viewport - provide " + String.join(", ", VIEWPORT_PARAMS)
+                        + " as numbers.", false);
+                return;
+            }
+            try {
+                MapServer.View view = MapServer.view(params);
+                if (view.getKey().equals(lastSent)) {
+                    UNCHANGED.inc();
+                    reply.put("unchanged", true);
+                    session.getRemote().sendString(gson.toJson(reply));
+                    return;
+                }
+                if (latest.get() != null) {
+                    DROPPED.inc();
+                    return;
+                }
+                Cancellation superseded = new Cancellation(Long.MAX_VALUE,
+                    () -> latest.get() != null || !session.isOpen());
+                MapServer.Raster raster = MapServer.RASTER_POOL.call(() -> {
+                    boolean tracing = Trace.begin("stream");
+                    try {
+                        return MapServer.raster(view, superseded);
+                    } finally {
+                        if (tracing) {
+                            Trace.end();
+                        }
+                    }
+                });
+                if (latest.get() != null) {
+                    DROPPED.inc();
+                    return;
+                }
+                reply.putAll(raster.getParams());
+                session.getRemote().sendString(gson.toJson(reply));
+                if (raster.getPng() != null) {
+                    session.getRemote().sendBytes(ByteBuffer.wrap(raster.getPng()));
+                }
+                lastSent = view.getKey();
+                SENT.inc();
+            } catch (Cancellation.Cancelled e) {
+                DROPPED.inc();
+            } catch (WorkerPool.Overloaded | MapServer.NotReady e) {
+                fail(reply, e.getMessage(), true);
+            } catch (IOException e) {
+                /* The client went away; the close event cleans up. */
+                FAILED.inc();
+            } catch (Exception e) {
+                e.printStackTrace();
+                fail(reply, "Raster failed.", false);
+            }
+        }
+
+        private void fail(HashMap<String, Object> reply, String error, boolean retry) {
+            FAILED.inc();
+            reply.put("error", error);
+            reply.put("retry", retry);
+            try {
+                session.getRemote().sendString(new Gson().toJson(reply));
+            } catch (IOException e) {
+                /* The client went away; the close event cleans up. */
+            }
+        }
+    }
+}
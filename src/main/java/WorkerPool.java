@@ -0,0 +1,177 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A dedicated executor for one kind of heavy request, with admission control. At most
+ * <code>concurrency</code> requests are admitted at a time, running or queued; anything past
+ * that, a full queue, or a wait longer than the timeout fails at once with {@link Overloaded}
+ * so the server can answer 503 instead of piling up work.
+ * <p>
+ * The request thread waits for its task, so the concurrency limit also bounds how many of the
+ * web server's threads one endpoint can hold, and cheap endpoints keep the rest.
+ * </p>
+ * Settings are read from system properties <code>bearmaps.NAME.threads</code>,
+ * <code>.queue</code>, <code>.concurrency</code> and <code>.timeoutMillis</code>. With
+ * <code>bearmaps.virtualThreads=true</code> on a JDK that has them, tasks run on virtual
+ * threads and only the concurrency limit applies.
+ */
+public class WorkerPool {
+    /**
+     * Seconds a rejected client is told to wait before retrying.
+     */
+    public static final int RETRY_AFTER_SECONDS =
+            Integer.getInteger("bearmaps.retryAfterSeconds", 1);
+
+    /**
+     * Thrown when a request is turned away because the server is saturated.
+     */
+    public static class Overloaded extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public Overloaded(String message) {
+            super(message);
+        }
+    }
+
+    private final String name;
+    private final ExecutorService executor;
+    private final int concurrency;
+    private final Semaphore admitted;
+    private final long timeoutMillis;
+    private final AtomicInteger rejected = new AtomicInteger();
+
+    public WorkerPool(String name, int threads, int queue, int concurrency, long timeoutMillis) {
+        this.name = name;
+        this.concurrency = concurrency;
+        this.admitted = new Semaphore(concurrency);
+        this.timeoutMillis = timeoutMillis;
+        ExecutorService virtual = Boolean.getBoolean("bearmaps.virtualThreads")
+                ? newVirtualThreadExecutor() : null;
+        if (virtual != null) {
+            executor = virtual;
+        } else {
+            final AtomicInteger count = new AtomicInteger();
+            executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(Math.max(1, queue)), r -> {
+                        Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }, new ThreadPoolExecutor.AbortPolicy());
+        }
+    }
+
+    /**
+     * A pool configured from system properties, with the given defaults.
+     */
+    public static WorkerPool fromProperties(String name, int threads, int queue,
+                                            long timeoutMillis) {
+        String prefix = "bearmaps." + name + ".";
+        int t = Integer.getInteger(prefix + "threads", threads);
+        int q = Integer.getInteger(prefix + "queue", queue);
+        return new WorkerPool(name, t, q, Integer.getInteger(prefix + "concurrency", t + q),
+                Long.getLong(prefix + "timeoutMillis", timeoutMillis));
+    }
+
+    /**
+     * @return Executors.newVirtualThreadPerTaskExecutor(), or null on a JDK without it.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Run a task on this pool and wait for its result.
+     *
+     * @throws Overloaded If the task was not admitted or did not finish within the timeout.
+     */
+    public <T> T call(Callable<T> task) throws Exception {
+        if (!admitted.tryAcquire()) {
+            rejected.incrementAndGet();
+            throw new Overloaded(name + " is at capacity");
+        }
+        /*
+         * The permit is returned before the result is published, so a caller that has its
+         * result sees the request gone from getInFlight(); a task that never ran, because it
+         * was cancelled in the queue, returns it when the executor gets to it.
+         */
+        AtomicBoolean held = new AtomicBoolean(true);
+        FutureTask<T> future = new FutureTask<T>(task) {
+            @Override
+            public void run() {
+                try {
+                    super.run();
+                } finally {
+                    release(held);
+                }
+            }
+
+            @Override
+            protected void set(T v) {
+                release(held);
+                super.set(v);
+            }
+
+            @Override
+            protected void setException(Throwable t) {
+                release(held);
+                super.setException(t);
+            }
+        };
+        try {
+            executor.execute(future);
+        } catch (RejectedExecutionException e) {
+            release(held);
+            rejected.incrementAndGet();
+            throw new Overloaded(name + " queue is full");
+        }
+        try {
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            rejected.incrementAndGet();
+            throw new Overloaded(name + " timed out");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw (Exception) e.getCause();
+        }
+    }
+
+    private void release(AtomicBoolean held) {
+        if (held.compareAndSet(true, false)) {
+            admitted.release();
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return Requests admitted and not yet picked up by a worker or finished.
+     */
+    public int getInFlight() {
+        return concurrency - admitted.availablePermits();
+    }
+
+    public int getRejectedCount() {
+        return rejected.get();
+    }
+}
@@ -23,6 +23,12 @@ var img_w, img_h;
 var wdpp = 0.00004291534423828125; // Starting wdpp for level 3
 var hdpp = 0.00003388335630702399; // Starting hdpp for level 3
 var max_level = 7; var min_level = 2; // Level limits based on pulled data
+// Viewport stream, when the browser and server support it; see ViewportSocket.java
+var stream = null; var stream_seq = 0; var stream_raster = null;
+// The zoom waiting on a raster to see whether it reached a new level
+var zooming = null;
+// Sent with route requests so a new route cancels the one still being searched for
+var client_id = Math.random().toString(36).slice(2);
 
 // Compute lat and lon by window size
 function real_lrlat() { return params["ullat"] - hdpp * params["h"]; }
@@ -45,6 +51,7 @@ $( document ).ready(function() {
     params["lrlon"] = real_lrlon();
     params["lrlat"] = real_lrlat();
     update();
+    openStream();
     var $body = $('#mapbody');
     $('body').css("overflow", "hidden"); // hide scroll bar
 
@@ -189,21 +196,39 @@ $( document ).ready(function() {
     };
 
     function zoom(direction, level) {
-        starting_level = current_level;
         // Adjust the zoom amount based on current amount of zoom
-        delta = direction * zoom_delta / (Math.pow(2, level));
+        zooming = {from: current_level, tries: 0,
+                   delta: direction * zoom_delta / (Math.pow(2, level))};
+        zoomStep();
+    }
+
+    // One try of a zoom. The raster it asks for may come back asynchronously over the stream,
+    // so whether to try again is decided by zoomed() once it has been shown.
+    function zoomStep() {
         // Account for aspect ratio
         window_ratio = params["w"] / params["h"];
-        // Try several times in case didn't zoom enough
-        for (i = 0; i < 3 && starting_level == current_level; i++) {
-            params["ullat"] -= delta;
-            params["ullon"] += delta * window_ratio;
-            params["lrlat"] += delta;
-            params["lrlon"] -= delta * window_ratio;
-            update();
-            // Adaptive search #machinelearning LOL
-            delta /= 2;
+        params["ullat"] -= zooming.delta;
+        params["ullon"] += zooming.delta * window_ratio;
+        params["lrlat"] += zooming.delta;
+        params["lrlon"] -= zooming.delta * window_ratio;
+        // Adaptive search #machinelearning LOL
+        zooming.delta /= 2;
+        zooming.tries++;
+        zooming.seq = stream_seq + 1;
+        update();
+    }
+
+    // Called with the sequence number of each raster reply. Try several times in case the
+    // zoom didn't reach a new level, then fit the viewport to the raster's resolution.
+    function zoomed(seq) {
+        if (zooming === null || seq < zooming.seq) {
+            return;
         }
+        if (seq === zooming.seq && zooming.from == current_level && zooming.tries < 3) {
+            zoomStep();
+            return;
+        }
+        zooming = null;
         params["lrlon"] = real_lrlon();
         params["lrlat"] = real_lrlat();
     }
@@ -269,37 +294,89 @@ $( document ).ready(function() {
     }
 
     function updateImg() {
+        if (stream !== null) {
+            // Asynchronous: the server drops viewports superseded before they are rendered.
+            stream.send(JSON.stringify($.extend({seq: ++stream_seq}, params)));
+            return;
+        }
         // Synchronous ajax call for image update. Could be async for better experience
         // but then user spam locks up the server.
+        var seq = ++stream_seq;
         $.get({
             async: false,
             url: raster_server,
             data: params,
             success: function(data) {
                 if (data.query_success) {
-                    console.log("Updating map");
                     map.src = "data:image/png;base64," + data.b64_encoded_image_data;
-                    ullon_bound = data.raster_ul_lon;
-                    ullat_bound = data.raster_ul_lat;
-                    lrlon_bound = data.raster_lr_lon;
-                    lrlat_bound = data.raster_lr_lat;
-                    current_level = data.depth;
-                    img_w = data.raster_width;
-                    img_h = data.raster_height;
-                    wdpp = (lrlon_bound - ullon_bound) / img_w;
-                    hdpp = (ullat_bound - lrlat_bound) / img_h;
-                    // Compute initial transform
-                    tx = - (params["ullon"] - ullon_bound) * (1 / wdpp);
-                    ty = (params["ullat"] - ullat_bound) * (1 / hdpp);
-                    rtx = (route_params["end_lon"] - params["ullon"]) * (1 / wdpp) - dest.width / 2 - tx;
-                    rty = - (route_params["end_lat"] - params["ullat"]) * (1 / hdpp) - dest.height - ty;
-                    updateMarkers();
+                    showRaster(data);
                 }
             },
+            complete: function() {
+                zoomed(seq);
+            },
             dataType: "json"
         });
     }
 
+    function showRaster(data) {
+        console.log("Updating map");
+        ullon_bound = data.raster_ul_lon;
+        ullat_bound = data.raster_ul_lat;
+        lrlon_bound = data.raster_lr_lon;
+        lrlat_bound = data.raster_lr_lat;
+        current_level = data.depth;
+        img_w = data.raster_width;
+        img_h = data.raster_height;
+        wdpp = (lrlon_bound - ullon_bound) / img_w;
+        hdpp = (ullat_bound - lrlat_bound) / img_h;
+        // Compute initial transform
+        tx = - (params["ullon"] - ullon_bound) * (1 / wdpp);
+        ty = (params["ullat"] - ullat_bound) * (1 / hdpp);
+        rtx = (route_params["end_lon"] - params["ullon"]) * (1 / wdpp) - dest.width / 2 - tx;
+        rty = - (route_params["end_lat"] - params["ullat"]) * (1 / hdpp) - dest.height - ty;
+        updateMarkers();
+    }
+
+    // Each raster arrives as a JSON message with its bounds followed by the png as a binary
+    // message. Falls back to /raster if the stream cannot be opened or is closed.
+    function openStream() {
+        if (!window.WebSocket) {
+            return;
+        }
+        var ws = new WebSocket(host.replace(/^http/, "ws") + "/stream");
+        ws.binaryType = "blob";
+        ws.onopen = function() {
+            stream = ws;
+        };
+        ws.onmessage = function(evt) {
+            if (typeof evt.data !== "string") {
+                if (stream_raster !== null) {
+                    if (map.src.indexOf("blob:") === 0) {
+                        URL.revokeObjectURL(map.src);
+                    }
+                    map.src = URL.createObjectURL(evt.data);
+                    showRaster(stream_raster);
+                    updateT();
+                    zoomed(stream_raster.seq);
+                    stream_raster = null;
+                }
+                return;
+            }
+            var data = JSON.parse(evt.data);
+            if (data.query_success) {
+                stream_raster = data;
+            } else if (data.error && data.retry) {
+                setTimeout(updateImg, 1000);
+            } else {
+                zoomed(data.seq);
+            }
+        };
+        ws.onclose = function() {
+            stream = null;
+        };
+    }
+
     function updateT() {
         map.style.transform = "translateX(" + tx + "px) translateY(" + ty + "px)";
         dest.style.transform = "translateX(" + (tx+rtx) + "px) translateY(" + (ty+rty) + "px)";
@@ -317,7 +394,7 @@ $( document ).ready(function() {
         $.get({
             async: true,
             url: route_server,
-            data: route_params,
+            data: $.extend({client: client_id}, route_params),
             success: function(data) {
                 updateImg();
             },
@@ -0,0 +1,259 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ContractedGraphTest {
+    private HashMap<Long, GraphNode> nodes;
+    private ArrayList<GraphNode> all;
+
+    private void connect(GraphNode a, GraphNode b) {
+        a.getConnectionSet().add(new Connection(a, b));
+        b.getConnectionSet().add(new Connection(b, a));
+    }
+
+    private GraphNode add(long id, double lon, double lat) {
+        GraphNode n = new GraphNode(id, lon, lat);
+        nodes.put(id, n);
+        all.add(n);
+        return n;
+    }
+
+    /**
+     * Builds a jittered 8x8 grid of intersections joined by streets with two shape points each,
+     * plus a ring of degree-2 nodes that is not attached to anything.
+     */
+    @Before
+    public void setUp() {
+        nodes = new HashMap<>();
+        all = new ArrayList<>();
+        Random r = new Random(61);
+        GraphNode[][] grid = new GraphNode[8][8];
+        long id = 1;
+        for (int i = 0; i < 8; i++) {
+            for (int j = 0; j < 8; j++) {
+                grid[i][j] = add(id++, j + r.nextDouble() * 0.2, i + r.nextDouble() * 0.2);
+            }
+        }
+        for (int i = 0; i < 8; i++) {
+            for (int j = 0; j < 8; j++) {
+                if (j < 7 && r.nextInt(5) > 0) {
+                    GraphNode a = add(id++, j + 0.33, i + r.nextDouble() * 0.1);
+                    GraphNode b = add(id++, j + 0.66, i + r.nextDouble() * 0.1);
+                    connect(grid[i][j], a);
+                    connect(a, b);
+                    connect(b, grid[i][j + 1]);
+                }
+                if (i < 7 && r.nextInt(5) > 0) {
+                    connect(grid[i][j], grid[i + 1][j]);
+                }
+            }
+        }
+        GraphNode first = add(id++, 20, 20);
+        GraphNode prev = first;
+        for (int k = 1; k < 5; k++) {
+            GraphNode next = add(id++, 20 + Math.cos(k), 20 + Math.sin(k));
+            connect(prev, next);
+            prev = next;
+        }
+        connect(prev, first);
+    }
+
+    private double dijkstra(GraphNode s, GraphNode t) {
+        IdentityHashMap<GraphNode, Double> dist = new IdentityHashMap<>();
+        PriorityQueue<Object[]> pq = new PriorityQueue<>((a, b) -> Double.compare(
+                (Double) a[0], (Double) b[0]));
+        IdentityHashMap<GraphNode, Boolean> done = new IdentityHashMap<>();
+        dist.put(s, 0.0);
+        pq.add(new Object[]{0.0, s});
+        while (!pq.isEmpty()) {
+            Object[] top = pq.poll();
+            GraphNode u = (GraphNode) top[1];
+            if (done.put(u, true) != null) {
+                continue;
+            }
+            if (u == t) {
+                return (Double) top[0];
+            }
+            for (Connection cxn : u.getConnectionSet()) {
+                double d = (Double) top[0] + cxn.getDB();
+                Double old = dist.get(cxn.getN2());
+                if (old == null || d < old) {
+                    dist.put(cxn.getN2(), d);
+                    pq.add(new Object[]{d, cxn.getN2()});
+                }
+            }
+        }
+        return Double.POSITIVE_INFINITY;
+    }
+
+    private double length(List<Long> route) {
+        double total = 0;
+        for (int i = 0; i < route.size() - 1; i++) {
+            GraphNode a = nodes.get(route.get(i));
+            GraphNode b = nodes.get(route.get(i + 1));
+            double step = Double.POSITIVE_INFINITY;
+            for (Connection cxn : a.getConnectionSet()) {
+                if (cxn.getN2() == b) {
+                    step = Math.min(step, cxn.getDB());
+                }
+            }
+            assertTrue("Route uses a missing segment", step < Double.POSITIVE_INFINITY);
+            total += step;
+        }
+        return total;
+    }
+
+    @Test
+    public void testContractsShapePoints() {
+        ContractedGraph cg = new ContractedGraph(nodes);
+        assertTrue(cg.getJunctionCount() < nodes.size() / 2);
+    }
+
+    @Test
+    public void testRoutesMatchUncontractedShortestPaths() {
+        ContractedGraph cg = new ContractedGraph(nodes);
+        Random r = new Random(3);
+        for (int q = 0; q < 500; q++) {
+            GraphNode s = all.get(r.nextInt(all.size()));
+            GraphNode t = all.get(r.nextInt(all.size()));
+            List<Long> route = cg.route(s, t);
+            double expected = dijkstra(s, t);
+            if (expected == Double.POSITIVE_INFINITY) {
+                assertTrue(route.isEmpty());
+                continue;
+            }
+            assertEquals((Long) s.getID(), route.get(0));
+            assertEquals((Long) t.getID(), route.get(route.size() - 1));
+            assertEquals(expected, length(route), 1e-9);
+        }
+    }
+
+    @Test
+    public void testAlternativesAreValidAndDistinct() {
+        ContractedGraph cg = new ContractedGraph(nodes);
+        Random r = new Random(5);
+        int withAlternatives = 0;
+        for (int q = 0; q < 300; q++) {
+            GraphNode s = all.get(r.nextInt(all.size()));
+            GraphNode t = all.get(r.nextInt(all.size()));
+            List<ContractedGraph.Alternative> routes = cg.alternatives(s, t, 3, 1.4, 0.7, 0.1);
+            double expected = dijkstra(s, t);
+            if (expected == Double.POSITIVE_INFINITY) {
+                assertTrue(routes.isEmpty());
+                continue;
+            }
+            assertTrue(routes.size() >= 1 && routes.size() <= 3);
+            assertEquals(expected, routes.get(0).getLength(), 1e-9);
+            for (ContractedGraph.Alternative alt : routes) {
+                List<Long> path = alt.getPath();
+                assertEquals((Long) s.getID(), path.get(0));
+                assertEquals((Long) t.getID(), path.get(path.size() - 1));
+                assertEquals(alt.getLength(), length(path), 1e-9);
+                assertTrue(alt.getLength() <= expected * 1.4 + 1e-9);
+                assertEquals(path.size(), new HashSet<>(path).size());
+            }
+            withAlternatives += routes.size() > 1 ? 1 : 0;
+        }
+        assertTrue(withAlternatives > 30);
+    }
+
+    /**
+     * s and t lie in the middle of long dead-end chains joined by a short chain, so most of the
+     * shortest route is on partial chain edges; a detour through a junction with a spur is the
+     * only real alternative.
+     */
+    @Test
+    public void testAlternativesDoNotRepeatShortestFromMidChain() {
+        nodes = new HashMap<>();
+        all = new ArrayList<>();
+        GraphNode prev = add(1, 0, 0);
+        GraphNode s = null;
+        for (int x = 1; x <= 10; x++) {
+            GraphNode next = add(1 + x, x, 0);
+            connect(prev, next);
+            prev = next;
+            s = x == 5 ? next : s;
+        }
+        GraphNode a = prev;
+        GraphNode b = add(20, 12, 0);
+        GraphNode mid = add(21, 11, 0);
+        connect(a, mid);
+        connect(mid, b);
+        GraphNode c = add(22, 11, 1);
+        connect(a, c);
+        connect(c, b);
+        connect(c, add(23, 11, 2));
+        prev = b;
+        GraphNode t = null;
+        for (int x = 13; x <= 22; x++) {
+            GraphNode next = add(100 + x, x, 0);
+            connect(prev, next);
+            prev = next;
+            t = x == 17 ? next : t;
+        }
+        ContractedGraph cg = new ContractedGraph(nodes);
+        List<ContractedGraph.Alternative> routes = cg.alternatives(s, t, 3, 1.4, 0.9, 0);
+        assertEquals(2, routes.size());
+        assertEquals(dijkstra(s, t), routes.get(0).getLength(), 1e-9);
+        assertTrue(routes.get(1).getPath().contains(c.getID()));
+        HashSet<List<Long>> distinct = new HashSet<>();
+        for (ContractedGraph.Alternative alt : routes) {
+            assertTrue(distinct.add(alt.getPath()));
+        }
+    }
+
+    @Test
+    public void testDistancesMatchUncontractedWithinBound() {
+        ContractedGraph cg = new ContractedGraph(nodes);
+        Random r = new Random(7);
+        for (int q = 0; q < 200; q++) {
+            GraphNode s = all.get(r.nextInt(all.size()));
+            GraphNode[] targets = new GraphNode[5];
+            for (int i = 0; i < targets.length; i++) {
+                targets[i] = all.get(r.nextInt(all.size()));
+            }
+            double bound = r.nextDouble() * 4;
+            double[] found = cg.distances(s, targets, bound);
+            for (int i = 0; i < targets.length; i++) {
+                double expected = dijkstra(s, targets[i]);
+                if (expected > bound) {
+                    assertEquals(Double.POSITIVE_INFINITY, found[i], 0);
+                } else {
+                    assertEquals(expected, found[i], 1e-9);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testStoppedSearchesThrow() {
+        ContractedGraph cg = new ContractedGraph(nodes);
+        GraphNode s = all.get(0);
+        GraphNode t = all.get(63);
+        Cancellation cancelled = new Cancellation(Long.MAX_VALUE, () -> false);
+        cancelled.cancel();
+        try {
+            cg.route(s, t, cancelled);
+            fail();
+        } catch (Cancellation.Cancelled e) {
+            assertEquals(Cancellation.Reason.CANCELLED, e.getReason());
+        }
+        try {
+            cg.alternatives(s, t, 3, 1.4, 0.7, 0.1, new Cancellation(0, () -> false));
+            fail();
+        } catch (Cancellation.Cancelled e) {
+            assertEquals(Cancellation.Reason.TIMED_OUT, e.getReason());
+        }
+        assertEquals(dijkstra(s, t), length(cg.route(s, t,
+                new Cancellation(60000, () -> false))), 1e-9);
+    }
+}
@@ -0,0 +1,113 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FuzzyIndexTest {
+    private Locations locations;
+
+    @Before
+    public void setUp() {
+        locations = new Locations();
+        String[] names = {"Top Dog", "Berkeley Bowl", "Cheese Board", "Chez Panisse", "Safeway",
+            "Berkeley Public Library", "Peet's Coffee", "Telegraph Avenue", "Shattuck Avenue"};
+        Random r = new Random(7);
+        for (int i = 0; i < 400; i++) {
+            String name = i % 2 == 0 ? names[r.nextInt(names.length)]
+                    : "Stop " + (char) ('a' + r.nextInt(26)) + (char) ('a' + r.nextInt(26))
+                    + (char) ('a' + r.nextInt(26));
+            locations.add(i, -122.25, 37.85, name);
+        }
+    }
+
+    private static int levenshtein(String a, String b) {
+        int[][] d = new int[a.length() + 1][b.length() + 1];
+        for (int i = 0; i <= a.length(); i++) {
+            for (int j = 0; j <= b.length(); j++) {
+                if (i == 0 || j == 0) {
+                    d[i][j] = i + j;
+                } else {
+                    d[i][j] = Math.min(Math.min(d[i - 1][j] + 1, d[i][j - 1] + 1),
+                            d[i - 1][j - 1] + (a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1));
+                }
+            }
+        }
+        return d[a.length()][b.length()];
+    }
+
+    @Test
+    public void testBoundedDistanceMatchesLevenshtein() {
+        Random r = new Random(11);
+        int[] prev = new int[16];
+        int[] cur = new int[16];
+        for (int q = 0; q < 2000; q++) {
+            StringBuilder a = new StringBuilder();
+            StringBuilder b = new StringBuilder();
+            for (int i = r.nextInt(8); i > 0; i--) {
+                a.append((char) ('a' + r.nextInt(3)));
+            }
+            for (int i = r.nextInt(8); i > 0; i--) {
+                b.append((char) ('a' + r.nextInt(3)));
+            }
+            String s = a.length() <= b.length() ? a.toString() : b.toString();
+            String t = a.length() <= b.length() ? b.toString() : a.toString();
+            int bound = 1 + r.nextInt(2);
+            int expected = Math.min(levenshtein(s, t), bound + 1);
+            assertEquals(s + "/" + t, expected, FuzzyIndex.boundedDistance(s, t, bound, prev, cur));
+        }
+    }
+
+    @Test
+    public void testFindsMisspellings() {
+        FuzzyIndex index = new FuzzyIndex(new NameIndex(locations), 1000, 1000);
+        String[] queries = {"Top Dgo", "berkely bowl", "Cheeze Bord", "Chez Panise", "safewya",
+            "Telegraph Ave", "PEETS COFEE", "xyzzy"};
+        for (String query : queries) {
+            String q = GraphDB.cleanString(query);
+            HashSet<Integer> expected = new HashSet<>();
+            for (int i = 0; i < locations.size(); i++) {
+                String key = GraphDB.cleanString(locations.getName(i));
+                if (levenshtein(q, key) <= FuzzyIndex.maxDistance(q)) {
+                    expected.add(i);
+                }
+            }
+            HashSet<Integer> found = new HashSet<>();
+            for (int i : index.search(query)) {
+                found.add(i);
+            }
+            assertEquals(query, expected, found);
+        }
+        int[] dog = index.search("Top Dogg");
+        assertTrue(dog.length > 0);
+        assertEquals("Top Dog", locations.getName(dog[0]));
+    }
+
+    @Test
+    public void testCandidateCapLimitsResults() {
+        FuzzyIndex index = new FuzzyIndex(new NameIndex(locations), 3, 1000);
+        HashSet<String> names = new HashSet<>();
+        for (int i : index.search("stop abc")) {
+            names.add(GraphDB.cleanString(locations.getName(i)));
+        }
+        assertTrue(names.size() <= 3);
+    }
+
+    /**
+     * The decoys come first in the posting lists and share the query's first trigrams in code
+     * order, so they reach the required overlap first; the one candidate kept must still be
+     * the name sharing the most.
+     */
+    @Test
+    public void testCandidateCapKeepsMostSharedTrigrams() {
+        Locations decoys = new Locations();
+        String[] names = {"Azaa Stop", "Azba Stop", "Azca Stop", "Azza Stop"};
+        for (int i = 0; i < names.length; i++) {
+            decoys.add(i, -122.25, 37.85, names[i]);
+        }
+        FuzzyIndex index = new FuzzyIndex(new NameIndex(decoys), 1, 1000);
+        assertArrayEquals(new int[]{3}, index.search("azza stop"));
+    }
+}
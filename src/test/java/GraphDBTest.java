@@ -0,0 +1,259 @@
+import org.junit.Before;
+import org.junit.Test;
+import org.xml.sax.SAXException;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class GraphDBTest {
+    private static final int N = 6;
+    private GraphDB g;
+
+    private static long id(int row, int col) {
+        return OsmFixtures.id(N, row, col);
+    }
+
+    /**
+     * Writes an N x N grid of residential streets (rows and columns as separate ways), a
+     * footway, a named node that is not on a road, and a two node island.
+     */
+    @Before
+    public void setUp() throws Exception {
+        StringBuilder sb = OsmFixtures.grid(N, 0.001, c -> c % 2 == 0 ? "primary" : "footway");
+        sb.append("<node id=\"100\" lat=\"37.9\" lon=\"-122.2\"/>\n");
+        sb.append("<node id=\"101\" lat=\"37.9\" lon=\"-122.201\"/>\n");
+        sb.append("<node id=\"102\" lat=\"37.85\" lon=\"-122.25\">"
+                + "<tag k=\"name\" v=\"Top Dog\"/></node>\n");
+        sb.append("<way id=\"3000\"><nd ref=\"100\"/><nd ref=\"101\"/>"
+                + "<tag k=\"highway\" v=\"tertiary\"/></way>\n");
+        g = new GraphDB(OsmFixtures.write(sb));
+    }
+
+    private void apply(String body) throws Exception {
+        g.applyChange(new ByteArrayInputStream(("<osmChange>" + body + "</osmChange>")
+                .getBytes("UTF-8")));
+    }
+
+    private int countComponents() {
+        IdentityHashMap<GraphNode, Boolean> seen = new IdentityHashMap<>();
+        int count = 0;
+        for (GraphNode n : g.getNodes().values()) {
+            if (seen.containsKey(n)) {
+                continue;
+            }
+            count++;
+            ArrayDeque<GraphNode> fringe = new ArrayDeque<>();
+            fringe.add(n);
+            seen.put(n, true);
+            while (!fringe.isEmpty()) {
+                GraphNode curr = fringe.poll();
+                for (Connection cxn : curr.getConnectionSet()) {
+                    assertEquals(curr.getComponent(), cxn.getN2().getComponent());
+                    if (!seen.containsKey(cxn.getN2())) {
+                        seen.put(cxn.getN2(), true);
+                        fringe.add(cxn.getN2());
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    private double length(List<Long> route) {
+        double total = 0;
+        for (int i = 0; i < route.size() - 1; i++) {
+            GraphNode a = g.getNodes().get(route.get(i));
+            double step = Double.POSITIVE_INFINITY;
+            for (Connection cxn : a.getConnectionSet()) {
+                if (cxn.getN2().getID() == route.get(i + 1)) {
+                    step = Math.min(step, cxn.getDB());
+                }
+            }
+            assertTrue("Route uses a missing segment", step < Double.POSITIVE_INFINITY);
+            total += step;
+        }
+        return total;
+    }
+
+    /**
+     * Routes over the repaired contraction must be as short as routes over one rebuilt from
+     * scratch.
+     */
+    private void assertRoutesValid() {
+        List<GraphNode> all = new ArrayList<>(g.getNodes().values());
+        Random r = new Random(5);
+        GraphNode[][] queries = new GraphNode[200][2];
+        double[] lengths = new double[queries.length];
+        for (int q = 0; q < queries.length; q++) {
+            queries[q][0] = all.get(r.nextInt(all.size()));
+            queries[q][1] = all.get(r.nextInt(all.size()));
+            List<Long> route = MapServer.search(g, queries[q][0], queries[q][1]);
+            assertEquals(g.connected(queries[q][0], queries[q][1]), !route.isEmpty());
+            lengths[q] = length(route);
+        }
+        ContractedGraph fresh = new ContractedGraph(g.getNodes());
+        for (int q = 0; q < queries.length; q++) {
+            List<Long> route = fresh.route(queries[q][0], queries[q][1]);
+            assertEquals(length(route), lengths[q], 1e-12);
+        }
+    }
+
+    @Test
+    public void testOnlyRoadNodesAreMaterialized() {
+        assertEquals(N * N + 2, g.getNodes().size());
+        assertNull(g.getNodes().get(102L));
+        assertEquals(2, countComponents());
+    }
+
+    @Test
+    public void testDeleteWaySplitsComponent() throws Exception {
+        apply("<delete><way id=\"1000\"/><way id=\"2000\"/></delete>");
+        assertNull(g.getNodes().get(id(0, 0)));
+        assertNull(g.getNodes().get(id(0, 1)));
+        assertNotNull(g.getNodes().get(id(1, 0)));
+        assertEquals(countComponents(), countLive());
+        assertRoutesValid();
+    }
+
+    @Test
+    public void testCreateWayJoinsIsland() throws Exception {
+        apply("<create><way id=\"4000\"><nd ref=\"101\"/><nd ref=\"" + id(0, 0) + "\"/>"
+                + "<tag k=\"highway\" v=\"residential\"/></way></create>");
+        assertEquals(1, countComponents());
+        assertTrue(g.connected(g.getNodes().get(100L), g.getNodes().get(id(N - 1, N - 1))));
+        assertRoutesValid();
+    }
+
+    @Test
+    public void testModifyWayAndMoveNode() throws Exception {
+        apply("<create><node id=\"500\" lat=\"37.8005\" lon=\"-122.2995\"/></create>"
+                + "<modify><node id=\"" + id(2, 2) + "\" lat=\"37.81\" lon=\"-122.29\"/>"
+                + "<way id=\"1001\"><nd ref=\"" + id(1, 0) + "\"/><nd ref=\"500\"/>"
+                + "<nd ref=\"" + id(1, 1) + "\"/><tag k=\"highway\" v=\"residential\"/>"
+                + "</way></modify>");
+        assertNotNull(g.getNodes().get(500L));
+        assertNull(g.getNodes().get(id(1, 3)));
+        assertEquals(countComponents(), countLive());
+        assertRoutesValid();
+    }
+
+    @Test
+    public void testNodesLeftWithoutRoadsAreDropped() throws Exception {
+        apply("<delete><node id=\"100\"/></delete>"
+                + "<create><node id=\"600\" lat=\"37.7\" lon=\"-122.4\"/>"
+                + "<way id=\"4001\"><nd ref=\"600\"/><nd ref=\"999\"/>"
+                + "<tag k=\"highway\" v=\"residential\"/></way></create>");
+        assertNull(g.getNodes().get(101L));
+        assertNull(g.getNodes().get(600L));
+        for (GraphNode n : g.getNodes().values()) {
+            assertFalse(n.getConnectionSet().isEmpty());
+        }
+        assertEquals(id(0, 0), g.closest(-122.4, 37.7).getID());
+        assertEquals(countComponents(), countLive());
+        /* A later way through a dropped node brings it back from its remembered coordinates. */
+        apply("<create><way id=\"4002\"><nd ref=\"600\"/><nd ref=\"" + id(0, 0) + "\"/>"
+                + "<tag k=\"highway\" v=\"residential\"/></way></create>");
+        assertEquals(600L, g.closest(-122.4, 37.7).getID());
+        assertRoutesValid();
+    }
+
+    @Test
+    public void testClosestFollowsChanges() throws Exception {
+        assertEquals(id(2, 2), g.closest(-122.298, 37.802).getID());
+        assertEquals(id(0, 0), g.closest(-122.4, 37.7).getID());
+        apply("<modify><node id=\"" + id(2, 2) + "\" lat=\"37.81\" lon=\"-122.29\"/></modify>");
+        assertEquals(id(2, 2), g.closest(-122.2901, 37.8099).getID());
+        assertEquals(MapServer.findClosest(-122.298, 37.802, g.getNodes()),
+                g.closest(-122.298, 37.802));
+    }
+
+    /**
+     * Lookups over nodes moved, added and removed by many changes must agree with a scan of
+     * the live nodes, without the nodes being laid out again in between.
+     */
+    @Test
+    public void testLookupsFollowManyChanges() throws Exception {
+        Random r = new Random(11);
+        long next = 700;
+        for (int round = 0; round < 40; round++) {
+            List<GraphNode> all = new ArrayList<>(g.getNodes().values());
+            GraphNode moved = all.get(r.nextInt(all.size()));
+            GraphNode joined = all.get(r.nextInt(all.size()));
+            StringBuilder body = new StringBuilder(String.format(
+                    "<modify><node id=\"%d\" lat=\"%f\" lon=\"%f\"/></modify>", moved.getID(),
+                    37.8 + r.nextDouble() * 0.006, -122.3 + r.nextDouble() * 0.006));
+            body.append(String.format("<create><node id=\"%d\" lat=\"%f\" lon=\"%f\"/>"
+                    + "<way id=\"%d\"><nd ref=\"%d\"/><nd ref=\"%d\"/>"
+                    + "<tag k=\"highway\" v=\"residential\"/></way></create>", next,
+                    37.8 + r.nextDouble() * 0.006, -122.3 + r.nextDouble() * 0.006, 5000 + next,
+                    next, joined.getID()));
+            next++;
+            if (round % 3 == 0) {
+                body.append("<delete><node id=\"" + all.get(r.nextInt(all.size())).getID()
+                        + "\"/></delete>");
+            }
+            apply(body.toString());
+            for (int q = 0; q < 20; q++) {
+                double lon = -122.301 + r.nextDouble() * 0.008;
+                double lat = 37.799 + r.nextDouble() * 0.008;
+                assertSame(MapServer.findClosest(lon, lat, g.getNodes()), g.closest(lon, lat));
+                IdentityHashMap<GraphNode, Boolean> expected = new IdentityHashMap<>();
+                for (GraphNode n : g.getNodes().values()) {
+                    if (MapServer.getDist(lon, lat, n.getLon(), n.getLat()) <= 0.002) {
+                        expected.put(n, true);
+                    }
+                }
+                GraphNode[] found = g.near(lon, lat, 0.002, g.getNodes().size() + 1);
+                assertEquals(expected.size(), found.length);
+                for (GraphNode n : found) {
+                    assertTrue(expected.containsKey(n));
+                }
+            }
+        }
+        assertRoutesValid();
+    }
+
+    @Test
+    public void testTruncatedFileIsRejected() throws Exception {
+        String path = OsmFixtures.write(new StringBuilder(
+                "<osm>\n<node id=\"1\" lat=\"37.8\" lon=\"-122.3\"/>\n<way id=\"2\">"));
+        try {
+            new GraphDB(path);
+            fail();
+        } catch (IllegalStateException e) {
+            assertTrue(e.getCause() instanceof SAXException);
+        }
+    }
+
+    @Test
+    public void testMalformedChangeLeavesGraphUntouched() throws Exception {
+        long revision = g.getRevision();
+        try {
+            apply("<delete><way id=\"1000\"/><way id=\"2000\"/></delete><modify>");
+            fail("Expected the unclosed element to be rejected");
+        } catch (SAXException expected) {
+            /* Nothing before the error may have been applied. */
+        }
+        assertEquals(revision, g.getRevision());
+        assertNotNull(g.getNodes().get(id(0, 0)));
+        assertEquals(N * N + 2, g.getNodes().size());
+        assertEquals(2, countComponents());
+        assertRoutesValid();
+    }
+
+    private int countLive() {
+        int live = 0;
+        for (int c = 0; c < g.getComponentCount(); c++) {
+            if (g.getComponentSize(c) > 0) {
+                live++;
+            }
+        }
+        return live;
+    }
+}
@@ -0,0 +1,57 @@
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class HilbertTest {
+    @Test
+    public void testConsecutiveKeysAreNeighbouringCells() {
+        int side = 1 << 16;
+        long[] keys = new long[64 * 64];
+        int[] xs = new int[keys.length];
+        int[] ys = new int[keys.length];
+        /* The curve covers the 64 x 64 corner block first, one neighbouring cell at a time. */
+        int n = 0;
+        for (int x = 0; x < 64; x++) {
+            for (int y = 0; y < 64; y++) {
+                keys[n] = Hilbert.key(x, y);
+                xs[n] = x;
+                ys[n] = y;
+                n++;
+            }
+        }
+        Integer[] byKey = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            byKey[i] = i;
+        }
+        Arrays.sort(byKey, (a, b) -> Long.compare(keys[a], keys[b]));
+        assertEquals(0, keys[byKey[0]]);
+        for (int i = 1; i < n; i++) {
+            assertEquals(keys[byKey[i - 1]] + 1, keys[byKey[i]]);
+            int step = Math.abs(xs[byKey[i]] - xs[byKey[i - 1]])
+                    + Math.abs(ys[byKey[i]] - ys[byKey[i - 1]]);
+            assertEquals(1, step);
+        }
+        assertEquals((long) side * side - 1, Hilbert.key(side - 1, 0));
+    }
+
+    @Test
+    public void testOrderIsAPermutation() {
+        Random r = new Random(7);
+        double[] lons = new double[500];
+        double[] lats = new double[500];
+        for (int i = 0; i < lons.length; i++) {
+            lons[i] = -122.3 + r.nextDouble() * 0.1;
+            lats[i] = 37.8 + r.nextDouble() * 0.1;
+        }
+        int[] order = Hilbert.order(lons, lats, lons.length);
+        int[] sorted = order.clone();
+        Arrays.sort(sorted);
+        for (int i = 0; i < sorted.length; i++) {
+            assertEquals(i, sorted[i]);
+        }
+        assertEquals(0, Hilbert.order(lons, lats, 0).length);
+    }
+}
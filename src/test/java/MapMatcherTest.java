@@ -0,0 +1,120 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class MapMatcherTest {
+    private static final int N = 11;
+    /** Distance between neighbouring nodes, about 33 m north to south. */
+    private static final double STEP = 0.0003;
+    private GraphDB g;
+
+    private static long id(int row, int col) {
+        return OsmFixtures.id(N, row, col);
+    }
+
+    private static double lon(double col) {
+        return OsmFixtures.lon(col, STEP);
+    }
+
+    private static double lat(double row) {
+        return OsmFixtures.lat(row, STEP);
+    }
+
+    /**
+     * An N x N grid of streets, every row and every column a way, with a node at each crossing.
+     */
+    @Before
+    public void setUp() throws Exception {
+        g = new GraphDB(OsmFixtures.write(OsmFixtures.grid(N, STEP, c -> "residential")));
+    }
+
+    /**
+     * A trace along row 5 that drifts north, so that some of its points are closer to the
+     * nodes of row 6, stays on row 5.
+     */
+    @Test
+    public void testNoisyTraceStaysOnItsRoad() {
+        MapMatcher matcher = new MapMatcher(g, 10, 20, 50, 8, 4);
+        List<MapMatcher.Match> out = new ArrayList<>();
+        int closerToRow6 = 0;
+        for (int c = 0; c < N; c++) {
+            double drift = c % 3 == 1 ? 0.55 : 0.2;
+            matcher.add(lon(c), lat(5 + drift), out::add);
+            if (g.closest(lon(c), lat(5 + drift)).getID() == id(6, c)) {
+                closerToRow6++;
+            }
+        }
+        matcher.finish(out::add);
+        assertTrue(closerToRow6 > 0);
+        assertEquals(N, out.size());
+        for (int c = 0; c < N; c++) {
+            assertEquals(c, out.get(c).getIndex());
+            assertEquals(id(5, c), out.get(c).getNode().getID());
+        }
+    }
+
+    @Test
+    public void testPointsFarFromRoadsAreUnmatched() {
+        MapMatcher matcher = new MapMatcher(g, 10, 20, 50, 8, 4);
+        List<MapMatcher.Match> out = new ArrayList<>();
+        matcher.add(lon(0), lat(0), out::add);
+        matcher.add(lon(-20), lat(-20), out::add);
+        matcher.add(lon(1), lat(0), out::add);
+        matcher.finish(out::add);
+        assertEquals(3, out.size());
+        assertEquals(id(0, 0), out.get(0).getNode().getID());
+        assertNull(out.get(1).getNode());
+        assertEquals(id(0, 1), out.get(2).getNode().getID());
+    }
+
+    /**
+     * Points are decided once they fall out of the window, long before the trace ends.
+     */
+    @Test
+    public void testLongTraceIsDecidedWithinTheLag() {
+        int lag = 4;
+        MapMatcher matcher = new MapMatcher(g, 10, 20, 50, 8, lag);
+        List<MapMatcher.Match> out = new ArrayList<>();
+        int points = 0;
+        for (int lap = 0; lap < 50; lap++) {
+            for (int c = 0; c < N; c++) {
+                int col = lap % 2 == 0 ? c : N - 1 - c;
+                matcher.add(lon(col), lat(3.1), out::add);
+                points++;
+                assertEquals(Math.max(0, points - lag), out.size());
+            }
+        }
+        matcher.finish(out::add);
+        assertEquals(points, out.size());
+        for (int i = 0; i < points; i++) {
+            assertEquals(i, out.get(i).getIndex());
+            assertEquals(3, (out.get(i).getNode().getID() - 1) / N);
+        }
+    }
+
+    @Test
+    public void testStoppedTraceEndsWithError() throws Exception {
+        StringBuilder trace = new StringBuilder();
+        for (int c = 0; c < N; c++) {
+            trace.append(lon(c)).append(',').append(lat(5)).append('\n');
+        }
+        AtomicInteger checks = new AtomicInteger();
+        Cancellation cancel = new Cancellation(Long.MAX_VALUE, () -> checks.incrementAndGet() > 3);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MapServer.matchTrace(g, new ByteArrayInputStream(trace.toString().getBytes("UTF-8")),
+                out, cancel);
+        String[] lines = out.toString("UTF-8").split("\n");
+        assertEquals(4, lines.length);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(lines[i].contains("\"id\":" + id(5, i)));
+        }
+        assertTrue(lines[3].contains("\"error\""));
+    }
+}
@@ -0,0 +1,32 @@
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MetricsTest {
+    @Test
+    public void testRendersPrometheusText() {
+        Metrics m = new Metrics();
+        Metrics.Counter hits = m.counter("test_hits_total", "Hits.", "kind=\"a\"");
+        m.counter("test_hits_total", "Hits.", "kind=\"b\"").add(5);
+        hits.inc();
+        hits.inc();
+        m.gauge("test_size", "Size.", "", () -> 12.5);
+        Metrics.Histogram latency = m.histogram("test_seconds", "Latency.", "",
+                new double[]{0.001, 0.01});
+        latency.record(500000);
+        latency.record(5000000);
+        latency.record(50000000);
+        String text = m.render();
+        assertTrue(text.contains("# TYPE test_hits_total counter\n"
+                + "test_hits_total{kind=\"a\"} 2\n" + "test_hits_total{kind=\"b\"} 5\n"));
+        assertEquals(1, text.split("# HELP test_hits_total").length - 1);
+        assertTrue(text.contains("test_size 12.5\n"));
+        assertTrue(text.contains("# TYPE test_seconds histogram\n"));
+        assertTrue(text.contains("test_seconds_bucket{le=\"0.001\"} 1\n"));
+        assertTrue(text.contains("test_seconds_bucket{le=\"0.01\"} 2\n"));
+        assertTrue(text.contains("test_seconds_bucket{le=\"+Inf\"} 3\n"));
+        assertTrue(text.contains("test_seconds_sum 0.0555\n"));
+        assertTrue(text.contains("test_seconds_count 3\n"));
+        assertEquals(3, latency.getCount());
+    }
+}
@@ -0,0 +1,45 @@
+import com.google.gson.Gson;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class NameIndexTest {
+    private Locations locations;
+
+    @Before
+    public void setUp() {
+        locations = new Locations();
+        locations.add(10, -122.25, 37.85, "Peet's Coffee");
+        locations.add(11, -122.26, 37.86, "Top Dog");
+        locations.add(12, -122.27, 37.87, "Peets Coffee");
+        locations.add(13, -122.28, 37.88, "peet's coffee");
+    }
+
+    @Test
+    public void testLookupIgnoresCaseAndPunctuation() {
+        NameIndex index = new NameIndex(locations);
+        assertArrayEquals(new int[]{0, 2, 3}, index.lookup("PEETS COFFEE"));
+        assertArrayEquals(new int[]{1}, index.lookup("top dog"));
+        assertEquals(0, index.lookup("top").length);
+        List<Map<String, Object>> maps = index.toMaps(index.lookup("Top Dog"));
+        assertEquals(1, maps.size());
+        assertEquals(37.86, (Double) maps.get(0).get("lat"), 0);
+        assertEquals(-122.26, (Double) maps.get(0).get("lon"), 0);
+        assertEquals("Top Dog", maps.get(0).get("name"));
+        assertEquals(11L, maps.get(0).get("id"));
+    }
+
+    @Test
+    public void testCachedJsonMatchesGson() {
+        NameIndex index = new NameIndex(locations);
+        int[] matches = index.lookup("peets coffee");
+        String expected = new Gson().toJson(index.toMaps(matches));
+        assertEquals(expected, index.toJson(matches));
+        assertEquals(expected, index.toJson(matches));
+        assertEquals("[]", index.toJson(index.lookup("nowhere")));
+    }
+}
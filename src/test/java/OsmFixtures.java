@@ -0,0 +1,72 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.function.IntFunction;
+
+/**
+ * OSM documents for tests. A grid of n x n streets has a node every <code>step</code> degrees
+ * north and east of (ORIGIN_LON, ORIGIN_LAT), with id row * n + col + 1; every row is a
+ * residential way with id 1000 + row and every column a way with id 2000 + col.
+ */
+public class OsmFixtures {
+    public static final double ORIGIN_LON = -122.3;
+    public static final double ORIGIN_LAT = 37.8;
+
+    public static long id(int n, int row, int col) {
+        return row * n + col + 1;
+    }
+
+    public static double lon(double col, double step) {
+        return ORIGIN_LON + col * step;
+    }
+
+    public static double lat(double row, double step) {
+        return ORIGIN_LAT + row * step;
+    }
+
+    /**
+     * @param highway The highway tag of each column way, by column.
+     * @return The grid, in an osm element that is left open so more can be appended; see
+     * {@link #write}.
+     */
+    public static StringBuilder grid(int n, double step, IntFunction<String> highway) {
+        StringBuilder sb = new StringBuilder("<osm>\n");
+        for (int r = 0; r < n; r++) {
+            for (int c = 0; c < n; c++) {
+                sb.append(String.format("<node id=\"%d\" lat=\"%f\" lon=\"%f\"/>\n",
+                        id(n, r, c), lat(r, step), lon(c, step)));
+            }
+        }
+        for (int r = 0; r < n; r++) {
+            sb.append("<way id=\"").append(1000 + r).append("\">");
+            for (int c = 0; c < n; c++) {
+                sb.append("<nd ref=\"").append(id(n, r, c)).append("\"/>");
+            }
+            sb.append("<tag k=\"highway\" v=\"residential\"/></way>\n");
+        }
+        for (int c = 0; c < n; c++) {
+            sb.append("<way id=\"").append(2000 + c).append("\">");
+            for (int r = 0; r < n; r++) {
+                sb.append("<nd ref=\"").append(id(n, r, c)).append("\"/>");
+            }
+            sb.append("<tag k=\"highway\" v=\"").append(highway.apply(c))
+                    .append("\"/></way>\n");
+        }
+        return sb;
+    }
+
+    /**
+     * Close the osm element and write the document to a temporary file.
+     *
+     * @return The path of the file, which is deleted when the JVM exits.
+     */
+    public static String write(StringBuilder osm) throws IOException {
+        osm.append("</osm>\n");
+        File f = File.createTempFile("fixture", ".osm");
+        f.deleteOnExit();
+        try (FileWriter w = new FileWriter(f)) {
+            w.write(osm.toString());
+        }
+        return f.getPath();
+    }
+}
@@ -0,0 +1,113 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PlaceGridTest {
+    private Locations locations;
+
+    @Before
+    public void setUp() {
+        locations = new Locations();
+        Random r = new Random(5);
+        for (int i = 0; i < 3000; i++) {
+            double lon = -122.30 + r.nextDouble() * 0.09;
+            double lat = 37.82 + r.nextDouble() * 0.07;
+            String name = r.nextInt(10) == 0 ? "Safeway" : "Stop " + (char) ('a' + r.nextInt(26))
+                    + (char) ('a' + r.nextInt(26));
+            locations.add(i, lon, lat, name);
+        }
+    }
+
+    private int[] bruteForce(PlaceGrid grid, double lon, double lat, int limit, String name) {
+        Integer[] all = new Integer[locations.size()];
+        for (int i = 0; i < all.length; i++) {
+            all[i] = i;
+        }
+        Arrays.sort(all, (a, b) -> Double.compare(grid.distance2(locations, a, lon, lat),
+                grid.distance2(locations, b, lon, lat)));
+        int[] result = new int[limit];
+        int size = 0;
+        for (int i = 0; i < all.length && size < limit; i++) {
+            if (name == null || locations.getName(all[i]).equals(name)) {
+                result[size++] = all[i];
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    @Test
+    public void testNearestMatchesBruteForce() {
+        PlaceGrid grid = new PlaceGrid(locations);
+        Random r = new Random(9);
+        for (int q = 0; q < 200; q++) {
+            /* Some query points fall well outside the data. */
+            double lon = -122.35 + r.nextDouble() * 0.2;
+            double lat = 37.78 + r.nextDouble() * 0.15;
+            int limit = 1 + r.nextInt(30);
+            assertArrayEquals(bruteForce(grid, lon, lat, limit, null),
+                    grid.nearest(lon, lat, limit, i -> true));
+            assertArrayEquals(bruteForce(grid, lon, lat, limit, "Safeway"),
+                    grid.nearest(lon, lat, limit,
+                            i -> locations.getName(i).equals("Safeway")));
+        }
+    }
+
+    @Test
+    public void testSearchIndexRanksByViewportCentre() {
+        SearchIndex index = new SearchIndex(locations);
+        PlaceGrid grid = index.getPlaceGrid();
+        double lon = -122.26;
+        double lat = 37.87;
+        assertArrayEquals(bruteForce(grid, lon, lat, 5, "Safeway"),
+                index.nearest("safeway", lon, lat, 5));
+        assertArrayEquals(bruteForce(grid, lon, lat, 1, "Stop qx"),
+                index.nearest("Stop qx", lon, lat, 1));
+        assertEquals(0, index.nearest("nowhere", lon, lat, 5).length);
+    }
+
+    @Test
+    public void testWithinMatchesBruteForceAndStopsAtLimit() {
+        PlaceGrid grid = new PlaceGrid(locations);
+        Random r = new Random(13);
+        for (int q = 0; q < 200; q++) {
+            double ullon = -122.32 + r.nextDouble() * 0.1;
+            double lrlon = ullon + r.nextDouble() * 0.05;
+            double ullat = 37.80 + r.nextDouble() * 0.1;
+            double lrlat = ullat - r.nextDouble() * 0.05;
+            HashSet<Integer> expected = new HashSet<>();
+            for (int i = 0; i < locations.size(); i++) {
+                if (locations.getLon(i) >= ullon && locations.getLon(i) <= lrlon
+                        && locations.getLat(i) <= ullat && locations.getLat(i) >= lrlat) {
+                    expected.add(i);
+                }
+            }
+            HashSet<Integer> found = new HashSet<>();
+            for (int i : grid.within(ullon, ullat, lrlon, lrlat, Integer.MAX_VALUE, i -> true)) {
+                found.add(i);
+            }
+            assertEquals(expected, found);
+            int[] limited = grid.within(ullon, ullat, lrlon, lrlat, 10, i -> true);
+            assertEquals(Math.min(10, expected.size()), limited.length);
+            /* The ones kept are those nearest the centre of the box, nearest first. */
+            double lon = (ullon + lrlon) / 2;
+            double lat = (ullat + lrlat) / 2;
+            double farthest = 0;
+            HashSet<Integer> kept = new HashSet<>();
+            for (int i : limited) {
+                assertTrue(expected.contains(i));
+                double d = grid.distance2(locations, i, lon, lat);
+                assertTrue(d >= farthest);
+                farthest = d;
+                kept.add(i);
+            }
+            for (int i : expected) {
+                assertTrue(kept.contains(i) || grid.distance2(locations, i, lon, lat) >= farthest);
+            }
+        }
+    }
+}
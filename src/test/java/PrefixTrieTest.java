@@ -0,0 +1,85 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PrefixTrieTest {
+    private Locations locations;
+
+    @Before
+    public void setUp() {
+        locations = new Locations();
+        String[] names = {"Peet's Coffee", "Peets Coffee", "Top Dog", "Berkeley Bowl",
+            "Cheese Board", "Chez Panisse", "Safeway", "Berkeley Public Library", "7-Eleven"};
+        Random r = new Random(1);
+        for (int i = 0; i < 300; i++) {
+            String name = i % 3 == 0 ? "Stop " + (char) ('a' + r.nextInt(26))
+                    + (char) ('a' + r.nextInt(26)) : names[r.nextInt(names.length)];
+            locations.add(i, -122.25, 37.85, name);
+        }
+    }
+
+    private HashSet<String> bruteForce(String prefix) {
+        HashSet<String> result = new HashSet<>();
+        for (int i = 0; i < locations.size(); i++) {
+            if (GraphDB.cleanString(locations.getName(i))
+                    .startsWith(GraphDB.cleanString(prefix))) {
+                result.add(locations.getName(i));
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void testAllMatchesBruteForce() {
+        PrefixTrie trie = new PrefixTrie(locations, 4);
+        String[] prefixes = {"", "p", "PEET", "peets c", "s", "st", "stop q", "be", "berkeley b",
+            "chez", "che", "eleven", "zzz", "Top Dog!"};
+        for (String prefix : prefixes) {
+            List<String> all = trie.all(prefix);
+            assertEquals(prefix, bruteForce(prefix), new HashSet<>(all));
+            assertEquals(prefix, all.size(), new HashSet<>(all).size());
+        }
+    }
+
+    @Test
+    public void testCompleteIsTopKByCount() {
+        PrefixTrie trie = new PrefixTrie(locations, 4);
+        for (String prefix : new String[]{"", "s", "b", "c", "stop"}) {
+            List<String> top = trie.complete(prefix, 10);
+            assertTrue(top.size() <= 4);
+            assertEquals(Math.min(4, bruteForce(prefix).size()), top.size());
+            ArrayList<Integer> counts = new ArrayList<>();
+            for (String name : top) {
+                int count = 0;
+                for (int i = 0; i < locations.size(); i++) {
+                    count += locations.getName(i).equals(name) ? 1 : 0;
+                }
+                counts.add(count);
+            }
+            for (int i = 1; i < counts.size(); i++) {
+                assertTrue(counts.get(i - 1) >= counts.get(i));
+            }
+        }
+        assertEquals(2, trie.complete("st", 2).size());
+    }
+
+    @Test
+    public void testManyNamesGrowTheTree() {
+        locations = new Locations();
+        Random r = new Random(2);
+        for (int i = 0; i < 3000; i++) {
+            locations.add(i, -122.25, 37.85, "Ashby " + (char) ('a' + r.nextInt(26))
+                    + (char) ('a' + r.nextInt(26)) + (char) ('a' + r.nextInt(26)));
+        }
+        PrefixTrie trie = new PrefixTrie(locations, 4);
+        for (String prefix : new String[]{"", "ashby", "ashby q", "ashby mx", "ashby zzz"}) {
+            assertEquals(prefix, bruteForce(prefix), new HashSet<>(trie.all(prefix)));
+        }
+    }
+}
@@ -0,0 +1,63 @@
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class RegionsTest {
+    private final Region west = new Region("west", "west.osm", "west/", -123, 38, -122, 37);
+    private final Region east = new Region("east", "east.osm", "east/", -122, 38, -121, 37);
+    private final Regions regions = new Regions(Arrays.asList(west, east), 2);
+
+    @Test
+    public void testDispatchByPoint() {
+        assertSame(west, regions.getDefault());
+        assertSame(west, regions.forPoint(-122.5, 37.5));
+        assertSame(east, regions.forPoint(-121.5, 37.5));
+        assertSame(west, regions.forPoint(0, 0));
+        assertSame(east, regions.get("east"));
+        assertNull(regions.get("north"));
+    }
+
+    @Test
+    public void testDispatchByBox() {
+        assertSame(east, regions.forBox(-121.9, 37.9, -121.1, 37.1));
+        /* Centre outside both: the larger overlap wins. */
+        assertSame(east, regions.forBox(-121.5, 38.5, -120, 37.9));
+        assertSame(west, regions.forBox(-124, 38.5, -122.8, 37.9));
+        assertSame(west, regions.forBox(10, 11, 12, 10));
+        assertEquals(0.25, east.overlap(-121.5, 38.5, -120, 37.5), 1e-9);
+        assertEquals(0, regions.getLoadedCount());
+    }
+
+    @Test
+    public void testFailedLoadIsReportedAndRetried() throws Exception {
+        Region missing = new Region("missing", "missing.osm", "missing/", -123, 38, -122, 37);
+        IllegalStateException first = null;
+        try {
+            missing.get();
+            fail();
+        } catch (IllegalStateException e) {
+            first = e;
+        }
+        assertTrue(missing.getFailures().containsKey(Region.GRAPH));
+        assertTrue(missing.getFailures().containsKey(Region.SEARCH));
+        assertFalse(missing.getFailures().containsKey(Region.TILES));
+        assertNotNull(missing.peek().getQuadTree());
+        /* Within the backoff the failure is returned as is; after it, the load is tried again. */
+        try {
+            missing.get();
+            fail();
+        } catch (IllegalStateException e) {
+            assertSame(first, e);
+        }
+        Thread.sleep(Region.RETRY_MILLIS + 100);
+        try {
+            missing.get();
+            fail();
+        } catch (IllegalStateException e) {
+            assertNotSame(first, e);
+        }
+        assertTrue(missing.getFailures().containsKey(Region.GRAPH));
+    }
+}
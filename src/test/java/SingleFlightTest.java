@@ -0,0 +1,159 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SingleFlightTest {
+    @Test
+    public void testDuplicatesShareOneComputation() throws Exception {
+        SingleFlight<String, Integer> flight = new SingleFlight<>(5000);
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<Integer>> results = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            results.add(pool.submit(() -> flight.execute("view", () -> {
+                runs.incrementAndGet();
+                release.await();
+                return 7;
+            })));
+        }
+        while (flight.getLeaderCount() + flight.getSharedCount() < 8) {
+            Thread.sleep(1);
+        }
+        release.countDown();
+        for (Future<Integer> result : results) {
+            assertEquals((Integer) 7, result.get());
+        }
+        pool.shutdown();
+        assertEquals(1, runs.get());
+        assertEquals(7, flight.getSharedCount());
+        assertEquals(0, flight.getInFlightCount());
+        /* Once finished, the key is forgotten and recomputed. */
+        assertEquals((Integer) 8, flight.execute("view", () -> 8));
+    }
+
+    @Test
+    public void testFailuresReachEveryWaiter() throws Exception {
+        SingleFlight<String, Integer> flight = new SingleFlight<>(5000);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        Future<Integer> leader = pool.submit(() -> flight.execute("k", () -> {
+            started.countDown();
+            release.await();
+            throw new IllegalStateException("bad tile");
+        }));
+        started.await();
+        Future<Integer> follower = pool.submit(() -> flight.execute("k", () -> 1));
+        while (flight.getSharedCount() < 1) {
+            Thread.sleep(1);
+        }
+        release.countDown();
+        for (Future<Integer> f : Arrays.asList(leader, follower)) {
+            try {
+                f.get();
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+        }
+        pool.shutdown();
+        assertEquals(1, flight.getFailureCount());
+    }
+
+    @Test
+    public void testWaitersTimeOut() throws Exception {
+        SingleFlight<String, Integer> flight = new SingleFlight<>(20);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread leader = new Thread(() -> {
+            try {
+                flight.execute("k", () -> {
+                    started.countDown();
+                    release.await();
+                    return 1;
+                });
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        leader.start();
+        started.await();
+        try {
+            flight.execute("k", () -> 2);
+            fail();
+        } catch (TimeoutException e) {
+            assertEquals(1, flight.getTimeoutCount());
+        }
+        release.countDown();
+        leader.join();
+    }
+
+    /**
+     * Shared work keeps going while any caller still wants it, and stops once none does.
+     */
+    @Test
+    public void testSharedWorkStopsOnlyWhenEveryCallerIsCancelled() throws Exception {
+        SingleFlight<String, Integer> flight = new SingleFlight<>(5000);
+        Cancellation first = new Cancellation(Long.MAX_VALUE, () -> false);
+        Cancellation second = new Cancellation(Long.MAX_VALUE, () -> false);
+        CountDownLatch started = new CountDownLatch(1);
+        AtomicInteger checks = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        Future<Integer> leader = pool.submit(() -> flight.execute("k", first, cancel -> {
+            started.countDown();
+            while (true) {
+                cancel.check();
+                checks.incrementAndGet();
+                Thread.sleep(1);
+            }
+        }));
+        started.await();
+        Future<Integer> follower = pool.submit(() -> flight.execute("k", second, c -> 2));
+        while (flight.getSharedCount() < 1) {
+            Thread.sleep(1);
+        }
+        first.cancel();
+        int before = checks.get();
+        Thread.sleep(100);
+        assertTrue(checks.get() > before);
+        assertFalse(leader.isDone());
+        second.cancel();
+        for (Future<Integer> f : Arrays.asList(leader, follower)) {
+            try {
+                f.get();
+                fail();
+            } catch (ExecutionException e) {
+                assertEquals(Cancellation.Reason.CANCELLED,
+                        ((Cancellation.Cancelled) e.getCause()).getReason());
+            }
+        }
+        pool.shutdown();
+        assertEquals(0, flight.getInFlightCount());
+    }
+
+    @Test
+    public void testSharedWorkTimesOutWhenEveryCallerDid() {
+        Cancellation.Shared shared = new Cancellation.Shared();
+        Cancellation expired = new Cancellation(0, () -> false);
+        Cancellation live = new Cancellation(Long.MAX_VALUE, () -> false);
+        shared.join(expired);
+        shared.join(live);
+        assertNull(shared.reason());
+        shared.leave(live);
+        assertEquals(Cancellation.Reason.TIMED_OUT, shared.reason());
+        shared.leave(expired);
+        assertEquals(Cancellation.Reason.CANCELLED, shared.reason());
+    }
+}
@@ -0,0 +1,69 @@
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class WorkerPoolTest {
+    @Test
+    public void testRunsTasksAndPassesExceptionsThrough() throws Exception {
+        WorkerPool pool = new WorkerPool("test", 2, 2, 4, 1000);
+        assertEquals((Integer) 42, pool.call(() -> 42));
+        try {
+            pool.call(() -> {
+                throw new IllegalStateException("boom");
+            });
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("boom", e.getMessage());
+        }
+        assertEquals(0, pool.getRejectedCount());
+    }
+
+    @Test
+    public void testRejectsPastConcurrencyLimit() throws Exception {
+        WorkerPool pool = new WorkerPool("test", 1, 1, 1, 5000);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicReference<Object> first = new AtomicReference<>();
+        Thread t = new Thread(() -> {
+            try {
+                first.set(pool.call(() -> {
+                    started.countDown();
+                    release.await();
+                    return "done";
+                }));
+            } catch (Exception e) {
+                first.set(e);
+            }
+        });
+        t.start();
+        started.await();
+        try {
+            pool.call(() -> "second");
+            fail();
+        } catch (WorkerPool.Overloaded e) {
+            assertEquals(1, pool.getRejectedCount());
+        }
+        release.countDown();
+        t.join();
+        assertEquals("done", first.get());
+        assertEquals(0, pool.getInFlight());
+        assertEquals("third", pool.call(() -> "third"));
+    }
+
+    @Test
+    public void testTimesOut() throws Exception {
+        WorkerPool pool = new WorkerPool("test", 1, 1, 2, 50);
+        try {
+            pool.call(() -> {
+                Thread.sleep(2000);
+                return null;
+            });
+            fail();
+        } catch (WorkerPool.Overloaded e) {
+            assertEquals(1, pool.getRejectedCount());
+        }
+    }
+}